@@ -20,14 +20,23 @@ package org.vaulttec.sonarqube.auth.oidc;
 import org.sonar.api.Plugin;
 import org.sonar.api.SonarQubeSide;
 
+import java.util.List;
+
 public class AuthOidcPlugin implements Plugin {
 
   @Override
   public void define(Context context) {
     if (context.getRuntime().getSonarQubeSide() == SonarQubeSide.SERVER) {
+      List<String> providerKeys = OidcConfiguration.providerKeys(context.getBootConfiguration());
+      OidcProviderRegistry registry = new OidcProviderRegistry(providerKeys);
       context.addExtensions(OidcConfiguration.class, OidcClient.class, OidcIdentityProvider.class,
-          UserIdentityFactory.class, AutoLoginFilter.class);
+          UserIdentityFactory.class, AutoLoginFilter.class, OidcProviderRegistryInitializer.class);
+      context.addExtension(registry);
       context.addExtensions(OidcConfiguration.definitions());
+      for (String providerKey : providerKeys) {
+        context.addExtension(new DelegatingIdentityProvider(providerKey, registry));
+        context.addExtensions(OidcConfiguration.definitions(providerKey));
+      }
     }
   }
 
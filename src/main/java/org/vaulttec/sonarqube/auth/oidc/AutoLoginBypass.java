@@ -0,0 +1,325 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.server.http.HttpRequest;
+
+import javax.annotation.CheckForNull;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Rules for requests of the login page which get the SonarQube login page instead of being redirected to the
+ * identity provider by Auto-Login, e.g. uptime probes, crawlers and scripted clients.
+ * <p>
+ * A request is bypassed if its query string contains one of the query flags (either a parameter name or
+ * <code>name=value</code>), its <code>Accept</code> header contains one of the media types, its
+ * <code>User-Agent</code> header matches one of the regular expressions (case-insensitive, anywhere in the header)
+ * or its remote address is within one of the networks (CIDR notation or a single IP address).
+ * <p>
+ * The rules are compiled once: query flags and media types are looked up in hash sets, user agent expressions which
+ * are only alternatives of plain words (optionally anchored with '^', e.g. "bot|crawler" or "^curl/") are checked as
+ * substrings or prefixes of the lower-case user agent, all others are compiled into a single pattern, and the
+ * networks into address bytes and prefix lengths. Invalid entries are logged and ignored.
+ */
+final class AutoLoginBypass {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AutoLoginBypass.class);
+
+  private static final Pattern IP_ADDRESS = Pattern.compile("[0-9A-Fa-f:.]+");
+  private static final Pattern WORD = Pattern.compile("\\^?[A-Za-z0-9 /_;:,-]+");
+
+  private final List<List<String>> entries;
+  private final Set<String> queryFlags = new HashSet<>();
+  private final Set<String> acceptTypes = new HashSet<>();
+  private final List<String> userAgentPrefixes = new ArrayList<>();
+  private final List<String> userAgentWords = new ArrayList<>();
+  private final Pattern userAgents;
+  private final List<Network> networks = new ArrayList<>();
+
+  AutoLoginBypass(String[] queryFlags, String[] acceptTypes, String[] userAgents, String[] networks) {
+    this.entries = asList(queryFlags, acceptTypes, userAgents, networks);
+    for (String flag : queryFlags) {
+      if (!flag.trim().isEmpty()) {
+        this.queryFlags.add(flag.trim());
+      }
+    }
+    for (String type : acceptTypes) {
+      if (!type.trim().isEmpty()) {
+        this.acceptTypes.add(type.trim().toLowerCase(Locale.ENGLISH));
+      }
+    }
+    StringJoiner patterns = new StringJoiner("|");
+    for (String userAgent : userAgents) {
+      userAgent = userAgent.trim();
+      if (isWords(userAgent)) {
+        for (String word : userAgent.split("\\|")) {
+          if (word.startsWith("^")) {
+            userAgentPrefixes.add(word.substring(1).toLowerCase(Locale.ENGLISH));
+          } else {
+            userAgentWords.add(word.toLowerCase(Locale.ENGLISH));
+          }
+        }
+      } else if (!userAgent.isEmpty()) {
+        try {
+          Pattern.compile(userAgent);
+          patterns.add("(?:" + userAgent + ")");
+        } catch (PatternSyntaxException e) {
+          LOGGER.warn("Invalid Auto-Login bypass user agent '{}' ignored: {}", userAgent, e.getDescription());
+        }
+      }
+    }
+    this.userAgents = patterns.length() == 0 ? null : Pattern.compile(patterns.toString(), Pattern.CASE_INSENSITIVE);
+    for (String network : networks) {
+      if (!network.trim().isEmpty()) {
+        Network parsed = Network.parse(network.trim());
+        if (parsed == null) {
+          LOGGER.warn("Invalid Auto-Login bypass network '{}' ignored", network.trim());
+        } else {
+          this.networks.add(parsed);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if these rules were created from the given entries.
+   */
+  boolean hasEntries(String[] queryFlags, String[] acceptTypes, String[] userAgents, String[] networks) {
+    return entries.equals(asList(queryFlags, acceptTypes, userAgents, networks));
+  }
+
+  boolean isEmpty() {
+    return queryFlags.isEmpty() && acceptTypes.isEmpty() && userAgentPrefixes.isEmpty() && userAgentWords.isEmpty()
+        && userAgents == null && networks.isEmpty();
+  }
+
+  /**
+   * Returns the name of the first rule matching the given request, or <code>null</code> if it's not bypassed.
+   */
+  @CheckForNull
+  String match(HttpRequest request) {
+    if (!queryFlags.isEmpty() && matchesQueryFlag(request.getQueryString())) {
+      return "query flag";
+    }
+    if (!acceptTypes.isEmpty() && matchesAcceptType(request.getHeaders("Accept"))) {
+      return "Accept header";
+    }
+    if (matchesUserAgent(request)) {
+      return "user agent";
+    }
+    if (!networks.isEmpty() && matchesNetwork(request.getRemoteAddr())) {
+      return "source network";
+    }
+    return null;
+  }
+
+  private boolean matchesQueryFlag(String queryString) {
+    if (queryString == null) {
+      return false;
+    }
+    for (String parameter : queryString.split("&")) {
+      int separator = parameter.indexOf('=');
+      String name = separator < 0 ? parameter : parameter.substring(0, separator);
+      if (queryFlags.contains(parameter) || queryFlags.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesUserAgent(HttpRequest request) {
+    if (userAgentPrefixes.isEmpty() && userAgentWords.isEmpty() && userAgents == null) {
+      return false;
+    }
+    String userAgent = request.getHeader("User-Agent");
+    if (userAgent == null) {
+      return false;
+    }
+    if (!userAgentPrefixes.isEmpty() || !userAgentWords.isEmpty()) {
+      String lowerCase = userAgent.toLowerCase(Locale.ENGLISH);
+      for (String prefix : userAgentPrefixes) {
+        if (lowerCase.startsWith(prefix)) {
+          return true;
+        }
+      }
+      for (String word : userAgentWords) {
+        if (lowerCase.contains(word)) {
+          return true;
+        }
+      }
+    }
+    return userAgents != null && userAgents.matcher(userAgent).find();
+  }
+
+  private static boolean isWords(String userAgent) {
+    for (String word : userAgent.split("\\|", -1)) {
+      if (!WORD.matcher(word).matches()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean matchesAcceptType(Enumeration<String> headers) {
+    while (headers != null && headers.hasMoreElements()) {
+      for (String mediaRange : headers.nextElement().split(",")) {
+        int parameters = mediaRange.indexOf(';');
+        String type = (parameters < 0 ? mediaRange : mediaRange.substring(0, parameters)).trim();
+        if (acceptTypes.contains(type.toLowerCase(Locale.ENGLISH))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesNetwork(String remoteAddress) {
+    byte[] address = parseAddress(remoteAddress);
+    if (address == null) {
+      return false;
+    }
+    for (Network network : networks) {
+      if (network.contains(address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses an IP address literal. Host names are rejected, so no DNS lookup is triggered. IPv4 addresses (the common
+   * case) are parsed directly in dotted-decimal notation.
+   */
+  @CheckForNull
+  private static byte[] parseAddress(String address) {
+    if (address == null) {
+      return null;
+    }
+    byte[] ipv4 = parseIpv4Address(address);
+    if (ipv4 != null) {
+      return ipv4;
+    }
+    // Only IPv6 addresses are left, so short IPv4 forms like "10.1" aren't accepted
+    if (address.indexOf(':') < 0 || !IP_ADDRESS.matcher(address).matches()) {
+      return null;
+    }
+    try {
+      return InetAddress.getByName(address).getAddress();
+    } catch (UnknownHostException e) {
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private static byte[] parseIpv4Address(String address) {
+    byte[] bytes = new byte[4];
+    int part = 0;
+    int value = -1;
+    for (int i = 0; i < address.length(); i++) {
+      char c = address.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+        if (value > 255) {
+          return null;
+        }
+      } else if (c == '.' && value >= 0 && part < 3) {
+        bytes[part++] = (byte) value;
+        value = -1;
+      } else {
+        return null;
+      }
+    }
+    if (part != 3 || value < 0) {
+      return null;
+    }
+    bytes[3] = (byte) value;
+    return bytes;
+  }
+
+  private static List<List<String>> asList(String[]... entries) {
+    List<List<String>> lists = new ArrayList<>();
+    for (String[] entry : entries) {
+      lists.add(Arrays.asList(entry));
+    }
+    return lists;
+  }
+
+  private static class Network {
+
+    private final byte[] address;
+    private final int prefixLength;
+
+    private Network(byte[] address, int prefixLength) {
+      this.address = address;
+      this.prefixLength = prefixLength;
+    }
+
+    @CheckForNull
+    static Network parse(String cidr) {
+      int slash = cidr.indexOf('/');
+      byte[] address = parseAddress(slash < 0 ? cidr : cidr.substring(0, slash));
+      if (address == null) {
+        return null;
+      }
+      int prefixLength = address.length * 8;
+      if (slash >= 0) {
+        try {
+          prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        if (prefixLength < 0 || prefixLength > address.length * 8) {
+          return null;
+        }
+      }
+      return new Network(address, prefixLength);
+    }
+
+    boolean contains(byte[] other) {
+      if (other.length != address.length) {
+        return false;
+      }
+      int bytes = prefixLength / 8;
+      for (int i = 0; i < bytes; i++) {
+        if (address[i] != other[i]) {
+          return false;
+        }
+      }
+      int bits = prefixLength % 8;
+      if (bits == 0) {
+        return true;
+      }
+      int mask = 0xff << (8 - bits);
+      return (address[bytes] & mask) == (other[bytes] & mask);
+    }
+  }
+
+}
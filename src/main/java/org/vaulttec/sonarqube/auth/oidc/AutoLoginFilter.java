@@ -20,13 +20,18 @@ package org.vaulttec.sonarqube.auth.oidc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.http.Cookie;
 import org.sonar.api.server.http.HttpRequest;
 import org.sonar.api.server.http.HttpResponse;
 import org.sonar.api.web.FilterChain;
 import org.sonar.api.web.HttpFilter;
 import org.sonar.api.web.UrlPattern;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 @ServerSide
 public class AutoLoginFilter extends HttpFilter {
@@ -36,11 +41,23 @@ public class AutoLoginFilter extends HttpFilter {
   private static final String LOGIN_URL = "/sessions/new";
   private static final String OIDC_URL = "/sessions/init/" + Constants.OIDC_IDENTITY_PROVIDER_KEY + "?return_to=";
   private static final String SKIP_REQUEST_PARAM = "auto-login=false";
+  static final String LOOP_COOKIE = "OIDC_AUTO_LOGIN";
+  static final int LOOP_WINDOW = (int) TimeUnit.MINUTES.toSeconds(1);
+  static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
 
   private final OidcConfiguration config;
+  private final OidcClient client;
+  private final LongSupplier clock;
+  private volatile Settings settings;
 
-  public AutoLoginFilter(OidcConfiguration config) {
+  public AutoLoginFilter(OidcConfiguration config, OidcClient client) {
+    this(config, client, System::nanoTime);
+  }
+
+  AutoLoginFilter(OidcConfiguration config, OidcClient client, LongSupplier clock) {
     this.config = config;
+    this.client = client;
+    this.clock = clock;
   }
 
   @Override
@@ -50,21 +67,120 @@ public class AutoLoginFilter extends HttpFilter {
 
   @Override
   public void doFilter(HttpRequest request, HttpResponse response, FilterChain chain) throws IOException {
-    if (config.isEnabled() && config.isAutoLogin()) {
+    Settings current = getSettings();
+    if (current.autoLogin) {
       String referrer = request.getHeader("referer");
       LOGGER.debug("Referrer: {}", referrer);
 
-      // Skip if disabled via request parameter
-      if (referrer == null || !referrer.endsWith(SKIP_REQUEST_PARAM)) {
-        String loginPageUrl = config.getBaseUrl() + OIDC_URL + config.getContextPath() + "/projects";
-        LOGGER.debug("Redirecting to OIDC login page: {}", loginPageUrl);
-        response.sendRedirect(loginPageUrl);
-        return;
+      // Skip if disabled via request parameter, for bypassed clients, if the browser is caught in a redirect loop,
+      // if the identity provider is unavailable or if too many browsers are redirected
+      if ((referrer == null || !referrer.endsWith(SKIP_REQUEST_PARAM)) && !isBypassed(current, request)) {
+        int redirects = getRecentRedirects(request);
+        if (!isLooping(current, redirects) && isIdentityProviderAvailable() && isRedirectAllowed(current)) {
+          LOGGER.debug("Redirecting to OIDC login page: {}", current.loginPageUrl);
+          response.addCookie(new HttpOnlyCookie(LOOP_COOKIE, String.valueOf(redirects + 1), current.loopCookiePath,
+              current.secure, LOOP_WINDOW));
+          response.sendRedirect(current.loginPageUrl);
+          return;
+        }
       }
     }
     chain.doFilter(request, response);
   }
 
+  /**
+   * Returns the settings of the filter, which are only read again from the configuration every
+   * {@link #SETTINGS_REFRESH_INTERVAL} nanoseconds, so most requests don't need any settings lookup. The bypass rules
+   * and the redirect rate limit are kept as long as their settings don't change.
+   */
+  private Settings getSettings() {
+    long now = clock.getAsLong();
+    Settings current = settings;
+    if (current == null || now - current.expiresAt >= 0) {
+      current = new Settings(config, current, now + SETTINGS_REFRESH_INTERVAL);
+      settings = current;
+    }
+    return current;
+  }
+
+  private static boolean isBypassed(Settings settings, HttpRequest request) {
+    if (settings.bypass == null) {
+      return false;
+    }
+    String rule = settings.bypass.match(request);
+    if (rule != null) {
+      LOGGER.debug("Request matches Auto-Login bypass {} - skipping Auto-Login", rule);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the cookie which resets the Auto-Login redirect counter of the requesting browser after a successful login,
+   * or <code>null</code> if there's no counter. Otherwise users returning within {@link #LOOP_WINDOW} seconds would
+   * pile up redirects until Auto-Login is skipped for them.
+   */
+  @CheckForNull
+  static Cookie newLoopResetCookie(OidcConfiguration config, HttpRequest request) {
+    if (getRecentRedirects(request) == 0) {
+      return null;
+    }
+    return new HttpOnlyCookie(LOOP_COOKIE, "", getLoopCookiePath(config.getContextPath()),
+        config.getBaseUrl().startsWith("https:"), 0);
+  }
+
+  /**
+   * Returns the path of the redirect counter cookie, which covers the login page as well as the callback of the
+   * identity provider (which resets the counter).
+   */
+  private static String getLoopCookiePath(String contextPath) {
+    return contextPath + "/";
+  }
+
+  /**
+   * Returns the number of Auto-Login redirects of the requesting browser, each within {@link #LOOP_WINDOW} seconds of
+   * the previous one. The counter is kept in a short-lived cookie, so no state is kept on the server.
+   */
+  private static int getRecentRedirects(HttpRequest request) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (LOOP_COOKIE.equals(cookie.getName())) {
+          try {
+            return Math.max(0, Integer.parseInt(cookie.getValue()));
+          } catch (NumberFormatException e) {
+            return 0;
+          }
+        }
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isLooping(Settings settings, int redirects) {
+    if (settings.loopThreshold > 0 && redirects >= settings.loopThreshold) {
+      LOGGER.debug("Browser redirected {} times in a row - skipping Auto-Login", redirects);
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isRedirectAllowed(Settings settings) {
+    if (settings.redirectLimit != null && !settings.redirectLimit.tryAcquire()) {
+      LOGGER.debug("Auto-Login redirect rate exceeded - skipping Auto-Login");
+      return false;
+    }
+    return true;
+  }
+
+  private boolean isIdentityProviderAvailable() {
+    if (!client.isIdentityProviderAvailable()) {
+      LOGGER.debug("Identity provider unavailable - skipping Auto-Login");
+      return false;
+    }
+    return true;
+  }
+
   @Override
   public void init(){
     // Not needed here
@@ -74,4 +190,60 @@ public class AutoLoginFilter extends HttpFilter {
     // Not needed here
   }
 
+  /**
+   * Snapshot of the settings used by the filter, incl. the precomputed redirect URL.
+   */
+  private static class Settings {
+
+    private final long expiresAt;
+    private final boolean autoLogin;
+    private final String loginPageUrl;
+    private final String loopCookiePath;
+    private final boolean secure;
+    private final int loopThreshold;
+    @Nullable
+    private final AutoLoginBypass bypass;
+    @Nullable
+    private final TokenBucket redirectLimit;
+
+    private Settings(OidcConfiguration config, @Nullable Settings previous, long expiresAt) {
+      this.expiresAt = expiresAt;
+      this.autoLogin = config.isEnabled() && config.isAutoLogin();
+      String baseUrl = config.getBaseUrl();
+      String contextPath = config.getContextPath();
+      this.loginPageUrl = baseUrl + OIDC_URL + contextPath + "/projects";
+      this.loopCookiePath = getLoopCookiePath(contextPath);
+      this.secure = baseUrl.startsWith("https:");
+      this.loopThreshold = config.autoLoginLoopThreshold();
+      this.bypass = getBypass(config, previous);
+      this.redirectLimit = getRedirectLimit(config, previous);
+    }
+
+    @CheckForNull
+    private static AutoLoginBypass getBypass(OidcConfiguration config, @Nullable Settings previous) {
+      String[] queryFlags = config.autoLoginBypassQueryFlags();
+      String[] acceptTypes = config.autoLoginBypassAcceptTypes();
+      String[] userAgents = config.autoLoginBypassUserAgents();
+      String[] networks = config.autoLoginBypassNetworks();
+      if (previous != null && previous.bypass != null
+          && previous.bypass.hasEntries(queryFlags, acceptTypes, userAgents, networks)) {
+        return previous.bypass;
+      }
+      AutoLoginBypass rules = new AutoLoginBypass(queryFlags, acceptTypes, userAgents, networks);
+      return rules.isEmpty() ? null : rules;
+    }
+
+    @CheckForNull
+    private static TokenBucket getRedirectLimit(OidcConfiguration config, @Nullable Settings previous) {
+      int rate = config.autoLoginMaxRedirectRate();
+      if (rate <= 0) {
+        return null;
+      }
+      if (previous != null && previous.redirectLimit != null && previous.redirectLimit.getPermitsPerSecond() == rate) {
+        return previous.redirectLimit;
+      }
+      return new TokenBucket(rate);
+    }
+  }
+
 }
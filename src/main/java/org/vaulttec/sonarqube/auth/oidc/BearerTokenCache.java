@@ -0,0 +1,107 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+
+import javax.annotation.CheckForNull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache of validated bearer tokens, so repeated logins of an API client with the same token skip the signature
+ * verification. The tokens are kept by their SHA-256 hash (not the token itself) until they expire. If the cache is
+ * full then the least recently used token is evicted.
+ */
+class BearerTokenCache {
+
+  static final int MAX_SIZE = 10_000;
+
+  private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  private final LruCache<String, Entry> entries;
+  private final LongSupplier clock;
+
+  BearerTokenCache() {
+    this(MAX_SIZE, System::currentTimeMillis);
+  }
+
+  BearerTokenCache(int maxSize, LongSupplier clock) {
+    this.entries = new LruCache<>(() -> maxSize);
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the claims of the given token if it has been validated before and isn't expired yet.
+   */
+  @CheckForNull
+  JWTClaimsSet get(String token) {
+    String hash = hash(token);
+    Entry entry = entries.get(hash);
+    if (entry == null) {
+      return null;
+    }
+    if (clock.getAsLong() >= entry.expiresAt) {
+      entries.remove(hash);
+      return null;
+    }
+    return entry.claims;
+  }
+
+  /**
+   * Caches the claims of the given validated token until it expires.
+   */
+  void put(String token, JWTClaimsSet claims) {
+    Date expirationTime = claims.getExpirationTime();
+    long now = clock.getAsLong();
+    if (expirationTime == null || expirationTime.getTime() <= now) {
+      return;
+    }
+    entries.put(hash(token), new Entry(claims, expirationTime.getTime()));
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  static String hash(String token) {
+    return Base64.getEncoder().encodeToString(DIGEST.get().digest(token.getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  private static class Entry {
+
+    private final JWTClaimsSet claims;
+    private final long expiresAt;
+
+    private Entry(JWTClaimsSet claims, long expiresAt) {
+      this.claims = claims;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker around the requests to the identity provider.
+ * <p>
+ * The outcomes of the last requests are recorded in a sliding window. If the failure rate within a full window
+ * reaches the configured threshold then the circuit opens and all requests fail immediately instead of waiting for
+ * connection timeouts. After the open duration a single probe request is let through (half-open): if it succeeds the
+ * circuit closes again, otherwise it's re-opened.
+ * <p>
+ * Every permit carries the generation of the circuit at the time it was acquired. The generation changes with every
+ * state change and every probe, so late outcomes (e.g. of a request started before the circuit opened) are ignored and
+ * only the permitted probe decides about a half-open circuit.
+ */
+class CircuitBreaker implements CircuitBreakerMXBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final OidcConfiguration config;
+  private final AtomicLong rejected = new AtomicLong();
+  private State state = State.CLOSED;
+  private long generation;
+  private long openedAt;
+  private boolean[] outcomes = new boolean[0];
+  private int position;
+  private int recorded;
+  private int failures;
+
+  CircuitBreaker(OidcConfiguration config) {
+    this.config = config;
+  }
+
+  /**
+   * Checks if a request may be sent. While the circuit is half-open only the caller which receives the probe permit
+   * may send its request. Returns the permit, which has to be passed to {@link #onSuccess(long)} or
+   * {@link #onFailure(long)} with the outcome of the request.
+   *
+   * @throws IllegalStateException if the circuit is open
+   */
+  synchronized long acquire() {
+    if (!isEnabled()) {
+      return generation;
+    }
+    if (isProbeDue()) {
+      LOGGER.debug("Circuit breaker half-open - probing identity provider");
+      state = State.HALF_OPEN;
+      openedAt = System.nanoTime();
+      return ++generation;
+    }
+    if (state != State.CLOSED) {
+      rejected.incrementAndGet();
+      throw new IllegalStateException("Identity provider unavailable - requests are suspended after too many failures "
+          + "(see setting 'Circuit breaker failure rate')");
+    }
+    return generation;
+  }
+
+  synchronized void onSuccess(long permit) {
+    record(permit, true);
+  }
+
+  synchronized void onFailure(long permit) {
+    record(permit, false);
+  }
+
+  /**
+   * Returns <code>true</code> if a request would currently be permitted, without consuming the half-open probe.
+   */
+  synchronized boolean isCallPermitted() {
+    return !isEnabled() || state == State.CLOSED || isProbeDue();
+  }
+
+  synchronized State state() {
+    return state;
+  }
+
+  @Override
+  public synchronized String getState() {
+    return state.name();
+  }
+
+  @Override
+  public synchronized int getFailureRate() {
+    return recorded == 0 ? 0 : failures * 100 / recorded;
+  }
+
+  @Override
+  public long getRejectedRequests() {
+    return rejected.get();
+  }
+
+  private void record(long permit, boolean success) {
+    if (!isEnabled() || permit != generation) {
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      if (success) {
+        LOGGER.info("Identity provider available again - circuit breaker closed");
+        reset(State.CLOSED);
+      } else {
+        LOGGER.warn("Identity provider still unavailable - circuit breaker re-opened");
+        reset(State.OPEN);
+      }
+      return;
+    }
+    if (state == State.OPEN) {
+      return;
+    }
+    int windowSize = Math.max(1, config.circuitBreakerWindowSize());
+    if (outcomes.length != windowSize) {
+      outcomes = new boolean[windowSize];
+      position = 0;
+      recorded = 0;
+      failures = 0;
+    }
+    if (recorded == windowSize) {
+      if (!outcomes[position]) {
+        failures--;
+      }
+    } else {
+      recorded++;
+    }
+    outcomes[position] = success;
+    if (!success) {
+      failures++;
+    }
+    position = (position + 1) % windowSize;
+    if (recorded == windowSize && failures * 100 >= config.circuitBreakerFailureRate() * windowSize) {
+      LOGGER.warn("Identity provider unavailable ({} of the last {} requests failed) - circuit breaker opened",
+          failures, windowSize);
+      reset(State.OPEN);
+    }
+  }
+
+  private void reset(State newState) {
+    state = newState;
+    generation++;
+    openedAt = System.nanoTime();
+    position = 0;
+    recorded = 0;
+    failures = 0;
+  }
+
+  /**
+   * A probe is due if the open duration has elapsed. This also applies to a half-open circuit whose probe never
+   * reported back.
+   */
+  private boolean isProbeDue() {
+    return state != State.CLOSED && System.nanoTime() - openedAt >= openDuration();
+  }
+
+  private boolean isEnabled() {
+    return config.circuitBreakerFailureRate() > 0;
+  }
+
+  private long openDuration() {
+    return TimeUnit.MILLISECONDS.toNanos(config.circuitBreakerOpenDuration());
+  }
+
+}
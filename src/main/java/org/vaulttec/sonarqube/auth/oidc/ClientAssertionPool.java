@@ -0,0 +1,283 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.auth.ClientAuthentication;
+import com.nimbusds.oauth2.sdk.auth.ClientSecretJWT;
+import com.nimbusds.oauth2.sdk.auth.JWTAuthenticationClaimsSet;
+import com.nimbusds.oauth2.sdk.auth.PrivateKeyJWT;
+import com.nimbusds.oauth2.sdk.id.Audience;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.JWTID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import java.net.URI;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPrivateKey;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static org.vaulttec.sonarqube.auth.oidc.OidcConfiguration.CLIENT_AUTH_METHOD_PRIVATE_KEY_JWT;
+import static org.vaulttec.sonarqube.auth.oidc.OidcConfiguration.CLIENT_AUTH_METHOD_SECRET_JWT;
+
+/**
+ * Pool of pre-signed client assertions for the client authentication methods <code>private_key_jwt</code> and
+ * <code>client_secret_jwt</code>.
+ * <p>
+ * Signing an assertion (especially with RSA) is moved off the callback request: a background task keeps up to
+ * {@link #POOL_SIZE} short-lived assertions signed in advance, each with its own unique ID (<code>jti</code>) and
+ * handed out only once. Assertions with a remaining lifetime below {@link #MIN_REMAINING_LIFETIME} are discarded, so
+ * they can't expire before the identity provider has received them. The pool is refilled after every {@link #take()}
+ * and refreshed every {@link #REFRESH_INTERVAL} milliseconds, so it stays ready on a server with only a few logins. If
+ * the pool is empty anyway (e.g. after a burst of logins) then the assertion is signed inline.
+ */
+class ClientAssertionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClientAssertionPool.class);
+
+  static final int POOL_SIZE = 8;
+  static final long LIFETIME = 120_000;
+  static final long MIN_REMAINING_LIFETIME = 60_000;
+  static final long REFRESH_INTERVAL = 30_000;
+
+  private final ClientID clientId;
+  private final Audience audience;
+  private final boolean privateKey;
+  private final JWSHeader header;
+  private final JWSSigner signer;
+  private final Executor executor;
+  private final LongSupplier clock;
+  private final Queue<Assertion> assertions = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private volatile ScheduledFuture<?> refreshTask;
+
+  ClientAssertionPool(OidcConfiguration config, URI tokenEndpoint, Executor executor) {
+    this(config, tokenEndpoint, executor, System::currentTimeMillis);
+  }
+
+  ClientAssertionPool(OidcConfiguration config, URI tokenEndpoint, Executor executor, LongSupplier clock) {
+    this.clientId = new ClientID(config.clientId());
+    this.audience = new Audience(tokenEndpoint);
+    this.executor = executor;
+    this.clock = clock;
+    String method = config.clientAuthMethod();
+    if (CLIENT_AUTH_METHOD_PRIVATE_KEY_JWT.equals(method)) {
+      this.privateKey = true;
+      String key = config.clientAuthKey();
+      if (key == null) {
+        throw new IllegalStateException("No client authentication key configured "
+            + "(see setting 'Client authentication key')");
+      }
+      PrivateKey parsedKey = IdTokenDecrypter.parsePrivateKey(key, "client authentication key");
+      JWSAlgorithm algorithm = getAlgorithm(config, parsedKey);
+      String keyId = config.clientAuthKeyId() != null ? config.clientAuthKeyId() : getKeyId(key);
+      this.header = new JWSHeader.Builder(algorithm).keyID(keyId).build();
+      this.signer = createSigner(parsedKey);
+    } else if (CLIENT_AUTH_METHOD_SECRET_JWT.equals(method)) {
+      this.privateKey = false;
+      JWSAlgorithm algorithm = config.clientAuthSignAlgorithm() == null ? JWSAlgorithm.HS256
+          : JWSAlgorithm.parse(config.clientAuthSignAlgorithm());
+      if (!JWSAlgorithm.Family.HMAC_SHA.contains(algorithm)) {
+        throw new IllegalStateException("Client authentication signature algorithm " + algorithm
+            + " doesn't match the client authentication method " + method);
+      }
+      if (config.clientSecret() == null) {
+        throw new IllegalStateException("No client secret configured for client authentication method " + method);
+      }
+      this.header = new JWSHeader(algorithm);
+      try {
+        this.signer = new MACSigner(config.clientSecret());
+      } catch (JOSEException e) {
+        throw new IllegalStateException("Creating client assertion signer failed: " + e.getMessage()
+            + " (see setting 'Client secret')", e);
+      }
+    } else {
+      throw new IllegalStateException("Client authentication method " + method + " doesn't use client assertions");
+    }
+  }
+
+  /**
+   * Returns a client authentication with an unused assertion, and triggers the refill of the pool in the background.
+   */
+  ClientAuthentication take() throws JOSEException {
+    long minExpiration = clock.getAsLong() + MIN_REMAINING_LIFETIME;
+    Assertion assertion;
+    while ((assertion = assertions.poll()) != null) {
+      size.decrementAndGet();
+      if (assertion.expiresAt > minExpiration) {
+        break;
+      }
+    }
+    refill();
+    SignedJWT jwt = (assertion != null ? assertion : newAssertion()).jwt;
+    return privateKey ? new PrivateKeyJWT(jwt) : new ClientSecretJWT(jwt);
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * Refreshes the pool every {@link #REFRESH_INTERVAL} milliseconds with the given scheduler until it's closed.
+   */
+  void startRefresh(ScheduledExecutorService scheduler) {
+    refreshTask = scheduler.scheduleWithFixedDelay(this::refresh, 0, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  void close() {
+    ScheduledFuture<?> task = refreshTask;
+    if (task != null) {
+      task.cancel(false);
+    }
+  }
+
+  /**
+   * Replaces the assertions which would become stale before the next refresh, and fills up the pool.
+   */
+  void refresh() {
+    long minExpiration = clock.getAsLong() + MIN_REMAINING_LIFETIME + REFRESH_INTERVAL;
+    Assertion assertion;
+    // The assertions are queued in the order of their expiration
+    while ((assertion = assertions.peek()) != null && assertion.expiresAt <= minExpiration) {
+      if (assertions.remove(assertion)) {
+        size.decrementAndGet();
+      }
+    }
+    fill();
+  }
+
+  private void refill() {
+    if (size.get() >= POOL_SIZE || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          fill();
+        } finally {
+          refilling.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refilling.set(false);
+    }
+  }
+
+  private void fill() {
+    try {
+      while (size.get() < POOL_SIZE) {
+        assertions.add(newAssertion());
+        size.incrementAndGet();
+      }
+    } catch (JOSEException | RuntimeException e) {
+      LOGGER.warn("Signing client assertion failed: {}", e.getMessage());
+    }
+  }
+
+  private Assertion newAssertion() throws JOSEException {
+    long now = clock.getAsLong();
+    long expiresAt = now + LIFETIME;
+    JWTAuthenticationClaimsSet claims = new JWTAuthenticationClaimsSet(clientId, audience.toSingleAudienceList(),
+        new Date(expiresAt), null, new Date(now), new JWTID());
+    SignedJWT jwt = new SignedJWT(header, claims.toJWTClaimsSet());
+    jwt.sign(signer);
+    return new Assertion(jwt, expiresAt);
+  }
+
+  private static JWSAlgorithm getAlgorithm(OidcConfiguration config, PrivateKey key) {
+    String name = config.clientAuthSignAlgorithm();
+    if (name == null) {
+      return key instanceof ECPrivateKey ? getAlgorithm((ECPrivateKey) key) : JWSAlgorithm.RS256;
+    }
+    JWSAlgorithm algorithm = JWSAlgorithm.parse(name);
+    if (key instanceof ECPrivateKey ? !JWSAlgorithm.Family.EC.contains(algorithm)
+        : !JWSAlgorithm.Family.RSA.contains(algorithm)) {
+      throw new IllegalStateException("Client authentication key (" + key.getAlgorithm()
+          + ") doesn't match the client authentication signature algorithm " + algorithm);
+    }
+    return algorithm;
+  }
+
+  /**
+   * Returns the ECDSA algorithm matching the curve of the given key.
+   */
+  private static JWSAlgorithm getAlgorithm(ECPrivateKey key) {
+    Curve curve = Curve.forECParameterSpec(key.getParams());
+    if (Curve.P_256.equals(curve)) {
+      return JWSAlgorithm.ES256;
+    } else if (Curve.SECP256K1.equals(curve)) {
+      return JWSAlgorithm.ES256K;
+    } else if (Curve.P_384.equals(curve)) {
+      return JWSAlgorithm.ES384;
+    } else if (Curve.P_521.equals(curve)) {
+      return JWSAlgorithm.ES512;
+    }
+    throw new IllegalStateException("Invalid client authentication key: Unsupported elliptic curve");
+  }
+
+  private static JWSSigner createSigner(PrivateKey key) {
+    try {
+      return key instanceof ECPrivateKey ? new ECDSASigner((ECPrivateKey) key) : new RSASSASigner(key);
+    } catch (JOSEException e) {
+      throw new IllegalStateException("Creating client assertion signer failed: " + e.getMessage(), e);
+    }
+  }
+
+  @CheckForNull
+  private static String getKeyId(String key) {
+    try {
+      return key.trim().startsWith("{") ? JWK.parse(key).getKeyID() : null;
+    } catch (java.text.ParseException e) {
+      return null;
+    }
+  }
+
+  private static class Assertion {
+
+    private final SignedJWT jwt;
+    private final long expiresAt;
+
+    private Assertion(SignedJWT jwt, long expiresAt) {
+      this.jwt = jwt;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.sonar.api.server.authentication.Display;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+
+/**
+ * Additional identity provider delegating to the {@link OidcIdentityProvider} with the same key from the
+ * {@link OidcProviderRegistry}.
+ */
+class DelegatingIdentityProvider implements OAuth2IdentityProvider {
+
+  private final String key;
+  private final OidcProviderRegistry registry;
+
+  DelegatingIdentityProvider(String key, OidcProviderRegistry registry) {
+    this.key = key;
+    this.registry = registry;
+  }
+
+  @Override
+  public String getKey() {
+    return key;
+  }
+
+  @Override
+  public String getName() {
+    return delegate().getName();
+  }
+
+  @Override
+  public Display getDisplay() {
+    return delegate().getDisplay();
+  }
+
+  @Override
+  public boolean isEnabled() {
+    OidcIdentityProvider delegate = registry.get(key);
+    return delegate != null && delegate.isEnabled();
+  }
+
+  @Override
+  public boolean allowsUsersToSignUp() {
+    return delegate().allowsUsersToSignUp();
+  }
+
+  @Override
+  public void init(InitContext context) {
+    delegate().init(context);
+  }
+
+  @Override
+  public void callback(CallbackContext context) {
+    delegate().callback(context);
+  }
+
+  private OidcIdentityProvider delegate() {
+    OidcIdentityProvider delegate = registry.get(key);
+    if (delegate == null) {
+      throw new IllegalStateException("OpenID Connect identity provider '" + key + "' is not initialized");
+    }
+    return delegate;
+  }
+
+  @Override
+  public String toString() {
+    // Used by SonarQube as component key of this extension instance
+    return getClass().getSimpleName() + "[" + key + "]";
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Negative cache remembering failed resolutions (e.g. of the provider metadata or JWK set) for a short period, so a
+ * misconfigured or unreachable identity provider doesn't cause a DNS lookup and connection timeout on every login.
+ * <p>
+ * The keys may be chosen by anonymous clients (e.g. the issuer of a bearer token of a multi-tenant provider), so the
+ * number of cached failures is limited to {@link #MAX_SIZE} (the least recently used one is evicted).
+ */
+class FailureCache<E extends Exception> {
+
+  static final int MAX_SIZE = 1000;
+
+  private final OidcConfiguration config;
+  private final LruCache<String, Failure<E>> failures = new LruCache<>(() -> MAX_SIZE);
+
+  FailureCache(OidcConfiguration config) {
+    this.config = config;
+  }
+
+  /**
+   * Returns the failure cached for the given key or <code>null</code> if there is none or it has expired.
+   */
+  @CheckForNull
+  E get(String key) {
+    Failure<E> failure = failures.get(key);
+    if (failure == null) {
+      return null;
+    }
+    if (System.nanoTime() - failure.expiresAt >= 0) {
+      failures.remove(key);
+      return null;
+    }
+    return failure.exception;
+  }
+
+  void put(String key, E exception) {
+    long ttl = TimeUnit.MILLISECONDS.toNanos(config.failureCacheTtl());
+    if (ttl > 0) {
+      failures.put(key, new Failure<>(exception, System.nanoTime() + ttl));
+    }
+  }
+
+  private static class Failure<E> {
+
+    private final E exception;
+    private final long expiresAt;
+
+    private Failure(E exception, long expiresAt) {
+      this.exception = exception;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.sonar.api.server.http.Cookie;
+
+/**
+ * HTTP-only cookie set by the plugin itself, e.g. for the PKCE code verifier.
+ */
+class HttpOnlyCookie implements Cookie {
+
+  private final String name;
+  private final String value;
+  private final String path;
+  private final boolean secure;
+  private final int maxAge;
+
+  HttpOnlyCookie(String name, String value, String path, boolean secure, int maxAge) {
+    this.name = name;
+    this.value = value;
+    this.path = path;
+    this.secure = secure;
+    this.maxAge = maxAge;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getValue() {
+    return value;
+  }
+
+  @Override
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public boolean isSecure() {
+    return secure;
+  }
+
+  @Override
+  public boolean isHttpOnly() {
+    return true;
+  }
+
+  @Override
+  public int getMaxAge() {
+    return maxAge;
+  }
+
+}
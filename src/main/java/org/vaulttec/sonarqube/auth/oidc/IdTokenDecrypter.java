@@ -0,0 +1,167 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWEDecrypter;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.crypto.ECDHDecrypter;
+import com.nimbusds.jose.crypto.RSADecrypter;
+import com.nimbusds.jose.jwk.AsymmetricJWK;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jwt.EncryptedJWT;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.SignedJWT;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.text.ParseException;
+import java.util.Base64;
+import java.util.Collections;
+
+/**
+ * Decrypter of encrypted ID tokens.
+ * <p>
+ * The private key is loaded from the configured key or keystore and the decrypter is created only once, not for every
+ * login. The {@link OidcClient} caches it for the metadata cache duration, so a replaced keystore file is picked up
+ * after this duration at the latest.
+ */
+class IdTokenDecrypter {
+
+  private final JWEAlgorithm algorithm;
+  private final EncryptionMethod method;
+  private final JWEDecrypter decrypter;
+
+  IdTokenDecrypter(OidcConfiguration config) {
+    this.algorithm = JWEAlgorithm.parse(config.idTokenEncryptionAlgorithm());
+    this.method = EncryptionMethod.parse(config.idTokenEncryptionMethod());
+    this.decrypter = createDecrypter(algorithm, loadPrivateKey(config));
+  }
+
+  /**
+   * Decrypts the given ID token. Returns the nested signed JWT if the ID token was signed before it was encrypted,
+   * otherwise the decrypted ID token itself.
+   */
+  JWT decrypt(EncryptedJWT idToken) throws BadJOSEException, JOSEException {
+    JWEHeader header = idToken.getHeader();
+    if (!algorithm.equals(header.getAlgorithm()) || !method.equals(header.getEncryptionMethod())) {
+      throw new BadJOSEException("Encrypted ID token rejected: Algorithm " + header.getAlgorithm()
+          + " with encryption method " + header.getEncryptionMethod() + " not accepted");
+    }
+    idToken.decrypt(decrypter);
+    SignedJWT nestedIdToken = idToken.getPayload().toSignedJWT();
+    return nestedIdToken != null ? nestedIdToken : idToken;
+  }
+
+  private static JWEDecrypter createDecrypter(JWEAlgorithm algorithm, PrivateKey key) {
+    try {
+      if (JWEAlgorithm.Family.RSA.contains(algorithm) && "RSA".equals(key.getAlgorithm())) {
+        return new RSADecrypter(key);
+      } else if (JWEAlgorithm.Family.ECDH_ES.contains(algorithm) && key instanceof ECPrivateKey) {
+        return new ECDHDecrypter((ECPrivateKey) key);
+      }
+    } catch (JOSEException e) {
+      throw new IllegalStateException("Creating ID token decrypter failed: " + e.getMessage(), e);
+    }
+    throw new IllegalStateException("ID token decryption key (" + key.getAlgorithm()
+        + ") doesn't match the ID token encryption algorithm " + algorithm);
+  }
+
+  private static PrivateKey loadPrivateKey(OidcConfiguration config) {
+    String key = config.idTokenDecryptionKey();
+    if (key != null) {
+      return parsePrivateKey(key, "ID token decryption key");
+    }
+    String keyStore = config.idTokenDecryptionKeyStore();
+    if (keyStore != null) {
+      return loadPrivateKey(keyStore, config.idTokenDecryptionKeyStorePassword(),
+          config.idTokenDecryptionKeyAlias());
+    }
+    throw new IllegalStateException("No ID token decryption key configured "
+        + "(see settings 'ID token decryption key' and 'ID token decryption keystore')");
+  }
+
+  /**
+   * Parses a private key given as JWK or PEM encoded PKCS #8 key. The given name of the key is used in error messages.
+   */
+  static PrivateKey parsePrivateKey(String key, String name) {
+    try {
+      if (key.trim().startsWith("{")) {
+        JWK jwk = JWK.parse(key);
+        if (jwk instanceof AsymmetricJWK && jwk.isPrivate()) {
+          return ((AsymmetricJWK) jwk).toPrivateKey();
+        }
+      } else {
+        byte[] encoded = Base64.getDecoder().decode(key.replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "")
+            .replaceAll("\\s", ""));
+        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(encoded);
+        for (String keyAlgorithm : new String[] { "RSA", "EC" }) {
+          try {
+            return KeyFactory.getInstance(keyAlgorithm).generatePrivate(keySpec);
+          } catch (InvalidKeySpecException e) {
+            // Not a key of this type
+          }
+        }
+      }
+    } catch (ParseException | JOSEException | GeneralSecurityException | IllegalArgumentException e) {
+      throw new IllegalStateException("Invalid " + name + ": " + e.getMessage(), e);
+    }
+    throw new IllegalStateException("Invalid " + name + ": RSA or EC private key expected");
+  }
+
+  private static PrivateKey loadPrivateKey(String keyStorePath, @Nullable String password, @Nullable String alias) {
+    char[] passwordChars = password == null ? new char[0] : password.toCharArray();
+    try {
+      KeyStore keyStore = KeyStore.getInstance(new File(keyStorePath), passwordChars);
+      String keyAlias = alias;
+      if (keyAlias == null) {
+        for (String candidate : Collections.list(keyStore.aliases())) {
+          if (keyStore.isKeyEntry(candidate)) {
+            if (keyAlias != null) {
+              throw new IllegalStateException("ID token decryption keystore '" + keyStorePath
+                  + "' contains multiple keys (see setting 'ID token decryption key alias')");
+            }
+            keyAlias = candidate;
+          }
+        }
+      }
+      Key key = keyAlias == null ? null : keyStore.getKey(keyAlias, passwordChars);
+      if (!(key instanceof PrivateKey)) {
+        throw new IllegalStateException("ID token decryption keystore '" + keyStorePath + "' doesn't contain "
+            + (alias == null ? "a private key" : "a private key with alias '" + alias + "'"));
+      }
+      return (PrivateKey) key;
+    } catch (IOException | GeneralSecurityException e) {
+      throw new IllegalStateException("Loading ID token decryption keystore '" + keyStorePath + "' failed: "
+          + e.getMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.crypto.MACVerifier;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.BadJWSException;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimNames;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jwt.proc.BadJWTException;
+import com.nimbusds.jwt.proc.DefaultJWTClaimsVerifier;
+import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.Issuer;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenClaimsVerifier;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Validator of signed ID tokens and signed UserInfo responses.
+ * <p>
+ * In contrast to Nimbus' {@link IDTokenValidator} (which creates a new JWT processor and new signature verifiers for
+ * every ID token) the accepted algorithms and the claims verifiers are created once per validator, and the signature
+ * verifiers once per key (by the {@link JwkSetSource}). HMAC signatures are verified with the client secret, all
+ * others with the keys from the provider's JWK set, i.e. signed UserInfo responses don't require additional key
+ * downloads.
+ */
+class IdTokenVerifier {
+
+  /**
+   * Asymmetric algorithms which are accepted if they're listed in the provider metadata.
+   */
+  static final Set<JWSAlgorithm> ASYMMETRIC_ALGORITHMS = Collections.unmodifiableSet(new LinkedHashSet<>(
+      Arrays.asList(JWSAlgorithm.RS256, JWSAlgorithm.RS384, JWSAlgorithm.RS512, JWSAlgorithm.PS256,
+          JWSAlgorithm.PS384, JWSAlgorithm.PS512, JWSAlgorithm.ES256, JWSAlgorithm.ES384, JWSAlgorithm.ES512,
+          JWSAlgorithm.EdDSA)));
+
+  /**
+   * Header types ('typ') accepted for access tokens, i.e. the RFC 9068 type and the generic JWT type used by most
+   * providers.
+   */
+  static final Set<JOSEObjectType> ACCESS_TOKEN_TYPES = Collections.unmodifiableSet(new HashSet<>(
+      Arrays.asList(new JOSEObjectType("at+jwt"), new JOSEObjectType("application/at+jwt"), JOSEObjectType.JWT)));
+
+  /**
+   * Claims only used in ID tokens.
+   */
+  static final Set<String> ID_TOKEN_CLAIMS = Collections.unmodifiableSet(new HashSet<>(
+      Arrays.asList("nonce", "at_hash", "c_hash")));
+
+  private final Issuer issuer;
+  private final ClientID clientId;
+  private final Set<JWSAlgorithm> algorithms;
+  private final JwkSetSource jwkSetSource;
+  private final IDTokenClaimsVerifier claimsVerifier;
+  private final DefaultJWTClaimsVerifier<SecurityContext> userInfoClaimsVerifier;
+  private final List<JWSVerifier> macVerifiers;
+
+  IdTokenVerifier(Issuer issuer, ClientID clientId, Set<JWSAlgorithm> algorithms, JwkSetSource jwkSetSource,
+      @Nullable Secret clientSecret) throws JOSEException {
+    this.issuer = issuer;
+    this.clientId = clientId;
+    this.algorithms = algorithms;
+    this.jwkSetSource = jwkSetSource;
+    this.claimsVerifier = new IDTokenClaimsVerifier(issuer, clientId, null, IDTokenValidator.DEFAULT_MAX_CLOCK_SKEW);
+    // The audience of a UserInfo response is optional
+    this.userInfoClaimsVerifier = new DefaultJWTClaimsVerifier<>(new HashSet<>(Arrays.asList(clientId.getValue(),
+        null)), null, Collections.singleton(JWTClaimNames.SUBJECT), null);
+    if (clientSecret != null && algorithms.stream().anyMatch(JWSAlgorithm.Family.HMAC_SHA::contains)) {
+      this.macVerifiers = Collections.singletonList(new MACVerifier(clientSecret.getValueBytes()));
+    } else {
+      this.macVerifiers = Collections.emptyList();
+    }
+  }
+
+  Set<JWSAlgorithm> getAlgorithms() {
+    return algorithms;
+  }
+
+  void prefetchKeys() throws KeySourceException {
+    jwkSetSource.prefetch();
+  }
+
+  void validate(JWT idToken) throws BadJOSEException, JOSEException {
+    SignedJWT signedIdToken = verifySignature(idToken, "ID token");
+    claimsVerifier.verify(getClaims(signedIdToken), null);
+  }
+
+  /**
+   * Validates a signed UserInfo response and returns its claims. Its subject has to match the one of the ID token.
+   */
+  JWTClaimsSet validateUserInfo(JWT userInfo, String subject) throws BadJOSEException, JOSEException {
+    JWTClaimsSet claims = getClaims(verifySignature(userInfo, "UserInfo response"));
+    userInfoClaimsVerifier.verify(claims, null);
+    if (claims.getIssuer() != null && !issuer.getValue().equals(claims.getIssuer())) {
+      throw new BadJWTException("Signed UserInfo response rejected: Unexpected issuer " + claims.getIssuer());
+    }
+    if (!subject.equals(claims.getSubject())) {
+      throw new BadJWTException("Signed UserInfo response rejected: Subject doesn't match the ID token's subject");
+    }
+    return claims;
+  }
+
+  /**
+   * Validates a signed access token (JWT) and returns its claims. It has to be issued by the provider for the given
+   * audience, and it has to expire. ID tokens (identified by their claims or by being issued to SonarQube's client ID)
+   * are rejected, so an ID token issued to SonarQube can't be used as an access token.
+   */
+  JWTClaimsSet validateAccessToken(JWT accessToken, String audience) throws BadJOSEException, JOSEException {
+    SignedJWT signedAccessToken = verifySignature(accessToken, "access token");
+    JOSEObjectType type = signedAccessToken.getHeader().getType();
+    if (type != null && !ACCESS_TOKEN_TYPES.contains(type)) {
+      throw new BadJOSEException("Signed access token rejected: Type " + type + " not accepted");
+    }
+    JWTClaimsSet claims = getClaims(signedAccessToken);
+    if (ID_TOKEN_CLAIMS.stream().anyMatch(claims.getClaims()::containsKey)
+        || clientId.getValue().equals(claims.getClaim("azp")) || claims.getAudience().contains(clientId.getValue())) {
+      throw new BadJWTException("Signed access token rejected: ID token not accepted");
+    }
+    new DefaultJWTClaimsVerifier<>(audience, new JWTClaimsSet.Builder().issuer(issuer.getValue()).build(),
+        new HashSet<>(Arrays.asList(JWTClaimNames.SUBJECT, JWTClaimNames.EXPIRATION_TIME))).verify(claims, null);
+    return claims;
+  }
+
+  private SignedJWT verifySignature(JWT jwt, String type) throws BadJOSEException, JOSEException {
+    if (!(jwt instanceof SignedJWT)) {
+      throw new BadJOSEException("Signed " + type + " expected");
+    }
+    SignedJWT signedJwt = (SignedJWT) jwt;
+    JWSHeader header = signedJwt.getHeader();
+    if (!algorithms.contains(header.getAlgorithm())) {
+      throw new BadJOSEException("Signed " + type + " rejected: Algorithm " + header.getAlgorithm()
+          + " not accepted");
+    }
+    List<JWSVerifier> verifiers = JWSAlgorithm.Family.HMAC_SHA.contains(header.getAlgorithm()) ? macVerifiers
+        : jwkSetSource.getVerifiers(header);
+    if (verifiers.isEmpty()) {
+      throw new BadJOSEException("Signed " + type + " rejected: No matching key found");
+    }
+    for (JWSVerifier verifier : verifiers) {
+      if (signedJwt.verify(verifier)) {
+        return signedJwt;
+      }
+    }
+    throw new BadJWSException("Signed " + type + " rejected: Invalid signature");
+  }
+
+  private static JWTClaimsSet getClaims(SignedJWT jwt) throws BadJOSEException {
+    try {
+      return jwt.getJWTClaimsSet();
+    } catch (java.text.ParseException e) {
+      throw new BadJOSEException("Parsing JWT claims failed", e);
+    }
+  }
+
+}
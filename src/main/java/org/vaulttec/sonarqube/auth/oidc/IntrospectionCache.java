@@ -0,0 +1,127 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.TokenIntrospectionSuccessResponse;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Cache of token introspection responses (RFC 7662) for opaque bearer tokens, so an API client reusing its token
+ * doesn't cause a request to the identity provider for every login.
+ * <p>
+ * The responses are kept by the SHA-256 hash of the token for the cache duration, or until the token expires if
+ * that's earlier. Concurrent lookups of the same token share a single introspection request. If the cache is full
+ * then the least recently used response is evicted.
+ */
+class IntrospectionCache {
+
+  static final int MAX_SIZE = 10_000;
+
+  private final LruCache<String, Entry> entries;
+  private final Map<String, CompletableFuture<TokenIntrospectionSuccessResponse>> pending = new ConcurrentHashMap<>();
+  private final long ttl;
+  private final LongSupplier clock;
+
+  IntrospectionCache(long ttl) {
+    this(MAX_SIZE, ttl, System::currentTimeMillis);
+  }
+
+  IntrospectionCache(int maxSize, long ttl, LongSupplier clock) {
+    this.entries = new LruCache<>(() -> maxSize);
+    this.ttl = ttl;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the cached introspection response of the given token, otherwise the one returned by the given loader.
+   * If another thread is already loading the response for the same token then its result is used instead.
+   */
+  TokenIntrospectionSuccessResponse get(String token, Supplier<TokenIntrospectionSuccessResponse> loader) {
+    String hash = BearerTokenCache.hash(token);
+    Entry entry = entries.get(hash);
+    if (entry != null) {
+      if (clock.getAsLong() < entry.expiresAt) {
+        return entry.response;
+      }
+      entries.remove(hash);
+    }
+    CompletableFuture<TokenIntrospectionSuccessResponse> future = new CompletableFuture<>();
+    CompletableFuture<TokenIntrospectionSuccessResponse> other = pending.putIfAbsent(hash, future);
+    if (other != null) {
+      return join(other);
+    }
+    try {
+      TokenIntrospectionSuccessResponse response = loader.get();
+      put(hash, response);
+      future.complete(response);
+      return response;
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      pending.remove(hash, future);
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void put(String hash, TokenIntrospectionSuccessResponse response) {
+    long now = clock.getAsLong();
+    long expiresAt = now + ttl;
+    Date expirationTime = response.getExpirationTime();
+    if (expirationTime != null) {
+      expiresAt = Math.min(expiresAt, expirationTime.getTime());
+    }
+    if (expiresAt <= now) {
+      return;
+    }
+    entries.put(hash, new Entry(response, expiresAt));
+  }
+
+  private static TokenIntrospectionSuccessResponse join(CompletableFuture<TokenIntrospectionSuccessResponse> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static class Entry {
+
+    private final TokenIntrospectionSuccessResponse response;
+    private final long expiresAt;
+
+    private Entry(TokenIntrospectionSuccessResponse response, long expiresAt) {
+      this.response = response;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
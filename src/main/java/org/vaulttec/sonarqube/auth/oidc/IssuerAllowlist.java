@@ -0,0 +1,76 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+
+/**
+ * Issuers accepted in multi-tenant mode. An entry is either an exact issuer URI or a template containing
+ * <code>*</code> as wildcard for a single path segment (or host label), e.g.
+ * <code>https://login.microsoftonline.com/*&#47;v2.0</code>. The wildcard only matches letters, digits, '-' and '_',
+ * so a template can't be tricked into accepting another host (e.g. via '?', '#' or '@').
+ * <p>
+ * Exact entries are looked up in a hash set, all templates are compiled into a single pattern.
+ */
+final class IssuerAllowlist {
+
+  private static final String WILDCARD = "[A-Za-z0-9_-]+";
+
+  private final List<String> entries;
+  private final Set<String> issuers = new HashSet<>();
+  private final Pattern pattern;
+
+  IssuerAllowlist(String[] entries) {
+    this.entries = Arrays.asList(entries);
+    StringJoiner templates = new StringJoiner("|");
+    for (String entry : entries) {
+      entry = entry.trim();
+      if (entry.contains("*")) {
+        StringJoiner template = new StringJoiner(WILDCARD, "(?:", ")");
+        for (String part : entry.split("\\*", -1)) {
+          template.add(Pattern.quote(part));
+        }
+        templates.add(template.toString());
+      } else if (!entry.isEmpty()) {
+        issuers.add(entry);
+      }
+    }
+    this.pattern = templates.length() == 0 ? null : Pattern.compile(templates.toString());
+  }
+
+  /**
+   * Returns <code>true</code> if this allowlist was created from the given entries.
+   */
+  boolean hasEntries(String[] entries) {
+    return this.entries.equals(Arrays.asList(entries));
+  }
+
+  boolean isEmpty() {
+    return issuers.isEmpty() && pattern == null;
+  }
+
+  boolean matches(String issuer) {
+    return issuers.contains(issuer) || (pattern != null && pattern.matcher(issuer).matches());
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers (and unregisters) the plugin's metrics with the platform MBean server.
+ */
+final class Jmx {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Jmx.class);
+
+  private static final String DOMAIN = "org.vaulttec.sonarqube.auth.oidc";
+
+  private Jmx() {
+  }
+
+  /**
+   * Registers the given MBean for the given identity provider, replacing any previously registered one.
+   */
+  static void register(String type, String providerKey, Object mbean) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = name(type, providerKey);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(mbean, name);
+    } catch (JMException e) {
+      LOGGER.warn("Registering MBean '{}' for provider '{}' failed", type, providerKey, e);
+    }
+  }
+
+  /**
+   * Unregisters the MBean of the given type for the given identity provider, if there is one.
+   */
+  static void unregister(String type, String providerKey) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = name(type, providerKey);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unregistering MBean '{}' for provider '{}' failed", type, providerKey, e);
+    }
+  }
+
+  static ObjectName name(String type, String providerKey) throws MalformedObjectNameException {
+    return new ObjectName(DOMAIN + ":type=" + type + ",provider=" + ObjectName.quote(providerKey));
+  }
+
+}
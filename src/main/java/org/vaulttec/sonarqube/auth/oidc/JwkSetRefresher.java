@@ -0,0 +1,126 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.util.ResourceRetriever;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background scheduler refreshing the JWK sets of an identity provider at the configured interval.
+ * <p>
+ * Every refresh is delayed by a random jitter of up to {@link #JITTER} of the interval, so the nodes of a SonarQube
+ * cluster (and the JWK sets of different tenants) aren't refreshed at the same time. JWK sets which haven't been used
+ * since their last refresh aren't refreshed anymore until they are used again.
+ */
+class JwkSetRefresher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JwkSetRefresher.class);
+
+  static final double JITTER = 0.2;
+
+  private final OidcConfiguration config;
+  private final LruCache<String, JwkSetSource> sources;
+  private ScheduledExecutorService scheduler;
+  private boolean stopped;
+
+  JwkSetRefresher(OidcConfiguration config) {
+    this.config = config;
+    // The JWK sets of the provider itself and of its most recently used tenants
+    this.sources = new LruCache<>(() -> config.tenantCacheSize() + 1);
+  }
+
+  /**
+   * Returns the JWK set source for the given URL, which is kept if the ID token validator using it is recreated.
+   */
+  JwkSetSource getSource(URL url, ResourceRetriever retriever) {
+    String key = url.toString();
+    synchronized (sources) {
+      JwkSetSource source = sources.get(key);
+      if (source == null) {
+        source = new JwkSetSource(url, retriever, config, this);
+        sources.put(key, source);
+      }
+      return source;
+    }
+  }
+
+  void schedule(JwkSetSource source) {
+    long interval = config.jwksRefreshInterval();
+    if (interval > 0) {
+      try {
+        scheduler().schedule(() -> refresh(source), jitter(interval), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug("Refresh of JWK set from {} not scheduled: {}", source.getUrl(), e.getMessage());
+      }
+    }
+  }
+
+  void refresh(JwkSetSource source) {
+    try {
+      if (!source.refreshIfUsed()) {
+        LOGGER.debug("Suspending refresh of unused JWK set from {}", source.getUrl());
+        return;
+      }
+      LOGGER.debug("Refreshed JWK set from {}", source.getUrl());
+    } catch (KeySourceException | RuntimeException e) {
+      LOGGER.warn("Refreshing JWK set from {} failed: {}", source.getUrl(), e.getMessage());
+    }
+    schedule(source);
+  }
+
+  /**
+   * Returns the given interval extended by a random jitter.
+   */
+  static long jitter(long interval) {
+    return interval + (long) (interval * JITTER * ThreadLocalRandom.current().nextDouble());
+  }
+
+  /**
+   * Stops the background refresh.
+   */
+  synchronized void stop() {
+    stopped = true;
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private synchronized ScheduledExecutorService scheduler() {
+    if (stopped) {
+      throw new RejectedExecutionException("JWK set refresh stopped");
+    }
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "oidc-jwks-refresh-" + config.providerKey());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return scheduler;
+  }
+
+}
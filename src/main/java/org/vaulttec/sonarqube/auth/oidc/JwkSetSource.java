@@ -0,0 +1,253 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.RemoteKeySourceException;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.Ed25519Verifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jose.util.ResourceRetriever;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.net.URL;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JWK set retrieved from the identity provider's JWK set URL.
+ * <p>
+ * The JWK set is refreshed in the background by the {@link JwkSetRefresher}, so validating an ID token doesn't block
+ * on a download. It's only refreshed synchronously if it's missing or older than the metadata cache duration, or if
+ * no matching key is found (e.g. after a key rotation which hasn't been picked up yet). The latter is limited to once
+ * per {@link #MIN_REFRESH_INTERVAL}.
+ * <p>
+ * The signature verifiers are cached by the thumbprint of their key, so they're created only once per key and reused
+ * across refreshes of the JWK set. A verifier is evicted when its key disappears from the JWK set. Every JWK set
+ * snapshot additionally indexes the verifiers by algorithm and key ID, so looking them up doesn't require matching
+ * the keys again.
+ */
+class JwkSetSource implements JWKSource<SecurityContext> {
+
+  static final long MIN_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+  private final URL url;
+  private final ResourceRetriever retriever;
+  private final OidcConfiguration config;
+  private final JwkSetRefresher refresher;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Map<String, JWSVerifier> verifiers = new ConcurrentHashMap<>();
+  private volatile Snapshot snapshot;
+  private volatile boolean used;
+
+  JwkSetSource(URL url, ResourceRetriever retriever, OidcConfiguration config, JwkSetRefresher refresher) {
+    this.url = url;
+    this.retriever = retriever;
+    this.config = config;
+    this.refresher = refresher;
+  }
+
+  @Override
+  public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) throws KeySourceException {
+    Snapshot current = getSnapshot();
+    List<JWK> keys = jwkSelector.select(current.jwkSet);
+    if (keys.isEmpty() && current.isOlderThan(MIN_REFRESH_INTERVAL)) {
+      keys = jwkSelector.select(refresh(current).jwkSet);
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the verifiers for the keys matching the algorithm and key ID of the given JWS header.
+   */
+  List<JWSVerifier> getVerifiers(JWSHeader header) throws KeySourceException, JOSEException {
+    Snapshot current = getSnapshot();
+    List<JWSVerifier> verifiers = current.getVerifiers(header);
+    if (verifiers.isEmpty() && current.isOlderThan(MIN_REFRESH_INTERVAL)) {
+      verifiers = refresh(current).getVerifiers(header);
+    }
+    return verifiers;
+  }
+
+  /**
+   * Downloads the JWK set if it's missing or older than the metadata cache duration, so the next validation doesn't
+   * block on the download.
+   */
+  void prefetch() throws KeySourceException {
+    getSnapshot();
+  }
+
+  URL getUrl() {
+    return url;
+  }
+
+  /**
+   * Refreshes the JWK set in the background. Returns <code>false</code> if the JWK set wasn't used since the last
+   * background refresh, i.e. the background refresh is suspended until it's used again.
+   */
+  boolean refreshIfUsed() throws KeySourceException {
+    if (!used) {
+      scheduled.set(false);
+      return false;
+    }
+    used = false;
+    refresh(snapshot);
+    return true;
+  }
+
+  private Snapshot getSnapshot() throws KeySourceException {
+    used = true;
+    if (scheduled.compareAndSet(false, true)) {
+      refresher.schedule(this);
+    }
+    Snapshot current = snapshot;
+    if (current == null || current.isOlderThan(TimeUnit.MILLISECONDS.toNanos(config.metadataCacheTtl()))) {
+      current = refresh(current);
+    }
+    return current;
+  }
+
+  /**
+   * Downloads the JWK set unless it has been replaced since the given snapshot was taken (by a concurrent refresh).
+   */
+  private synchronized Snapshot refresh(Snapshot observed) throws KeySourceException {
+    Snapshot current = snapshot;
+    if (current != observed) {
+      return current;
+    }
+    try {
+      Resource resource = retriever.retrieveResource(url);
+      current = new Snapshot(JWKSet.parse(resource.getContent()), SharedCache.getAge(resource));
+      evictVerifiers(current.jwkSet);
+    } catch (IOException e) {
+      throw new RemoteKeySourceException("Couldn't retrieve JWK set from " + url + ": " + e.getMessage(), e);
+    } catch (ParseException | JOSEException e) {
+      throw new KeySourceException("Couldn't parse JWK set from " + url + ": " + e.getMessage(), e);
+    }
+    snapshot = current;
+    return current;
+  }
+
+  /**
+   * Evicts the verifiers of the keys which are no longer contained in the given JWK set. A verifier which is created
+   * concurrently for an outdated snapshot may survive the eviction, but it's evicted with the next refresh.
+   */
+  private void evictVerifiers(JWKSet jwkSet) throws JOSEException {
+    Set<String> thumbprints = new HashSet<>();
+    for (JWK jwk : jwkSet.getKeys()) {
+      thumbprints.add(jwk.computeThumbprint().toString());
+    }
+    verifiers.keySet().retainAll(thumbprints);
+  }
+
+  @CheckForNull
+  private JWSVerifier getVerifier(JWK jwk) throws JOSEException {
+    String thumbprint = jwk.computeThumbprint().toString();
+    JWSVerifier verifier = verifiers.get(thumbprint);
+    if (verifier == null) {
+      verifier = createVerifier(jwk);
+      if (verifier != null) {
+        JWSVerifier existing = verifiers.putIfAbsent(thumbprint, verifier);
+        verifier = existing != null ? existing : verifier;
+      }
+    }
+    return verifier;
+  }
+
+  @CheckForNull
+  private static JWSVerifier createVerifier(JWK jwk) throws JOSEException {
+    if (jwk instanceof RSAKey) {
+      return new RSASSAVerifier((RSAKey) jwk);
+    } else if (jwk instanceof ECKey) {
+      return new ECDSAVerifier((ECKey) jwk);
+    } else if (jwk instanceof OctetKeyPair && Curve.Ed25519.equals(((OctetKeyPair) jwk).getCurve())) {
+      return new Ed25519Verifier((OctetKeyPair) jwk);
+    }
+    return null;
+  }
+
+  private class Snapshot {
+
+    private final JWKSet jwkSet;
+    private final long retrievedAt;
+    private final Map<String, List<JWSVerifier>> verifiers = new ConcurrentHashMap<>();
+
+    /**
+     * The JWK set may have been downloaded by another node the given time (in milliseconds) ago, so it expires
+     * earlier.
+     */
+    private Snapshot(JWKSet jwkSet, long age) {
+      this.jwkSet = jwkSet;
+      this.retrievedAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(age);
+    }
+
+    private boolean isOlderThan(long nanos) {
+      return System.nanoTime() - retrievedAt >= nanos;
+    }
+
+    private List<JWSVerifier> getVerifiers(JWSHeader header) throws JOSEException {
+      String key = header.getAlgorithm() + " " + header.getKeyID();
+      List<JWSVerifier> cached = verifiers.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      List<JWSVerifier> created = new ArrayList<>();
+      JWKMatcher matcher = JWKMatcher.forJWSHeader(header);
+      if (matcher != null) {
+        for (JWK jwk : new JWKSelector(matcher).select(jwkSet)) {
+          JWSVerifier verifier = getVerifier(jwk);
+          if (verifier != null) {
+            created.add(verifier);
+          }
+        }
+      }
+      // The number of cached entries is limited by the (algorithm, key ID) combinations of the JWK set, as tokens
+      // with unknown key IDs don't match any key
+      if (created.isEmpty()) {
+        return created;
+      }
+      List<JWSVerifier> result = Collections.unmodifiableList(created);
+      cached = verifiers.putIfAbsent(key, result);
+      return cached != null ? cached : result;
+    }
+  }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.openid.connect.sdk.Nonce;
+
+import javax.annotation.CheckForNull;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded store of the nonces of the pending logins, keyed by the login's CSRF state.
+ * <p>
+ * Expiry is driven by a hashed timing wheel: every nonce is also queued in the wheel slot of the tick it was created
+ * in. When the clock advances to a new tick, the single thread winning the CAS on the current tick drains the slots
+ * whose nonces have expired in the meantime. So expiry needs neither a global lock nor a scan of all nonces, and a
+ * nonce is removed at the latest one tick after it has expired. The map itself is a {@link ConcurrentHashMap}, which
+ * locks only a single bin on updates.
+ * <p>
+ * A nonce can be taken only once. If the maximum number of pending logins is reached then the oldest pending login is
+ * evicted from the wheel, so a flood of unauthenticated login requests can't lock out every user.
+ */
+class NonceStore {
+
+  static final long TTL = TimeUnit.MINUTES.toNanos(10);
+  static final long TICK = TimeUnit.SECONDS.toNanos(1);
+  static final int MAX_SIZE = 100_000;
+
+  private final long ttlTicks;
+  private final long tickNanos;
+  private final int maxSize;
+  private final LongSupplier clock;
+  private final Map<String, Entry> nonces = new ConcurrentHashMap<>();
+  private final Queue<Entry>[] wheel;
+  private final AtomicLong currentTick;
+  private final AtomicInteger size = new AtomicInteger();
+
+  NonceStore() {
+    this(TTL, TICK, MAX_SIZE, System::nanoTime);
+  }
+
+  @SuppressWarnings("unchecked")
+  NonceStore(long ttlNanos, long tickNanos, int maxSize, LongSupplier clock) {
+    this.ttlTicks = Math.max(1, ttlNanos / tickNanos);
+    this.tickNanos = tickNanos;
+    this.maxSize = maxSize;
+    this.clock = clock;
+    // One more slot than ticks per TTL, so the slot being filled is never the one being expired
+    this.wheel = new Queue[(int) ttlTicks + 1];
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new ConcurrentLinkedQueue<>();
+    }
+    this.currentTick = new AtomicLong(tick());
+  }
+
+  /**
+   * Creates a new nonce for the login with the given state.
+   */
+  Nonce create(String state) {
+    long tick = advance();
+    if (size.incrementAndGet() > maxSize) {
+      evictOldest(tick);
+    }
+    Entry entry = new Entry(state, new Nonce(), tick);
+    Entry replaced = nonces.put(state, entry);
+    if (replaced != null) {
+      size.decrementAndGet();
+    }
+    wheel[slot(tick)].add(entry);
+    return entry.nonce;
+  }
+
+  /**
+   * Removes and returns the nonce of the login with the given state, or <code>null</code> if there is none or it has
+   * expired.
+   */
+  @CheckForNull
+  Nonce take(String state) {
+    long tick = advance();
+    Entry entry = nonces.remove(state);
+    if (entry == null) {
+      return null;
+    }
+    size.decrementAndGet();
+    return tick - entry.tick > ttlTicks ? null : entry.nonce;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * Moves the wheel to the current tick and expires the nonces of the slots passed by. Returns the current tick.
+   */
+  private long advance() {
+    long now = tick();
+    long last = currentTick.get();
+    if (now > last && currentTick.compareAndSet(last, now)) {
+      // A slot is reused for tick t + ttlTicks + 1, so it holds the nonces created ttlTicks + 1 ticks ago
+      for (long tick = Math.max(last + 1, now - wheel.length + 1); tick <= now; tick++) {
+        expire(wheel[slot(tick)], now);
+      }
+    }
+    return now;
+  }
+
+  private void expire(Queue<Entry> slot, long now) {
+    Entry entry;
+    while ((entry = slot.peek()) != null && now - entry.tick > ttlTicks) {
+      slot.poll();
+      if (nonces.remove(entry.state, entry)) {
+        size.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest pending nonce, starting with the slot of the oldest tick not expired yet.
+   */
+  private void evictOldest(long now) {
+    for (long tick = now - ttlTicks; tick <= now; tick++) {
+      Queue<Entry> slot = wheel[slot(tick)];
+      Entry entry;
+      while ((entry = slot.poll()) != null) {
+        if (nonces.remove(entry.state, entry)) {
+          size.decrementAndGet();
+          return;
+        }
+      }
+    }
+  }
+
+  private long tick() {
+    return clock.getAsLong() / tickNanos;
+  }
+
+  private int slot(long tick) {
+    return (int) Math.floorMod(tick, (long) wheel.length);
+  }
+
+  private static class Entry {
+
+    private final String state;
+    private final Nonce nonce;
+    private final long tick;
+
+    private Entry(String state, Nonce nonce, long tick) {
+      this.state = state;
+      this.nonce = nonce;
+      this.tick = tick;
+    }
+  }
+
+}
@@ -19,84 +19,313 @@ package org.vaulttec.sonarqube.auth.oidc;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.KeySourceException;
 import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jose.util.ResourceRetriever;
+import com.nimbusds.jwt.EncryptedJWT;
 import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.JWTParser;
 import com.nimbusds.oauth2.sdk.*;
 import com.nimbusds.oauth2.sdk.ResponseType.Value;
+import com.nimbusds.oauth2.sdk.auth.ClientAuthentication;
 import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.auth.PKITLSClientAuthentication;
 import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.oauth2.sdk.id.Audience;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.oauth2.sdk.id.Issuer;
 import com.nimbusds.oauth2.sdk.id.State;
+import com.nimbusds.oauth2.sdk.id.Subject;
+import com.nimbusds.oauth2.sdk.pkce.CodeChallengeMethod;
+import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
 import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.util.JSONObjectUtils;
 import com.nimbusds.openid.connect.sdk.*;
 import com.nimbusds.openid.connect.sdk.AuthenticationRequest.Builder;
 import com.nimbusds.openid.connect.sdk.claims.UserInfo;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
-import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+import net.minidev.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonar.api.Startable;
 import org.sonar.api.server.ServerSide;
 import org.sonar.api.server.http.HttpRequest;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 @ServerSide
-public class OidcClient {
+public class OidcClient implements Startable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OidcClient.class);
 
   private static final ResponseType RESPONSE_TYPE = new ResponseType(Value.CODE);
+  private static final String BEARER_PREFIX = "Bearer ";
+
+  static final long WARM_UP_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+  static final int TENANT_RESOLUTIONS_PER_SECOND = 5;
+
   private final OidcConfiguration config;
+  private final RequestLimiter limiter;
+  private final RetryPolicy retryPolicy;
+  private final CircuitBreaker circuitBreaker;
+  private final FailureCache<IllegalStateException> providerMetadataFailures;
+  private final FailureCache<IOException> jwkSetFailures;
+  private final LruCache<String, CachedValue<IdTokenVerifier>> tenantVerifiers;
+  private final TokenBucket tenantResolutions = new TokenBucket(TENANT_RESOLUTIONS_PER_SECOND);
+  private final Map<String, CompletableFuture<IdTokenVerifier>> pendingTenantResolutions = new ConcurrentHashMap<>();
+  private final SharedCache sharedCache;
+  private final JwkSetRefresher jwkSetRefresher;
+  private final TlsContext tlsContext;
+  private final NonceStore nonceStore;
+  private final ReplayGuard replayGuard;
+  private final ResourceRetriever jwkSetRetriever = this::retrieveJwkSet;
+  private volatile CachedValue<OIDCProviderMetadata> providerMetadata;
+  private volatile CachedValue<IdTokenVerifier> verifier;
+  private volatile CachedValue<IdTokenDecrypter> decrypter;
+  private volatile CachedValue<ClientAssertionPool> clientAssertionPool;
+  private volatile CachedValue<BearerTokenCache> bearerTokenCache;
+  private volatile CachedValue<IntrospectionCache> introspectionCache;
+  private ScheduledExecutorService clientAssertionSigner;
+  private ExecutorService warmUpExecutor;
+  private boolean stopped;
+  private final AtomicLong lastWarmUp = new AtomicLong(System.nanoTime() - WARM_UP_INTERVAL);
+  private volatile IssuerAllowlist tenantIssuers;
+  // The retry deadline shared by all requests of the login processed by the current thread
+  private final ThreadLocal<Long> loginDeadline = new ThreadLocal<>();
 
   public OidcClient(OidcConfiguration config) {
     this.config = config;
+    this.limiter = new RequestLimiter(config);
+    this.retryPolicy = new RetryPolicy(config);
+    this.circuitBreaker = new CircuitBreaker(config);
+    this.providerMetadataFailures = new FailureCache<>(config);
+    this.jwkSetFailures = new FailureCache<>(config);
+    this.tenantVerifiers = new LruCache<>(config::tenantCacheSize);
+    this.sharedCache = new SharedCache(config);
+    this.jwkSetRefresher = new JwkSetRefresher(config);
+    this.tlsContext = new TlsContext(config);
+    this.nonceStore = new NonceStore();
+    this.replayGuard = new ReplayGuard(config);
+    Jmx.register("RequestLimiter", config.providerKey(), limiter);
+    Jmx.register("CircuitBreaker", config.providerKey(), circuitBreaker);
+  }
+
+  @Override
+  public void start() {
+    // The caches and background tasks are created on demand
+  }
+
+  /**
+   * Stops the background tasks (JWK set refresh, warm-up and client assertion signing) and unregisters the MBeans, so
+   * nothing is left behind when the plugin is reloaded.
+   */
+  @Override
+  public void stop() {
+    synchronized (this) {
+      stopped = true;
+      if (warmUpExecutor != null) {
+        warmUpExecutor.shutdownNow();
+      }
+      if (clientAssertionPool != null) {
+        clientAssertionPool.value.close();
+      }
+      if (clientAssertionSigner != null) {
+        clientAssertionSigner.shutdownNow();
+      }
+    }
+    jwkSetRefresher.stop();
+    Jmx.unregister("RequestLimiter", config.providerKey());
+    Jmx.unregister("CircuitBreaker", config.providerKey());
+  }
+
+  /**
+   * Returns <code>false</code> if requests to the identity provider are currently suspended by the circuit breaker.
+   */
+  public boolean isIdentityProviderAvailable() {
+    return circuitBreaker.isCallPermitted();
+  }
+
+  /**
+   * Prepares the callback of a login in the background while the user authenticates at the identity provider: the
+   * provider metadata is refreshed if it's about to expire, the JWK set is downloaded if it's missing or outdated, and
+   * a keep-alive connection to the token endpoint is opened. The warm-up is skipped if another one was started within
+   * the last {@link #WARM_UP_INTERVAL} nanoseconds or the identity provider is unavailable.
+   */
+  public void warmUp() {
+    long last = lastWarmUp.get();
+    long now = System.nanoTime();
+    if (now - last < WARM_UP_INTERVAL || !isIdentityProviderAvailable() || !lastWarmUp.compareAndSet(last, now)) {
+      return;
+    }
+    try {
+      warmUpExecutor().execute(this::doWarmUp);
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Warm-up rejected", e);
+    }
+  }
+
+  private void doWarmUp() {
+    try {
+      String issuerUri = config.issuerUri();
+      CachedValue<OIDCProviderMetadata> cached = providerMetadata;
+      if (cached != null && cached.isValid(issuerUri)
+          && cached.expiresWithin(TimeUnit.MILLISECONDS.toNanos(config.metadataCacheTtl()) / 10)) {
+        LOGGER.debug("Refreshing provider metadata before it expires");
+        providerMetadata = retrieveProviderMetadata(issuerUri, getTenantIssuers().isEmpty());
+      }
+      OIDCProviderMetadata metadata = getProviderMetadata();
+      // The tenant of a multi-tenant provider (and its JWK set) isn't known before the callback
+      if (isIdTokenSigned() && getTenantIssuers().isEmpty()) {
+        getVerifier(metadata).prefetchKeys();
+      }
+      URI tokenEndpointURI = getTokenEndpointURI(metadata);
+      LOGGER.debug("Opening connection to {}", tokenEndpointURI);
+      // The response (e.g. 'Method not allowed') is ignored, the connection is kept alive for the token request
+      send(RequestType.WARM_UP, new HTTPRequest(HTTPRequest.Method.GET, tokenEndpointURI));
+    } catch (IOException | KeySourceException | RuntimeException e) {
+      LOGGER.debug("Warm-up failed", e);
+    }
+  }
+
+  private synchronized ExecutorService warmUpExecutor() {
+    if (stopped) {
+      throw new RejectedExecutionException("OIDC client stopped");
+    }
+    if (warmUpExecutor == null) {
+      warmUpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "oidc-warm-up-" + config.providerKey());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return warmUpExecutor;
   }
 
   public AuthenticationRequest createAuthenticationRequest(String callbackUrl, String state) {
+    return createAuthenticationRequest(callbackUrl, state, null);
+  }
+
+  /**
+   * Returns a new PKCE code verifier, or <code>null</code> if PKCE is disabled.
+   */
+  @CheckForNull
+  public CodeVerifier createCodeVerifier() {
+    return config.isPkceEnabled() ? Pkce.newCodeVerifier() : null;
+  }
+
+  /**
+   * Creates the authentication request with the given state. If a PKCE code verifier is given then its code challenge
+   * is sent as well.
+   */
+  public AuthenticationRequest createAuthenticationRequest(String callbackUrl, String state,
+      @Nullable CodeVerifier codeVerifier) {
     AuthenticationRequest request;
     LOGGER.debug("Creating authentication request");
     OIDCProviderMetadata providerMetadata = getProviderMetadata();
     try {
       Builder builder = new AuthenticationRequest.Builder(RESPONSE_TYPE, getScope(), getClientId(),
           new URI(callbackUrl));
+      if (config.isNonceEnabled()) {
+        builder.nonce(nonceStore.create(state));
+      }
+      if (codeVerifier != null) {
+        builder.codeChallenge(Pkce.getCodeChallenge(codeVerifier), CodeChallengeMethod.S256);
+      }
       request = builder.endpointURI(providerMetadata.getAuthorizationEndpointURI()).state(State.parse(state)).build();
     } catch (URISyntaxException e) {
       throw new IllegalStateException("Creating new authentication request failed", e);
     }
+    URI pushedAuthorizationRequestEndpointURI = getPushedAuthorizationRequestEndpointURI(providerMetadata);
+    if (config.isPushedAuthorizationRequests() && pushedAuthorizationRequestEndpointURI != null) {
+      request = pushAuthenticationRequest(pushedAuthorizationRequestEndpointURI, request, providerMetadata);
+    }
     LOGGER.debug("Authentication request URI: {}", request.toURI());
     return request;
   }
 
+  /**
+   * Pushes the parameters of the given authentication request to the identity provider (RFC 9126) and returns the
+   * authentication request referring to them via the returned request URI, so the redirect URL only contains the
+   * request URI and the client ID.
+   */
+  private AuthenticationRequest pushAuthenticationRequest(URI endpointURI, AuthenticationRequest request,
+      OIDCProviderMetadata providerMetadata) {
+    LOGGER.debug("Pushing authentication request to {}", endpointURI);
+    PushedAuthorizationResponse response;
+    try {
+      // The identity provider has to accept the token endpoint as audience of client assertions (RFC 9126), so the
+      // pre-signed client assertions can be shared with the token requests
+      URI tokenEndpointURI = getTokenEndpointURI(providerMetadata);
+      HTTPResponse httpResponse = send(RequestType.PUSHED_AUTHORIZATION, () -> new PushedAuthorizationRequest(
+          endpointURI, getClientAuthentication(tokenEndpointURI), request).toHTTPRequest());
+      LOGGER.debug("Pushed authorization response content: {}", httpResponse.getContent());
+      response = PushedAuthorizationResponse.parse(httpResponse);
+    } catch (ParseException e) {
+      throw new IllegalStateException("Pushing authentication request failed", e);
+    } catch (IOException e) {
+      throw new IllegalStateException("Pushing authentication request failed: "
+          + "Identity provider not reachable - check network proxy setting 'http.nonProxyHosts' in 'sonar.properties'");
+    }
+    if (!response.indicatesSuccess()) {
+      ErrorObject errorObject = response.toErrorResponse().getErrorObject();
+      if (errorObject == null || errorObject.getCode() == null) {
+        throw new IllegalStateException("Pushed authorization request failed: No error code returned");
+      }
+      throw new IllegalStateException("Pushed authorization request failed: " + errorObject.toJSONObject());
+    }
+    return new AuthenticationRequest.Builder(response.toSuccessResponse().getRequestURI(), getClientId())
+        .endpointURI(request.getEndpointURI()).build();
+  }
+
+  /**
+   * Returns the provider's pushed authorization request endpoint (or its mutual TLS endpoint alias for the client
+   * authentication method 'tls_client_auth'), or <code>null</code> if the provider doesn't support PAR.
+   */
+  @CheckForNull
+  private URI getPushedAuthorizationRequestEndpointURI(OIDCProviderMetadata providerMetadata) {
+    if (OidcConfiguration.CLIENT_AUTH_METHOD_TLS.equals(config.clientAuthMethod())
+        && providerMetadata.getMtlsEndpointAliases() != null
+        && providerMetadata.getMtlsEndpointAliases().getPushedAuthorizationRequestEndpointURI() != null) {
+      return providerMetadata.getMtlsEndpointAliases().getPushedAuthorizationRequestEndpointURI();
+    }
+    return providerMetadata.getPushedAuthorizationRequestEndpointURI();
+  }
+
   public AuthorizationCode getAuthorizationCode(HttpRequest callbackRequest) {
     LOGGER.debug("Retrieving authorization code from callback request's query parameters: {}",
         callbackRequest.getQueryString());
     AuthenticationResponse authResponse;
     try {
       URI uri = new URI(callbackRequest.getRequestURL());
-
-      Map<String, List<String>> queryParams = new HashMap<>();
-      String queryString = callbackRequest.getQueryString();
-      if (queryString != null && !queryString.isEmpty() ) {
-        String[] pairs = queryString.split("&");
-        for (String pair: pairs) {
-          int idx = pair.indexOf("=");
-          if (idx > 0) {
-            String key = URLDecoder.decode(pair.substring(0,idx), "UTF-8");
-            String value = URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
-            queryParams.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
-          }
-        }
-      }
-     authResponse = AuthenticationResponseParser.parse(uri, queryParams);
+      authResponse = AuthenticationResponseParser.parse(uri, getQueryParameters(callbackRequest));
     } catch (ParseException | URISyntaxException | UnsupportedEncodingException e) {
       throw new IllegalStateException("Error while processing callback request", e);
     }
@@ -111,10 +340,100 @@ public class OidcClient {
     return authorizationCode;
   }
 
+  /**
+   * Returns (and removes) the nonce sent with the authentication request of the given callback request, or
+   * <code>null</code> if nonces are disabled.
+   */
+  @CheckForNull
+  public Nonce getNonce(HttpRequest callbackRequest) {
+    if (!config.isNonceEnabled()) {
+      return null;
+    }
+    List<String> state;
+    try {
+      state = getQueryParameters(callbackRequest).get("state");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("Error while processing callback request", e);
+    }
+    Nonce nonce = state == null ? null : nonceStore.take(state.get(0));
+    if (nonce == null) {
+      throw new IllegalStateException("Invalid authentication response: Login unknown or expired (no nonce found "
+          + "for state)");
+    }
+    return nonce;
+  }
+
+  /**
+   * Returns the PKCE code verifier of the login (kept in a cookie) for the given callback request, or
+   * <code>null</code> if PKCE is disabled.
+   */
+  @CheckForNull
+  public CodeVerifier getCodeVerifier(HttpRequest callbackRequest) {
+    if (!config.isPkceEnabled()) {
+      return null;
+    }
+    CodeVerifier codeVerifier = Pkce.getCodeVerifier(config.providerKey(), callbackRequest);
+    if (codeVerifier == null) {
+      throw new IllegalStateException("Invalid authentication response: Login unknown or expired (no PKCE code "
+          + "verifier found)");
+    }
+    return codeVerifier;
+  }
+
+  private static Map<String, List<String>> getQueryParameters(HttpRequest request)
+      throws UnsupportedEncodingException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    String queryString = request.getQueryString();
+    if (queryString != null && !queryString.isEmpty()) {
+      String[] pairs = queryString.split("&");
+      for (String pair : pairs) {
+        int idx = pair.indexOf("=");
+        if (idx > 0) {
+          String key = URLDecoder.decode(pair.substring(0, idx), "UTF-8");
+          String value = URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
+          queryParams.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+      }
+    }
+    return queryParams;
+  }
+
   public UserInfo getUserInfo(AuthorizationCode authorizationCode, String callbackUrl) {
+    return getUserInfo(authorizationCode, callbackUrl, null);
+  }
+
+  /**
+   * Returns the user info for the given authorization code. If an expected nonce is given then the ID token must
+   * contain it.
+   */
+  public UserInfo getUserInfo(AuthorizationCode authorizationCode, String callbackUrl, @Nullable Nonce nonce) {
+    return getUserInfo(authorizationCode, callbackUrl, nonce, null);
+  }
+
+  /**
+   * Returns the user info for the given authorization code. If an expected nonce is given then the ID token must
+   * contain it. If a PKCE code verifier is given then it's sent with the token request.
+   */
+  public UserInfo getUserInfo(AuthorizationCode authorizationCode, String callbackUrl, @Nullable Nonce nonce,
+      @Nullable CodeVerifier codeVerifier) {
+    return withLoginDeadline(() -> getUserInfoForCode(authorizationCode, callbackUrl, nonce, codeVerifier));
+  }
+
+  private UserInfo getUserInfoForCode(AuthorizationCode authorizationCode, String callbackUrl, @Nullable Nonce nonce,
+      @Nullable CodeVerifier codeVerifier) {
     LOGGER.debug("Getting user info for authorization code");
     OIDCProviderMetadata providerMetadata = getProviderMetadata();
-    OIDCTokens oidcTokens = getOidcTokens(authorizationCode, callbackUrl, providerMetadata);
+    // The code is only registered once the token endpoint has seen it, so a login which fails locally can be retried
+    if (replayGuard.isEnabled() && replayGuard.contains(getReplayKey(authorizationCode))) {
+      throw new IllegalStateException("Invalid authentication response: Authorization code has already been used");
+    }
+    OIDCTokens oidcTokens = getOidcTokens(authorizationCode, callbackUrl, codeVerifier, providerMetadata);
+    if (nonce != null) {
+      validateNonce(oidcTokens.getIDToken(), nonce);
+    }
+    if (replayGuard.isEnabled()) {
+      validateNotReplayed(oidcTokens.getIDToken());
+    }
 
     UserInfo userInfo;
     try {
@@ -122,10 +441,38 @@ public class OidcClient {
     } catch (java.text.ParseException e) {
       throw new IllegalStateException("Parsing ID token failed", e);
     }
+    userInfo = completeUserInfo(providerMetadata, oidcTokens.getIDToken(), userInfo, oidcTokens.getBearerAccessToken());
+
+    LOGGER.debug("User info: {}", userInfo.toJSONObject());
+    return userInfo;
+  }
+
+  /**
+   * Runs the given login with a single retry deadline for all of its requests (provider metadata, JWK set, token and
+   * UserInfo), so retries can't extend the login beyond the configured retry deadline.
+   */
+  private UserInfo withLoginDeadline(Supplier<UserInfo> login) {
+    if (loginDeadline.get() != null) {
+      return login.get();
+    }
+    loginDeadline.set(retryPolicy.newDeadline());
+    try {
+      return login.get();
+    } finally {
+      loginDeadline.remove();
+    }
+  }
+
+  /**
+   * Returns the given user info, or the one from the UserInfo endpoint if it lacks the user's name or groups. A signed
+   * UserInfo response is validated with the verifier of the given token (ID token or bearer token).
+   */
+  private UserInfo completeUserInfo(OIDCProviderMetadata providerMetadata, @Nullable JWT token, UserInfo userInfo,
+      BearerAccessToken accessToken) {
     if (((userInfo.getName() == null) && (userInfo.getPreferredUsername() == null))
         || (config.syncGroups() && userInfo.getClaim(config.syncGroupsClaimName()) == null)) {
       UserInfoResponse userInfoResponse = getUserInfoResponse(providerMetadata.getUserInfoEndpointURI(),
-          oidcTokens.getBearerAccessToken());
+          accessToken);
       if (userInfoResponse instanceof UserInfoErrorResponse) {
         ErrorObject errorObject = ((UserInfoErrorResponse) userInfoResponse).getErrorObject();
         if (errorObject == null || errorObject.getCode() == null) {
@@ -135,17 +482,194 @@ public class OidcClient {
           throw new IllegalStateException("UserInfo request failed: " + errorObject.toJSONObject());
         }
       }
-      userInfo = ((UserInfoSuccessResponse) userInfoResponse).getUserInfo();
+      UserInfoSuccessResponse userInfoSuccessResponse = (UserInfoSuccessResponse) userInfoResponse;
+      if (userInfoSuccessResponse.getUserInfo() != null) {
+        return userInfoSuccessResponse.getUserInfo();
+      }
+      return validateUserInfo(providerMetadata, token, userInfo.getSubject(), userInfoSuccessResponse.getUserInfoJWT());
+    }
+    return userInfo;
+  }
+
+  /**
+   * Returns the bearer token from the 'Authorization' header of the given request, or <code>null</code> if there is
+   * none or bearer token login is disabled.
+   */
+  @CheckForNull
+  public String getBearerToken(HttpRequest request) {
+    if (!config.isBearerTokenLogin()) {
+      return null;
+    }
+    String authorization = request.getHeader("Authorization");
+    if (authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+      return null;
+    }
+    String token = authorization.substring(BEARER_PREFIX.length()).trim();
+    return token.isEmpty() ? null : token;
+  }
+
+  /**
+   * Returns the user info for the given bearer token (a signed JWT access token issued by the identity provider, or
+   * an opaque token if introspection is enabled). Validated tokens are cached until they expire, so repeated logins
+   * with the same token skip the signature verification (or introspection request).
+   */
+  public UserInfo getUserInfo(String bearerToken) {
+    return withLoginDeadline(() -> getUserInfoForBearerToken(bearerToken));
+  }
+
+  private UserInfo getUserInfoForBearerToken(String bearerToken) {
+    LOGGER.debug("Getting user info for bearer token");
+    String audience = config.bearerTokenAudience();
+    if (audience == null) {
+      throw new IllegalStateException("Bearer token can't be validated: No audience configured "
+          + "(see setting 'Bearer token audience')");
+    }
+    OIDCProviderMetadata providerMetadata = getProviderMetadata();
+    JWT token;
+    try {
+      token = JWTParser.parse(bearerToken);
+    } catch (java.text.ParseException e) {
+      if (config.isBearerTokenIntrospection()) {
+        return getIntrospectedUserInfo(providerMetadata, bearerToken, audience);
+      }
+      throw new IllegalStateException("Invalid bearer token: Not a JWT", e);
+    }
+    if (!isIdTokenSigned()) {
+      throw new IllegalStateException("Bearer token can't be validated (see setting 'ID token signature algorithm')");
+    }
+    BearerTokenCache cache = getBearerTokenCache(providerMetadata, audience);
+    JWTClaimsSet claims = cache.get(bearerToken);
+    if (claims == null) {
+      try {
+        claims = getVerifier(providerMetadata, token).validateAccessToken(token, audience);
+      } catch (java.text.ParseException e) {
+        throw new IllegalStateException("Parsing bearer token failed", e);
+      } catch (BadJOSEException e) {
+        throw new IllegalStateException("Invalid bearer token", e);
+      } catch (JOSEException e) {
+        throw new IllegalStateException("Validating bearer token failed", e);
+      }
+      cache.put(bearerToken, claims);
     }
+    UserInfo userInfo = completeUserInfo(providerMetadata, token, new UserInfo(claims),
+        new BearerAccessToken(bearerToken));
+    LOGGER.debug("User info: {}", userInfo.toJSONObject());
+    return userInfo;
+  }
 
+  /**
+   * Returns the user info for the given opaque bearer token from the (cached) response of the identity provider's
+   * token introspection endpoint (RFC 7662).
+   */
+  private UserInfo getIntrospectedUserInfo(OIDCProviderMetadata providerMetadata, String bearerToken,
+      String requiredAudience) {
+    URI endpointURI = getIntrospectionEndpointURI(providerMetadata);
+    if (endpointURI == null) {
+      throw new IllegalStateException("Bearer token can't be introspected: No introspection endpoint provided by "
+          + "identity provider");
+    }
+    TokenIntrospectionSuccessResponse response = getIntrospectionCache(endpointURI).get(bearerToken,
+        () -> introspect(endpointURI, bearerToken, providerMetadata));
+    if (!response.isActive()) {
+      throw new IllegalStateException("Invalid bearer token: Token is not active");
+    }
+    List<Audience> audience = response.getAudience();
+    if (audience != null && !audience.contains(new Audience(requiredAudience))) {
+      throw new IllegalStateException("Invalid bearer token: Audience not accepted");
+    }
+    if (response.getSubject() == null) {
+      throw new IllegalStateException("Invalid bearer token: No subject returned by introspection");
+    }
+    UserInfo userInfo = new UserInfo(response.getSubject());
+    userInfo.putAll(response.toJSONObject());
+    if (userInfo.getPreferredUsername() == null && response.getUsername() != null) {
+      userInfo.setPreferredUsername(response.getUsername());
+    }
+    userInfo = completeUserInfo(providerMetadata, null, userInfo, new BearerAccessToken(bearerToken));
     LOGGER.debug("User info: {}", userInfo.toJSONObject());
     return userInfo;
   }
 
-  private OIDCTokens getOidcTokens(AuthorizationCode authorizationCode, String callbackUrl, OIDCProviderMetadata providerMetadata) {
-    LOGGER.debug("Retrieving OIDC tokens with user info claims set from {}", providerMetadata.getTokenEndpointURI());
-    TokenResponse tokenResponse = getTokenResponse(providerMetadata.getTokenEndpointURI(), authorizationCode,
-        callbackUrl);
+  private TokenIntrospectionSuccessResponse introspect(URI endpointURI, String bearerToken,
+      OIDCProviderMetadata providerMetadata) {
+    LOGGER.debug("Introspecting bearer token at {}", endpointURI);
+    TokenIntrospectionResponse response;
+    try {
+      // Like for pushed authorization requests the client assertions are issued for the token endpoint, and every
+      // attempt takes a new one
+      URI tokenEndpointURI = getTokenEndpointURI(providerMetadata);
+      HTTPResponse httpResponse = send(RequestType.INTROSPECTION, () -> new TokenIntrospectionRequest(endpointURI,
+          getClientAuthentication(tokenEndpointURI), new BearerAccessToken(bearerToken)).toHTTPRequest());
+      response = TokenIntrospectionResponse.parse(httpResponse);
+    } catch (ParseException e) {
+      throw new IllegalStateException("Introspecting bearer token failed", e);
+    } catch (IOException e) {
+      throw new IllegalStateException("Introspecting bearer token failed: "
+          + "Identity provider not reachable - check network proxy setting 'http.nonProxyHosts' in 'sonar.properties'");
+    }
+    if (!response.indicatesSuccess()) {
+      ErrorObject errorObject = response.toErrorResponse().getErrorObject();
+      if (errorObject == null || errorObject.getCode() == null) {
+        throw new IllegalStateException("Token introspection request failed: No error code returned");
+      }
+      throw new IllegalStateException("Token introspection request failed: " + errorObject.toJSONObject());
+    }
+    return response.toSuccessResponse();
+  }
+
+  /**
+   * Returns the provider's token introspection endpoint (or its mutual TLS endpoint alias for the client
+   * authentication method 'tls_client_auth'), or <code>null</code> if the provider doesn't support introspection.
+   */
+  @CheckForNull
+  private URI getIntrospectionEndpointURI(OIDCProviderMetadata providerMetadata) {
+    if (OidcConfiguration.CLIENT_AUTH_METHOD_TLS.equals(config.clientAuthMethod())
+        && providerMetadata.getMtlsEndpointAliases() != null
+        && providerMetadata.getMtlsEndpointAliases().getIntrospectionEndpointURI() != null) {
+      return providerMetadata.getMtlsEndpointAliases().getIntrospectionEndpointURI();
+    }
+    return providerMetadata.getIntrospectionEndpointURI();
+  }
+
+  /**
+   * Returns the cache of introspection responses. It's only recreated if the configuration or the introspection
+   * endpoint has changed or the metadata cache duration has expired.
+   */
+  private IntrospectionCache getIntrospectionCache(URI endpointURI) {
+    String key = endpointURI + " " + config.clientId() + " " + config.introspectionCacheTtl();
+    CachedValue<IntrospectionCache> cached = introspectionCache;
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    IntrospectionCache newCache = new IntrospectionCache(config.introspectionCacheTtl());
+    introspectionCache = new CachedValue<>(key, newCache, config.metadataCacheTtl());
+    return newCache;
+  }
+
+  /**
+   * Returns the cache of validated bearer tokens. It's only recreated (i.e. all tokens are validated again) if the
+   * configuration has changed or the metadata cache duration has expired.
+   */
+  private BearerTokenCache getBearerTokenCache(OIDCProviderMetadata providerMetadata, String audience) {
+    String key = providerMetadata.getIssuer() + " " + providerMetadata.getJWKSetURI() + " " + getVerifierKey() + " "
+        + audience + " " + String.join(",", config.tenantIssuers());
+    CachedValue<BearerTokenCache> cached = bearerTokenCache;
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    BearerTokenCache newCache = new BearerTokenCache();
+    bearerTokenCache = new CachedValue<>(key, newCache, config.metadataCacheTtl());
+    return newCache;
+  }
+
+  private OIDCTokens getOidcTokens(AuthorizationCode authorizationCode, String callbackUrl,
+      @Nullable CodeVerifier codeVerifier, OIDCProviderMetadata providerMetadata) {
+    URI tokenEndpointURI = getTokenEndpointURI(providerMetadata);
+    LOGGER.debug("Retrieving OIDC tokens with user info claims set from {}", tokenEndpointURI);
+    TokenResponse tokenResponse = getTokenResponse(tokenEndpointURI, authorizationCode, callbackUrl, codeVerifier);
+    if (replayGuard.isEnabled()) {
+      registerAuthorizationCode(authorizationCode, tokenResponse);
+    }
     if (tokenResponse instanceof TokenErrorResponse) {
       ErrorObject errorObject = ((TokenErrorResponse) tokenResponse).getErrorObject();
       if (errorObject == null || errorObject.getCode() == null) {
@@ -156,18 +680,42 @@ public class OidcClient {
       }
     }
     OIDCTokens oidcTokens = ((OIDCTokenResponse) tokenResponse).getOIDCTokens();
+    JWT idToken = oidcTokens.getIDToken();
+    if (isIdTokenEncrypted()) {
+      idToken = decryptIdToken(idToken);
+      oidcTokens = new OIDCTokens(idToken, oidcTokens.getAccessToken(), oidcTokens.getRefreshToken());
+    }
     if (isIdTokenSigned()) {
-      validateIdToken(providerMetadata.getIssuer(), providerMetadata.getJWKSetURI(), oidcTokens.getIDToken());
+      validateIdToken(providerMetadata, idToken);
     }
     return oidcTokens;
   }
 
+  /**
+   * Registers the given authorization code with the replay guard if the token endpoint has redeemed it or rejected it
+   * as invalid grant. A code of a token request which has been rejected locally (e.g. by the request limiter or the
+   * circuit breaker) or failed without response isn't registered, so it can still be used by a retry of the callback.
+   */
+  private void registerAuthorizationCode(AuthorizationCode authorizationCode, TokenResponse tokenResponse) {
+    if (tokenResponse.indicatesSuccess()) {
+      if (!replayGuard.register(getReplayKey(authorizationCode))) {
+        throw new IllegalStateException("Invalid authentication response: Authorization code has already been used");
+      }
+    } else if (OAuth2Error.INVALID_GRANT.equals(((TokenErrorResponse) tokenResponse).getErrorObject())) {
+      replayGuard.register(getReplayKey(authorizationCode));
+    }
+  }
+
+  private static String getReplayKey(AuthorizationCode authorizationCode) {
+    return "code:" + authorizationCode.getValue();
+  }
+
   protected TokenResponse getTokenResponse(URI tokenEndpointURI, AuthorizationCode authorizationCode,
-      String callbackUrl) {
+      String callbackUrl, @Nullable CodeVerifier codeVerifier) {
     try {
-      TokenRequest request = new TokenRequest(tokenEndpointURI, new ClientSecretBasic(getClientId(), getClientSecret()),
-          new AuthorizationCodeGrant(authorizationCode, new URI(callbackUrl)));
-      HTTPResponse response = request.toHTTPRequest().send();
+      TokenRequest request = new TokenRequest(tokenEndpointURI, getClientAuthentication(tokenEndpointURI),
+          new AuthorizationCodeGrant(authorizationCode, new URI(callbackUrl), codeVerifier));
+      HTTPResponse response = send(RequestType.TOKEN, request.toHTTPRequest());
       LOGGER.debug("Token response content: {}", response.getContent());
       return OIDCTokenResponseParser.parse(response);
     } catch (URISyntaxException | ParseException e) {
@@ -178,13 +726,146 @@ public class OidcClient {
     }
   }
 
-  private void validateIdToken(Issuer issuer, URI jwkSetURI, JWT idToken) {
-    LOGGER.debug("Validating ID token with {} and key set from from {}", getIdTokenSignAlgorithm(), jwkSetURI);
+  /**
+   * Returns the provider's mutual TLS endpoint alias (RFC 8705) of the token endpoint for the client authentication
+   * method 'tls_client_auth', otherwise the regular token endpoint.
+   */
+  private URI getTokenEndpointURI(OIDCProviderMetadata providerMetadata) {
+    if (OidcConfiguration.CLIENT_AUTH_METHOD_TLS.equals(config.clientAuthMethod())
+        && providerMetadata.getMtlsEndpointAliases() != null
+        && providerMetadata.getMtlsEndpointAliases().getTokenEndpointURI() != null) {
+      return providerMetadata.getMtlsEndpointAliases().getTokenEndpointURI();
+    }
+    return providerMetadata.getTokenEndpointURI();
+  }
+
+  private ClientAuthentication getClientAuthentication(URI tokenEndpointURI) {
+    String method = config.clientAuthMethod();
+    if (OidcConfiguration.CLIENT_AUTH_METHOD_SECRET_BASIC.equals(method)) {
+      return new ClientSecretBasic(getClientId(), getClientSecret());
+    } else if (OidcConfiguration.CLIENT_AUTH_METHOD_TLS.equals(method)) {
+      if (!tlsContext.hasClientCertificate()) {
+        throw new IllegalStateException("No TLS client keystore configured for client authentication method "
+            + method + " (see setting 'TLS client keystore')");
+      }
+      return new PKITLSClientAuthentication(getClientId(), tlsContext.getSocketFactory());
+    }
     try {
-      IDTokenValidator validator = createValidator(issuer, jwkSetURI.toURL());
-      validator.validate(idToken, null);
-    } catch (MalformedURLException e) {
-      throw new IllegalStateException("Invalid JWK set URL", e);
+      return getClientAssertionPool(tokenEndpointURI).take();
+    } catch (JOSEException e) {
+      throw new IllegalStateException("Signing client assertion failed", e);
+    }
+  }
+
+  /**
+   * Returns the cached pool of pre-signed client assertions. It's only recreated (incl. reloading its key) if the
+   * configuration or the token endpoint has changed or the metadata cache duration has expired.
+   */
+  private ClientAssertionPool getClientAssertionPool(URI tokenEndpointURI) {
+    String key = config.clientAuthMethod() + " " + tokenEndpointURI + " " + config.clientId() + " "
+        + Objects.hashCode(config.clientSecret()) + " " + Objects.hashCode(config.clientAuthKey()) + " "
+        + config.clientAuthKeyId() + " " + config.clientAuthSignAlgorithm();
+    CachedValue<ClientAssertionPool> cached = clientAssertionPool;
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    // Created only once, as every pool keeps a refresh task scheduled until it's replaced
+    synchronized (this) {
+      cached = clientAssertionPool;
+      if (cached != null && cached.isValid(key)) {
+        return cached.value;
+      }
+      ScheduledExecutorService signer = clientAssertionSigner();
+      ClientAssertionPool newPool = new ClientAssertionPool(config, tokenEndpointURI, signer);
+      newPool.startRefresh(signer);
+      clientAssertionPool = new CachedValue<>(key, newPool, config.metadataCacheTtl());
+      if (cached != null) {
+        cached.value.close();
+      }
+      return newPool;
+    }
+  }
+
+  private synchronized ScheduledExecutorService clientAssertionSigner() {
+    if (stopped) {
+      throw new IllegalStateException("Signing client assertion failed: OIDC client stopped");
+    }
+    if (clientAssertionSigner == null) {
+      clientAssertionSigner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "oidc-client-assertion-" + config.providerKey());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return clientAssertionSigner;
+  }
+
+  private JWT decryptIdToken(JWT idToken) {
+    if (!(idToken instanceof EncryptedJWT)) {
+      throw new IllegalStateException("Invalid ID token: Encrypted ID token expected "
+          + "(see setting 'ID token encryption algorithm')");
+    }
+    try {
+      return getIdTokenDecrypter().decrypt((EncryptedJWT) idToken);
+    } catch (BadJOSEException e) {
+      throw new IllegalStateException("Invalid ID token", e);
+    } catch (JOSEException e) {
+      throw new IllegalStateException("Decrypting ID token failed", e);
+    }
+  }
+
+  /**
+   * Returns the cached decrypter. It's only recreated (incl. reloading its private key) if the configuration has
+   * changed or the metadata cache duration has expired.
+   */
+  private IdTokenDecrypter getIdTokenDecrypter() {
+    String key = config.idTokenEncryptionAlgorithm() + " " + config.idTokenEncryptionMethod() + " "
+        + Objects.hashCode(config.idTokenDecryptionKey()) + " " + config.idTokenDecryptionKeyStore() + " "
+        + Objects.hashCode(config.idTokenDecryptionKeyStorePassword()) + " " + config.idTokenDecryptionKeyAlias();
+    CachedValue<IdTokenDecrypter> cached = decrypter;
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    IdTokenDecrypter newDecrypter = new IdTokenDecrypter(config);
+    decrypter = new CachedValue<>(key, newDecrypter, config.metadataCacheTtl());
+    return newDecrypter;
+  }
+
+  private static void validateNonce(JWT idToken, Nonce nonce) {
+    String idTokenNonce;
+    try {
+      idTokenNonce = idToken.getJWTClaimsSet().getStringClaim("nonce");
+    } catch (java.text.ParseException e) {
+      throw new IllegalStateException("Parsing ID token failed", e);
+    }
+    if (idTokenNonce == null) {
+      throw new IllegalStateException("Invalid ID token: Missing nonce");
+    } else if (!nonce.getValue().equals(idTokenNonce)) {
+      throw new IllegalStateException("Invalid ID token: Unexpected nonce");
+    }
+  }
+
+  /**
+   * Rejects an ID token which has already been used for a login, identified by its JWT ID or (if it has none) by the
+   * token itself.
+   */
+  private void validateNotReplayed(JWT idToken) {
+    String jwtId;
+    try {
+      jwtId = idToken.getJWTClaimsSet().getJWTID();
+    } catch (java.text.ParseException e) {
+      throw new IllegalStateException("Parsing ID token failed", e);
+    }
+    if (!replayGuard.register(jwtId != null ? "jti:" + jwtId : "token:" + idToken.serialize())) {
+      throw new IllegalStateException("Invalid ID token: Token has already been used");
+    }
+  }
+
+  private void validateIdToken(OIDCProviderMetadata providerMetadata, JWT idToken) {
+    try {
+      getVerifier(providerMetadata, idToken).validate(idToken);
+    } catch (java.text.ParseException e) {
+      throw new IllegalStateException("Parsing ID token failed", e);
     } catch (BadJOSEException e) {
       throw new IllegalStateException("Invalid ID token", e);
     } catch (JOSEException e) {
@@ -192,15 +873,146 @@ public class OidcClient {
     }
   }
 
-  protected IDTokenValidator createValidator(Issuer issuer, URL jwkSetUrl) {
-    return new IDTokenValidator(issuer, getClientId(), getIdTokenSignAlgorithm(), jwkSetUrl);
+  /**
+   * Validates a signed UserInfo response (content type <code>application/jwt</code>) with the same verifier (and JWK
+   * set) as the ID token.
+   */
+  private UserInfo validateUserInfo(OIDCProviderMetadata providerMetadata, @Nullable JWT idToken, Subject subject,
+      JWT userInfoJwt) {
+    if (!isIdTokenSigned()) {
+      throw new IllegalStateException("Signed UserInfo response can't be validated "
+          + "(see setting 'ID token signature algorithm')");
+    }
+    try {
+      return new UserInfo(getVerifier(providerMetadata, idToken).validateUserInfo(userInfoJwt, subject.getValue()));
+    } catch (java.text.ParseException e) {
+      throw new IllegalStateException("Parsing ID token failed", e);
+    } catch (BadJOSEException e) {
+      throw new IllegalStateException("Invalid UserInfo response", e);
+    } catch (JOSEException e) {
+      throw new IllegalStateException("Validating UserInfo response failed", e);
+    }
+  }
+
+  private IdTokenVerifier getVerifier(OIDCProviderMetadata providerMetadata, @Nullable JWT idToken)
+      throws java.text.ParseException {
+    IssuerAllowlist allowlist = getTenantIssuers();
+    // Without a token (e.g. for an opaque bearer token) the issuer is unknown, so the provider's own keys are used
+    if (allowlist.isEmpty() || idToken == null) {
+      return getVerifier(providerMetadata);
+    }
+    return getTenantVerifier(allowlist, idToken.getJWTClaimsSet().getIssuer());
+  }
+
+  /**
+   * Returns the cached verifier. It's only recreated if the configuration has changed or the metadata cache duration
+   * has expired. Its JWK set is kept (and refreshed) by the {@link JwkSetRefresher}.
+   */
+  private IdTokenVerifier getVerifier(OIDCProviderMetadata providerMetadata) {
+    String key = providerMetadata.getIssuer() + " " + providerMetadata.getJWKSetURI() + " " + getVerifierKey();
+    CachedValue<IdTokenVerifier> cached = verifier;
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    IdTokenVerifier newVerifier = createVerifier(providerMetadata);
+    verifier = new CachedValue<>(key, newVerifier, config.metadataCacheTtl());
+    return newVerifier;
+  }
+
+  /**
+   * Returns the verifier for an ID token issued by a tenant of a multi-tenant provider. The verifier is created
+   * from the tenant's own provider metadata and JWK set and cached per tenant issuer (the least recently used tenant
+   * is evicted if the tenant cache size is exceeded).
+   * <p>
+   * The issuer is taken from a token whose signature isn't verified yet, i.e. it's chosen by the client. So tenants
+   * which aren't cached are resolved at most {@link #TENANT_RESOLUTIONS_PER_SECOND} times per second, and a flood of
+   * unknown issuers can't drive unlimited requests to the identity provider. Concurrent logins of the same tenant
+   * share a single resolution, while a slow tenant doesn't block the resolution of the others.
+   */
+  private IdTokenVerifier getTenantVerifier(IssuerAllowlist allowlist, @Nullable String issuer) {
+    if (issuer == null || !allowlist.matches(issuer)) {
+      throw new IllegalStateException("Invalid ID token: Issuer '" + issuer + "' is not accepted "
+          + "(see setting 'Tenant issuers')");
+    }
+    String key = issuer + " " + getVerifierKey();
+    CachedValue<IdTokenVerifier> cached = tenantVerifiers.get(issuer);
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    // Concurrent logins of the same tenant wait for a single resolution, the other tenants aren't blocked by it
+    CompletableFuture<IdTokenVerifier> resolution = new CompletableFuture<>();
+    CompletableFuture<IdTokenVerifier> pending = pendingTenantResolutions.putIfAbsent(issuer, resolution);
+    if (pending != null) {
+      try {
+        return pending.join();
+      } catch (CompletionException e) {
+        throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+      }
+    }
+    try {
+      IdTokenVerifier verifier = resolveTenantVerifier(issuer, key);
+      resolution.complete(verifier);
+      return verifier;
+    } catch (RuntimeException e) {
+      resolution.completeExceptionally(e);
+      throw e;
+    } finally {
+      pendingTenantResolutions.remove(issuer, resolution);
+    }
+  }
+
+  private IdTokenVerifier resolveTenantVerifier(String issuer, String key) {
+    // Another login may have resolved the tenant in the meantime
+    CachedValue<IdTokenVerifier> cached = tenantVerifiers.get(issuer);
+    if (cached != null && cached.isValid(key)) {
+      return cached.value;
+    }
+    if (!tenantResolutions.tryAcquire()) {
+      throw new IllegalStateException("Resolving tenant issuer '" + issuer + "' rejected: Too many unknown "
+          + "tenant issuers");
+    }
+    CachedValue<OIDCProviderMetadata> tenantMetadata = retrieveProviderMetadata(issuer, true);
+    IdTokenVerifier newVerifier = createVerifier(tenantMetadata.value);
+    // The verifier expires together with the metadata it has been created from
+    tenantVerifiers.put(issuer, tenantMetadata.derive(key, newVerifier));
+    return newVerifier;
+  }
+
+  private String getVerifierKey() {
+    return config.clientId() + " " + Objects.hashCode(config.clientSecret()) + " " + config.idTokenSignAlgorithm();
+  }
+
+  private IssuerAllowlist getTenantIssuers() {
+    String[] entries = config.tenantIssuers();
+    IssuerAllowlist allowlist = tenantIssuers;
+    if (allowlist == null || !allowlist.hasEntries(entries)) {
+      allowlist = new IssuerAllowlist(entries);
+      tenantIssuers = allowlist;
+    }
+    return allowlist;
+  }
+
+  protected IdTokenVerifier createVerifier(OIDCProviderMetadata providerMetadata) {
+    Set<JWSAlgorithm> algorithms = getIdTokenSignAlgorithms(providerMetadata);
+    try {
+      URL jwkSetUrl = providerMetadata.getJWKSetURI().toURL();
+      LOGGER.debug("Validating ID tokens of {} with {} and key set from {}", providerMetadata.getIssuer(), algorithms,
+          jwkSetUrl);
+      return new IdTokenVerifier(providerMetadata.getIssuer(), getClientId(), algorithms,
+          jwkSetRefresher.getSource(jwkSetUrl, jwkSetRetriever), getClientSecret());
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException("Invalid JWK set URL", e);
+    } catch (JOSEException e) {
+      throw new IllegalStateException("Creating ID token verifier failed: " + e.getMessage()
+          + " (see settings 'Client secret' and 'ID token signature algorithm')", e);
+    }
   }
 
   protected UserInfoResponse getUserInfoResponse(URI userInfoEndpointURI, BearerAccessToken accessToken) {
     LOGGER.debug("Retrieving user info from {}", userInfoEndpointURI);
     try {
       UserInfoRequest request = new UserInfoRequest(userInfoEndpointURI, accessToken);
-      HTTPResponse response = request.toHTTPRequest().send();
+      HTTPResponse response = send(RequestType.USER_INFO, request.toHTTPRequest());
       LOGGER.debug("UserInfo response content: {}", response.getContent());
       return UserInfoResponse.parse(response);
     } catch (ParseException e) {
@@ -212,16 +1024,140 @@ public class OidcClient {
   }
 
   protected OIDCProviderMetadata getProviderMetadata() {
-    LOGGER.debug("Retrieving provider metadata from {}", config.issuerUri());
+    String issuerUri = config.issuerUri();
+    CachedValue<OIDCProviderMetadata> cached = providerMetadata;
+    if (cached != null && cached.isValid(issuerUri)) {
+      return cached.value;
+    }
+    // The metadata of a multi-tenant provider contains a templated issuer, e.g.
+    // "https://login.microsoftonline.com/{tenantid}/v2.0"
+    CachedValue<OIDCProviderMetadata> metadata = retrieveProviderMetadata(issuerUri, getTenantIssuers().isEmpty());
+    providerMetadata = metadata;
+    return metadata.value;
+  }
+
+  private CachedValue<OIDCProviderMetadata> retrieveProviderMetadata(String issuerUri, boolean verifyIssuer) {
+    IllegalStateException cachedFailure = providerMetadataFailures.get(issuerUri);
+    if (cachedFailure != null) {
+      LOGGER.debug("Retrieving provider metadata from {} failed recently - skipping retrieval", issuerUri);
+      throw new IllegalStateException(cachedFailure.getMessage(), cachedFailure.getCause());
+    }
+    LOGGER.debug("Retrieving provider metadata from {}", issuerUri);
     try {
-      return OIDCProviderMetadata.resolve(new Issuer(config.issuerUri()));
+      return resolveProviderMetadata(new Issuer(issuerUri), verifyIssuer);
     } catch (IOException | GeneralException e) {
+      IllegalStateException failure;
       if (e instanceof GeneralException && e.getMessage().contains("issuer doesn't match")) {
-        throw new IllegalStateException("Retrieving OpenID Connect provider metadata failed: " +
+        failure = new IllegalStateException("Retrieving OpenID Connect provider metadata failed: " +
                 "Issuer URL in provider metadata doesn't match the issuer URI specified in plugin configuration");
       } else {
-        throw new IllegalStateException("Retrieving OpenID Connect provider metadata failed", e);
+        failure = new IllegalStateException("Retrieving OpenID Connect provider metadata failed", e);
+      }
+      providerMetadataFailures.put(issuerUri, failure);
+      throw failure;
+    }
+  }
+
+  /**
+   * Downloads the provider metadata, which is cached for the metadata cache duration minus its age (if it has been
+   * downloaded by another node of the SonarQube cluster).
+   */
+  private CachedValue<OIDCProviderMetadata> resolveProviderMetadata(Issuer issuer, boolean verifyIssuer)
+      throws IOException, GeneralException {
+    URL configUrl = OIDCProviderMetadata.resolveURL(issuer);
+    Resource resource = download(RequestType.PROVIDER_METADATA, configUrl,
+        "Couldn't download OpenID Provider metadata from ");
+    JSONObject json = JSONObjectUtils.parse(resource.getContent());
+    if (!verifyIssuer) {
+      // A templated issuer isn't a valid URI, so it's replaced by the configured one
+      json.put("issuer", issuer.getValue());
+    }
+    OIDCProviderMetadata providerMetadata = OIDCProviderMetadata.parse(json);
+    if (!issuer.equals(providerMetadata.getIssuer())) {
+      throw new GeneralException("The returned issuer doesn't match the expected: " + providerMetadata.getIssuer());
+    }
+    long ttl = Math.max(0, config.metadataCacheTtl() - SharedCache.getAge(resource));
+    return new CachedValue<>(issuer.getValue(), providerMetadata, ttl);
+  }
+
+  private Resource retrieveJwkSet(URL jwkSetUrl) throws IOException {
+    String key = jwkSetUrl.toString();
+    IOException cachedFailure = jwkSetFailures.get(key);
+    if (cachedFailure != null) {
+      LOGGER.debug("Retrieving JWK set from {} failed recently - skipping retrieval", jwkSetUrl);
+      throw cachedFailure;
+    }
+    try {
+      return download(RequestType.JWK_SET, jwkSetUrl, "Couldn't retrieve JWK set from ");
+    } catch (IOException e) {
+      jwkSetFailures.put(key, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Downloads the given resource from the identity provider, or from the shared cache if it has been downloaded by
+   * another node of the SonarQube cluster.
+   */
+  private Resource download(RequestType type, URL url, String errorMessage) throws IOException {
+    SharedCache.Loader loader = () -> {
+      HTTPResponse response = send(type, new HTTPRequest(HTTPRequest.Method.GET, url));
+      if (response.getStatusCode() != HTTPResponse.SC_OK) {
+        throw new IOException(errorMessage + url + ": Status code " + response.getStatusCode());
+      }
+      return new Resource(response.getBody(), response.getHeaderValue("Content-Type"));
+    };
+    return sharedCache.isEnabled() ? sharedCache.get(url.toString(), loader) : loader.load();
+  }
+
+  /**
+   * Sends the given request to the identity provider within the limit of concurrent outbound requests. Idempotent
+   * requests are retried according to the retry policy.
+   */
+  private HTTPResponse send(RequestType type, HTTPRequest request) throws IOException {
+    return send(type, () -> request);
+  }
+
+  /**
+   * Sends the request created by the given factory like {@link #send(RequestType, HTTPRequest)}. The request is
+   * created again for every attempt, so a retry doesn't reuse a single-use client assertion (unique 'jti').
+   */
+  private HTTPResponse send(RequestType type, Supplier<HTTPRequest> requestFactory) throws IOException {
+    SSLSocketFactory socketFactory = tlsContext.getSocketFactory();
+    Long deadline = loginDeadline.get();
+    return retryPolicy.execute(type, () -> {
+      HTTPRequest request = requestFactory.get();
+      if (socketFactory != null) {
+        request.setSSLSocketFactory(socketFactory);
+      }
+      return sendOnce(type, request);
+    }, deadline != null ? deadline : retryPolicy.newDeadline());
+  }
+
+  private HTTPResponse sendOnce(RequestType type, HTTPRequest request) throws IOException {
+    try (RequestLimiter.Permit permit = limiter.acquire()) {
+      long circuitPermit = circuitBreaker.acquire();
+      HTTPResponse response = null;
+      try {
+        response = request.send();
+      } finally {
+        if (response == null) {
+          circuitBreaker.onFailure(circuitPermit);
+          if (type.isLatencySampled()) {
+            permit.dropped();
+          }
+        } else {
+          if (response.getStatusCode() >= HTTPResponse.SC_SERVER_ERROR) {
+            circuitBreaker.onFailure(circuitPermit);
+          } else {
+            circuitBreaker.onSuccess(circuitPermit);
+          }
+          if (type.isLatencySampled()) {
+            permit.completed();
+          }
+        }
       }
+      return response;
     }
   }
 
@@ -238,13 +1174,63 @@ public class OidcClient {
     return secret == null ? new Secret("") : new Secret(secret);
   }
 
+  private boolean isIdTokenEncrypted() {
+    return config.idTokenEncryptionAlgorithm() != null;
+  }
+
   private boolean isIdTokenSigned() {
     return config.idTokenSignAlgorithm() != null;
   }
 
-  private JWSAlgorithm getIdTokenSignAlgorithm() {
+  /**
+   * Returns the configured algorithm or, if set to 'Auto', the asymmetric algorithms listed in the provider metadata.
+   */
+  private Set<JWSAlgorithm> getIdTokenSignAlgorithms(OIDCProviderMetadata providerMetadata) {
     String algorithmName = config.idTokenSignAlgorithm();
-    return algorithmName == null ? null : new JWSAlgorithm(algorithmName);
+    if (!OidcConfiguration.ID_TOKEN_SIG_ALG_AUTO.equals(algorithmName)) {
+      return Collections.singleton(JWSAlgorithm.parse(algorithmName));
+    }
+    Set<JWSAlgorithm> algorithms = new LinkedHashSet<>();
+    if (providerMetadata.getIDTokenJWSAlgs() != null) {
+      providerMetadata.getIDTokenJWSAlgs().stream().filter(IdTokenVerifier.ASYMMETRIC_ALGORITHMS::contains)
+          .forEach(algorithms::add);
+    }
+    if (algorithms.isEmpty()) {
+      throw new IllegalStateException("Provider metadata of " + providerMetadata.getIssuer()
+          + " doesn't list any supported ID token signature algorithm (see setting 'ID token signature algorithm')");
+    }
+    return Collections.unmodifiableSet(algorithms);
+  }
+
+  /**
+   * Value retrieved for the given key (e.g. the issuer URI) which expires after the given time.
+   */
+  private static class CachedValue<T> {
+
+    private final String key;
+    private final T value;
+    private final long expiresAt;
+
+    private CachedValue(String key, T value, long ttl) {
+      this.key = key;
+      this.value = value;
+      this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    private boolean isValid(String key) {
+      return this.key.equals(key) && System.nanoTime() - expiresAt < 0;
+    }
+
+    private boolean expiresWithin(long nanos) {
+      return System.nanoTime() + nanos - expiresAt >= 0;
+    }
+
+    /**
+     * Returns a value for the given key which expires together with this one.
+     */
+    private <U> CachedValue<U> derive(String key, U value) {
+      return new CachedValue<>(key, value, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
   }
 
 }
@@ -18,7 +18,9 @@
 package org.vaulttec.sonarqube.auth.oidc;
 
 import com.nimbusds.oauth2.sdk.AuthorizationCode;
+import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
 import com.nimbusds.openid.connect.sdk.AuthenticationRequest;
+import com.nimbusds.openid.connect.sdk.Nonce;
 import com.nimbusds.openid.connect.sdk.claims.UserInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +28,7 @@ import org.sonar.api.server.ServerSide;
 import org.sonar.api.server.authentication.Display;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.server.http.Cookie;
 
 @ServerSide
 public class OidcIdentityProvider implements OAuth2IdentityProvider {
@@ -44,7 +47,7 @@ public class OidcIdentityProvider implements OAuth2IdentityProvider {
 
   @Override
   public String getKey() {
-    return Constants.OIDC_IDENTITY_PROVIDER_KEY;
+    return config.providerKey();
   }
 
   @Override
@@ -74,20 +77,44 @@ public class OidcIdentityProvider implements OAuth2IdentityProvider {
       throw new IllegalStateException("OpenID Connect authentication is disabled");
     }
     String state = context.generateCsrfState();
-    AuthenticationRequest authenticationRequest = client.createAuthenticationRequest(context.getCallbackUrl(), state);
+    CodeVerifier codeVerifier = client.createCodeVerifier();
+    if (codeVerifier != null) {
+      context.getHttpResponse().addCookie(Pkce.newCookie(getKey(), context.getCallbackUrl(), codeVerifier));
+    }
+    AuthenticationRequest authenticationRequest = client.createAuthenticationRequest(context.getCallbackUrl(), state,
+        codeVerifier);
     LOGGER.debug("Redirecting to authentication endpoint");
     context.redirectTo(authenticationRequest.toURI().toString());
+    // The callback is expected within seconds, so it shouldn't have to wait for metadata, keys or connections
+    client.warmUp();
   }
 
   @Override
   public void callback(CallbackContext context) {
-    LOGGER.debug("Handling authentication response");
-    context.verifyCsrfState();
-    AuthorizationCode authorizationCode = client.getAuthorizationCode(context.getHttpRequest());
-    UserInfo userInfo = client.getUserInfo(authorizationCode, context.getCallbackUrl());
+    String bearerToken = client.getBearerToken(context.getHttpRequest());
+    UserInfo userInfo;
+    if (bearerToken != null) {
+      // Browsers don't send the 'Authorization' header on their own, so there's no CSRF state to verify
+      LOGGER.debug("Handling bearer token login");
+      userInfo = client.getUserInfo(bearerToken);
+    } else {
+      LOGGER.debug("Handling authentication response");
+      context.verifyCsrfState();
+      AuthorizationCode authorizationCode = client.getAuthorizationCode(context.getHttpRequest());
+      Nonce nonce = client.getNonce(context.getHttpRequest());
+      CodeVerifier codeVerifier = client.getCodeVerifier(context.getHttpRequest());
+      if (codeVerifier != null) {
+        context.getHttpResponse().addCookie(Pkce.newCookie(getKey(), context.getCallbackUrl(), null));
+      }
+      userInfo = client.getUserInfo(authorizationCode, context.getCallbackUrl(), nonce, codeVerifier);
+    }
     UserIdentity userIdentity = userIdentityFactory.create(userInfo);
     LOGGER.debug("Authenticating user '{}' with groups {}", userIdentity.getProviderLogin(), userIdentity.getGroups());
     context.authenticate(userIdentity);
+    Cookie loopReset = AutoLoginFilter.newLoopResetCookie(config, context.getHttpRequest());
+    if (loopReset != null) {
+      context.getHttpResponse().addCookie(loopReset);
+    }
     LOGGER.debug("Redirecting to requested page");
     context.redirectToRequestedPage();
   }
@@ -0,0 +1,86 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.sonar.api.config.Configuration;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the configured identity providers with lookup by provider key.
+ * <p>
+ * Every provider has its own configuration and client, i.e. its own cached provider metadata and JWK set, request
+ * limiter, circuit breaker and metrics. So a slow or unavailable identity provider doesn't affect logins via the
+ * other ones.
+ * <p>
+ * The additional providers are registered while the plugin is loaded, so the registry is bound to SonarQube's
+ * configuration later on by {@link OidcProviderRegistryInitializer}, which also stops their clients on shutdown.
+ */
+public class OidcProviderRegistry {
+
+  private final List<String> additionalProviderKeys;
+  private volatile Map<String, OidcIdentityProvider> providers = Collections.emptyMap();
+  private List<OidcClient> clients = Collections.emptyList();
+
+  OidcProviderRegistry(List<String> additionalProviderKeys) {
+    this.additionalProviderKeys = additionalProviderKeys;
+  }
+
+  /**
+   * Creates the additional identity providers from the given configuration.
+   */
+  synchronized void bind(Configuration configuration, OidcIdentityProvider defaultProvider) {
+    unbind();
+    Map<String, OidcIdentityProvider> newProviders = new HashMap<>();
+    List<OidcClient> newClients = new ArrayList<>();
+    newProviders.put(defaultProvider.getKey(), defaultProvider);
+    for (String providerKey : additionalProviderKeys) {
+      OidcConfiguration config = new OidcConfiguration(configuration, providerKey);
+      OidcClient client = new OidcClient(config);
+      newClients.add(client);
+      newProviders.put(providerKey, new OidcIdentityProvider(config, client, new UserIdentityFactory(config)));
+    }
+    providers = Collections.unmodifiableMap(newProviders);
+    clients = newClients;
+  }
+
+  /**
+   * Removes the identity providers and stops the clients of the additional ones. The client of the default provider
+   * is stopped by SonarQube itself.
+   */
+  synchronized void unbind() {
+    providers = Collections.emptyMap();
+    clients.forEach(OidcClient::stop);
+    clients = Collections.emptyList();
+  }
+
+  /**
+   * Returns the identity provider with the given key or <code>null</code> if there is none (or the registry isn't
+   * bound yet).
+   */
+  @CheckForNull
+  OidcIdentityProvider get(String providerKey) {
+    return providers.get(providerKey);
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.sonar.api.Startable;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * Binds the {@link OidcProviderRegistry} to SonarQube's configuration on server startup, and unbinds it on shutdown.
+ */
+@ServerSide
+public class OidcProviderRegistryInitializer implements Startable {
+
+  private final Configuration configuration;
+  private final OidcProviderRegistry registry;
+  private final OidcIdentityProvider defaultProvider;
+
+  public OidcProviderRegistryInitializer(Configuration configuration, OidcProviderRegistry registry,
+      OidcIdentityProvider defaultProvider) {
+    this.configuration = configuration;
+    this.registry = registry;
+    this.defaultProvider = defaultProvider;
+  }
+
+  @Override
+  public void start() {
+    registry.bind(configuration, defaultProvider);
+  }
+
+  @Override
+  public void stop() {
+    registry.unbind();
+  }
+
+}
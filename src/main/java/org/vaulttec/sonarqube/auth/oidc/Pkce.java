@@ -0,0 +1,115 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.pkce.CodeChallenge;
+import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
+import org.sonar.api.server.http.Cookie;
+import org.sonar.api.server.http.HttpRequest;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proof Key for Code Exchange (RFC 7636) with the code challenge method 'S256'.
+ * <p>
+ * Every thread has its own random number generator and message digest, so creating code verifiers doesn't contend on
+ * a shared lock under load. A DRBG instance is used because the instances of the default 'NativePRNG' still share a
+ * global lock for reading the operating system's entropy. The code verifier is kept in an HTTP-only cookie restricted
+ * to the callback path, which expires with the login.
+ */
+class Pkce {
+
+  static final String COOKIE_PREFIX = "OIDC_PKCE_";
+  static final int VERIFIER_BYTES = 32;
+  static final int COOKIE_MAX_AGE = (int) TimeUnit.MINUTES.toSeconds(10);
+
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+  private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  });
+
+  private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  private Pkce() {
+  }
+
+  static CodeVerifier newCodeVerifier() {
+    byte[] bytes = new byte[VERIFIER_BYTES];
+    RANDOM.get().nextBytes(bytes);
+    return new CodeVerifier(ENCODER.encodeToString(bytes));
+  }
+
+  static CodeChallenge getCodeChallenge(CodeVerifier codeVerifier) {
+    byte[] hash = DIGEST.get().digest(codeVerifier.getValue().getBytes(StandardCharsets.US_ASCII));
+    try {
+      return CodeChallenge.parse(ENCODER.encodeToString(hash));
+    } catch (ParseException e) {
+      throw new IllegalStateException("Creating PKCE code challenge failed", e);
+    }
+  }
+
+  /**
+   * Returns the cookie holding the given code verifier, or a cookie removing it if the code verifier is
+   * <code>null</code>.
+   */
+  static Cookie newCookie(String providerKey, String callbackUrl, @Nullable CodeVerifier codeVerifier) {
+    URI uri = URI.create(callbackUrl);
+    return new HttpOnlyCookie(COOKIE_PREFIX + providerKey, codeVerifier != null ? codeVerifier.getValue() : "",
+        uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath(), "https".equalsIgnoreCase(
+            uri.getScheme()), codeVerifier != null ? COOKIE_MAX_AGE : 0);
+  }
+
+  @CheckForNull
+  static CodeVerifier getCodeVerifier(String providerKey, HttpRequest request) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if ((COOKIE_PREFIX + providerKey).equals(cookie.getName()) && cookie.getValue() != null
+            && !cookie.getValue().isEmpty()) {
+          try {
+            return new CodeVerifier(cookie.getValue());
+          } catch (IllegalArgumentException e) {
+            return null;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Detects replayed authorization codes and ID tokens within the last {@link #WINDOW} milliseconds.
+ * <p>
+ * The window is split into buckets of {@link #BUCKET} milliseconds, kept in a ring. Every bucket has a Bloom filter (a
+ * lock-free bit set sized for the configured peak login rate with a false positive rate of
+ * {@link #FALSE_POSITIVE_RATE}), and the {@link #EXACT_BUCKETS} most recent buckets additionally have an exact tier of
+ * 64-bit fingerprints. A value is registered in the current bucket, and the exact tier decides atomically if it's
+ * already there. A hit in the Bloom filter of another bucket (an older one, or a newer one created by a registration
+ * which read the clock later) is confirmed via the exact tier if the bucket still has one, otherwise it's treated as a
+ * replay. Expired buckets are simply replaced, so nothing needs to be scanned or evicted, and the memory of the older
+ * buckets is bounded by the peak rate instead of the number of logins. Above the peak rate the false positive rate of
+ * the Bloom filters rises, i.e. logins may be rejected as replayed.
+ */
+class ReplayGuard {
+
+  static final long WINDOW = TimeUnit.MINUTES.toMillis(10);
+  static final long BUCKET = TimeUnit.MINUTES.toMillis(1);
+  static final int EXACT_BUCKETS = 2;
+  static final double FALSE_POSITIVE_RATE = 1e-6;
+  static final int MAX_VALUES_PER_BUCKET = 1_000_000;
+  static final int MAX_EXACT_SIZE = 100_000;
+
+  private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  private final OidcConfiguration config;
+  private final LongSupplier clock;
+  private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>((int) (WINDOW / BUCKET) + 1);
+
+  ReplayGuard(OidcConfiguration config) {
+    this(config, System::currentTimeMillis);
+  }
+
+  ReplayGuard(OidcConfiguration config, LongSupplier clock) {
+    this.config = config;
+    this.clock = clock;
+  }
+
+  boolean isEnabled() {
+    return config.replayGuardPeakRate() > 0;
+  }
+
+  /**
+   * Registers the given value (e.g. an authorization code or the ID of an ID token). Returns <code>false</code> if it
+   * has already been registered within the window, i.e. if it's replayed.
+   */
+  boolean register(String value) {
+    long[] hash = hash(value);
+    long hash1 = hash[0];
+    long hash2 = hash[1];
+    long fingerprint = hash[2];
+    long epoch = clock.getAsLong() / BUCKET;
+
+    // The value is added before the other buckets are checked, so of two concurrent registrations at a bucket
+    // boundary at least one sees the other
+    Bucket current = getBucket(epoch);
+    epoch = current.epoch;
+    if (!current.add(hash1, hash2, fingerprint)) {
+      return false;
+    }
+    for (int i = 1; i < buckets.length(); i++) {
+      Bucket bucket = buckets.get(slot(epoch - i));
+      // The older buckets of the window, and the newer ones created by registrations which read the clock later
+      if (bucket != null && (bucket.epoch == epoch - i || bucket.epoch > epoch)
+          && bucket.contains(hash1, hash2, fingerprint)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns <code>true</code> if the given value has been registered within the window, without registering it. Like
+   * for {@link #register(String)} a hit in the Bloom filter of a bucket without exact tier may be a false positive.
+   */
+  boolean contains(String value) {
+    long[] hash = hash(value);
+    long oldest = clock.getAsLong() / BUCKET - (buckets.length() - 1);
+    for (int i = 0; i < buckets.length(); i++) {
+      Bucket bucket = buckets.get(i);
+      if (bucket != null && bucket.epoch >= oldest && bucket.contains(hash[0], hash[1], hash[2])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the two hashes (the second one odd) for the Bloom filters and the fingerprint for the exact tier of the
+   * given value.
+   */
+  private static long[] hash(String value) {
+    ByteBuffer hash = ByteBuffer.wrap(DIGEST.get().digest(value.getBytes(StandardCharsets.UTF_8)));
+    return new long[] {hash.getLong(), hash.getLong() | 1, hash.getLong()};
+  }
+
+  /**
+   * Returns the bucket of the given epoch. If the clock of this thread was read too early, i.e. the bucket has already
+   * been replaced by a newer one or has lost its exact tier, then the oldest more recent bucket with an exact tier is
+   * returned instead. So a value is always registered in a bucket of the ring which decides atomically.
+   */
+  private Bucket getBucket(long epoch) {
+    int slot = slot(epoch);
+    while (true) {
+      Bucket bucket = buckets.get(slot);
+      if (bucket != null && bucket.epoch >= epoch) {
+        if (!bucket.exactCleared) {
+          return bucket;
+        }
+        // Without its exact tier the bucket can't decide atomically if the value is already there
+        epoch = bucket.epoch + 1;
+        slot = slot(epoch);
+        continue;
+      }
+      Bucket newBucket = new Bucket(epoch, (int) Math.min(MAX_VALUES_PER_BUCKET,
+          (long) Math.max(1, config.replayGuardPeakRate()) * BUCKET / 1000));
+      if (buckets.compareAndSet(slot, bucket, newBucket)) {
+        // The exact tier of a bucket isn't needed anymore when it becomes too old
+        Bucket old = buckets.get(slot(epoch - EXACT_BUCKETS));
+        if (old != null && old.epoch == epoch - EXACT_BUCKETS) {
+          old.clearExact();
+        }
+        return newBucket;
+      }
+    }
+  }
+
+  private int slot(long epoch) {
+    return (int) Math.floorMod(epoch, (long) buckets.length());
+  }
+
+  /**
+   * Bloom filter of a single bucket, with an exact tier of fingerprints which is cleared when the bucket isn't one of
+   * the most recent ones anymore.
+   */
+  static class Bucket {
+
+    private final long epoch;
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int hashes;
+    private final Set<Long> exact = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger exactSize = new AtomicInteger();
+    private volatile boolean exactCleared;
+
+    Bucket(long epoch, int expectedValues) {
+      this.epoch = epoch;
+      // Optimal number of bits and hash functions for the expected number of values and false positive rate
+      long bitCount = (long) Math.ceil(-expectedValues * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+      this.bits = new AtomicLongArray((int) ((bitCount + 63) / 64));
+      this.size = bits.length() * 64L;
+      this.hashes = Math.max(1, (int) Math.round((double) size / expectedValues * Math.log(2)));
+    }
+
+    /**
+     * Adds the given value. Returns <code>false</code> if it has already been added.
+     */
+    boolean add(long hash1, long hash2, long fingerprint) {
+      boolean added = false;
+      for (int i = 0; i < hashes; i++) {
+        long index = Math.floorMod(hash1 + i * hash2, size);
+        long mask = 1L << index;
+        long previous = bits.getAndAccumulate((int) (index >>> 6), mask, (a, b) -> a | b);
+        added |= (previous & mask) == 0;
+      }
+      if (!exactCleared && exactSize.get() < MAX_EXACT_SIZE) {
+        if (!exact.add(fingerprint)) {
+          return false;
+        }
+        exactSize.incrementAndGet();
+        return true;
+      }
+      // The exact tier is full (or cleared), so only the Bloom filter decides
+      return added;
+    }
+
+    /**
+     * Returns <code>true</code> if the given value has been added. Without (or with a full) exact tier only the Bloom
+     * filter decides, i.e. the result may be a false positive.
+     */
+    boolean contains(long hash1, long hash2, long fingerprint) {
+      return mightContain(hash1, hash2)
+          && (exactCleared || exactSize.get() >= MAX_EXACT_SIZE || exact.contains(fingerprint));
+    }
+
+    void clearExact() {
+      // The flag is set first, so concurrent lookups fall back to the Bloom filter instead of missing a value
+      exactCleared = true;
+      exact.clear();
+    }
+
+    boolean mightContain(long hash1, long hash2) {
+      for (int i = 0; i < hashes; i++) {
+        long index = Math.floorMod(hash1 + i * hash2, size);
+        if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+}
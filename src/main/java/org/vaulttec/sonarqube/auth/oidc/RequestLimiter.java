@@ -0,0 +1,203 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bulkhead limiting the number of concurrent outbound requests to the identity provider.
+ * <p>
+ * Requests exceeding the limit wait in a short bounded queue. If the queue is full or no permit becomes available
+ * within the queue timeout then the request is rejected immediately, so a slow identity provider can't tie up all of
+ * SonarQube's web threads.
+ * <p>
+ * If the adaptive concurrency limit is enabled then the limit is adjusted via AIMD (additive increase /
+ * multiplicative decrease) from the latency of the sampled requests: a request slower than the latency threshold
+ * (or failed) shrinks the limit by {@link #BACKOFF_RATIO}, every fast request grows it by <code>1 / limit</code> (which
+ * sums up to one per round trip) until the configured maximum is reached again.
+ */
+class RequestLimiter implements RequestLimiterMXBean {
+
+  static final int MIN_LIMIT = 1;
+  static final double BACKOFF_RATIO = 0.75;
+
+  private final OidcConfiguration config;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition permitReleased = lock.newCondition();
+  private final AtomicLong rejected = new AtomicLong();
+  private int inFlight;
+  private int waiting;
+  private double adaptiveLimit = Double.MAX_VALUE;
+  private long lastDecrease = System.nanoTime();
+
+  RequestLimiter(OidcConfiguration config) {
+    this.config = config;
+  }
+
+  Permit acquire() {
+    lock.lock();
+    try {
+      if (inFlight < limit()) {
+        inFlight++;
+        return new Permit();
+      }
+      if (waiting >= config.requestQueueSize()) {
+        throw rejected();
+      }
+      waiting++;
+      try {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(config.requestQueueTimeout());
+        while (inFlight >= limit()) {
+          if (nanos <= 0) {
+            throw rejected();
+          }
+          nanos = permitReleased.awaitNanos(nanos);
+        }
+        inFlight++;
+        return new Permit();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw rejected();
+      } finally {
+        waiting--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Feeds the latency of a finished request into the adaptive limit. Only one decrease is applied per round trip,
+   * i.e. requests started before the last decrease don't shrink the limit again.
+   */
+  void onSample(long startNanos, long latencyNanos, boolean dropped) {
+    if (!config.isAdaptiveConcurrencyLimit()) {
+      return;
+    }
+    lock.lock();
+    try {
+      int max = config.maxConcurrentRequests();
+      double current = Math.min(adaptiveLimit, max);
+      if (dropped || latencyNanos > TimeUnit.MILLISECONDS.toNanos(config.latencyThreshold())) {
+        if (startNanos - lastDecrease > 0) {
+          adaptiveLimit = Math.max(MIN_LIMIT, current * BACKOFF_RATIO);
+          lastDecrease = System.nanoTime();
+        }
+      } else if (inFlight * 2 >= current) {
+        adaptiveLimit = Math.min(max, current + 1 / current);
+        permitReleased.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getConcurrencyLimit() {
+    lock.lock();
+    try {
+      return limit();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getInFlightRequests() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getQueuedRequests() {
+    lock.lock();
+    try {
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getRejectedRequests() {
+    return rejected.get();
+  }
+
+  private int limit() {
+    int max = config.maxConcurrentRequests();
+    if (config.isAdaptiveConcurrencyLimit()) {
+      return Math.max(MIN_LIMIT, (int) Math.min(adaptiveLimit, max));
+    }
+    return max;
+  }
+
+  private void release() {
+    lock.lock();
+    try {
+      inFlight--;
+      permitReleased.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private IllegalStateException rejected() {
+    rejected.incrementAndGet();
+    return new IllegalStateException("Too many concurrent requests to identity provider - "
+        + "request rejected to protect the SonarQube server (see setting 'Maximum concurrent requests')");
+  }
+
+  /**
+   * Permission to send a single request. Must be closed when the request has finished.
+   */
+  class Permit implements AutoCloseable {
+
+    private final long start = System.nanoTime();
+    private boolean released;
+
+    /**
+     * Samples the latency of a successfully finished request.
+     */
+    void completed() {
+      onSample(start, System.nanoTime() - start, false);
+    }
+
+    /**
+     * Samples a failed request, e.g. due to a connection or read timeout.
+     */
+    void dropped() {
+      onSample(start, System.nanoTime() - start, true);
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+/**
+ * Types of outbound requests sent to the identity provider.
+ */
+enum RequestType {
+
+  PROVIDER_METADATA(false, true), JWK_SET(false, true), PUSHED_AUTHORIZATION(true, true), TOKEN(true, false),
+  USER_INFO(true, true), INTROSPECTION(true, true), WARM_UP(false, false);
+
+  private final boolean latencySampled;
+  private final boolean idempotent;
+
+  RequestType(boolean latencySampled, boolean idempotent) {
+    this.latencySampled = latencySampled;
+    this.idempotent = idempotent;
+  }
+
+  /**
+   * Returns <code>true</code> if the latency of this request type drives the adaptive concurrency limit.
+   */
+  boolean isLatencySampled() {
+    return latencySampled;
+  }
+
+  /**
+   * Returns <code>true</code> if this request type can safely be retried. Token requests are not idempotent because
+   * authorization codes can only be used once.
+   */
+  boolean isIdempotent() {
+    return idempotent;
+  }
+
+}
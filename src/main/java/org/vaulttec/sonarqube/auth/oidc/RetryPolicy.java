@@ -0,0 +1,141 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries idempotent requests to the identity provider which failed with an I/O error or a transient HTTP status
+ * (502, 503 or 504).
+ * <p>
+ * Retries are delayed by an exponential backoff with full jitter. A retry is only started if it can finish its backoff
+ * before the retry deadline (which may be shared by all requests of a login) and if the retry budget (a percentage of
+ * the requests, plus a small reserve) isn't used up, so retries can't multiply the load on an identity provider which
+ * is down.
+ */
+class RetryPolicy {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+  static final long BUDGET_RESERVE = 10;
+  private static final long BUDGET_SCALE = 100;
+
+  private final OidcConfiguration config;
+  private final AtomicLong budget = new AtomicLong(BUDGET_RESERVE * BUDGET_SCALE);
+
+  RetryPolicy(OidcConfiguration config) {
+    this.config = config;
+  }
+
+  /**
+   * Returns a new retry deadline (in terms of {@link System#nanoTime()}).
+   */
+  long newDeadline() {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.retryDeadline());
+  }
+
+  HTTPResponse execute(RequestType type, Request request) throws IOException {
+    return execute(type, request, newDeadline());
+  }
+
+  /**
+   * Sends the given request and retries it until the given deadline, e.g. the one of the login it belongs to.
+   */
+  HTTPResponse execute(RequestType type, Request request, long deadline) throws IOException {
+    if (!type.isIdempotent() || config.retryMaxAttempts() <= 1) {
+      return request.send();
+    }
+    deposit();
+    for (int attempt = 1;; attempt++) {
+      try {
+        HTTPResponse response = request.send();
+        if (!isTransient(response.getStatusCode()) || !awaitRetry(type, attempt, deadline)) {
+          return response;
+        }
+      } catch (IOException e) {
+        if (!awaitRetry(type, attempt, deadline)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  long remainingBudget() {
+    return budget.get() / BUDGET_SCALE;
+  }
+
+  static boolean isTransient(int statusCode) {
+    return statusCode == HttpURLConnection.HTTP_BAD_GATEWAY || statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+        || statusCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+  }
+
+  private boolean awaitRetry(RequestType type, int attempt, long deadline) {
+    if (attempt >= config.retryMaxAttempts()) {
+      return false;
+    }
+    long backoff = backoff(attempt);
+    if (System.nanoTime() + backoff - deadline >= 0) {
+      LOGGER.debug("Not retrying {} request: retry deadline exceeded", type);
+      return false;
+    }
+    if (!withdraw()) {
+      LOGGER.debug("Not retrying {} request: retry budget exhausted", type);
+      return false;
+    }
+    LOGGER.debug("Retrying {} request in {} ms (attempt {})", type, TimeUnit.NANOSECONDS.toMillis(backoff),
+        attempt + 1);
+    try {
+      TimeUnit.NANOSECONDS.sleep(backoff);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private long backoff(int attempt) {
+    long initial = TimeUnit.MILLISECONDS.toNanos(config.retryInitialBackoff());
+    long max = TimeUnit.MILLISECONDS.toNanos(config.retryMaxBackoff());
+    long exponential = attempt > 30 ? max : Math.min(max, initial << (attempt - 1));
+    return exponential <= 0 ? 0 : ThreadLocalRandom.current().nextLong(exponential + 1);
+  }
+
+  private void deposit() {
+    long max = BUDGET_RESERVE * BUDGET_SCALE;
+    budget.getAndUpdate(balance -> Math.min(max, balance + config.retryBudget()));
+  }
+
+  private boolean withdraw() {
+    return budget.getAndUpdate(balance -> balance >= BUDGET_SCALE ? balance - BUDGET_SCALE : balance)
+        >= BUDGET_SCALE;
+  }
+
+  @FunctionalInterface
+  interface Request {
+    HTTPResponse send() throws IOException;
+  }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.util.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the resources downloaded from the identity provider (provider metadata and JWK set) shared by all nodes of
+ * a SonarQube cluster via a directory on a shared filesystem.
+ * <p>
+ * Every resource is stored as a snapshot file starting with its version stamp (the time it was downloaded). A node
+ * only uses a snapshot which is newer than the one it has used before and not older than the metadata cache
+ * duration, otherwise it downloads the resource itself and replaces the snapshot. The download is guarded by a file
+ * lock, so nodes waiting for the lock reuse the snapshot written by the node holding it. Snapshots are written to a
+ * temporary file and moved into place atomically, so reading them requires no lock. A resource read from a snapshot
+ * carries its age (see {@link #getAge(Resource)}), so it's cached locally only for the remaining cache duration.
+ * <p>
+ * If the shared directory isn't accessible then the resources are downloaded directly.
+ */
+class SharedCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedCache.class);
+
+  private static final long LOCK_TIMEOUT = 5000;
+  private static final long LOCK_POLL_INTERVAL = 50;
+
+  // File locks are held on behalf of the whole JVM, so all instances have to serialize on the lock file
+  private static final Map<Path, Object> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+  private final OidcConfiguration config;
+  private final Map<String, Long> usedVersions = new ConcurrentHashMap<>();
+
+  SharedCache(OidcConfiguration config) {
+    this.config = config;
+  }
+
+  boolean isEnabled() {
+    return config.sharedCacheDirectory() != null;
+  }
+
+  /**
+   * Returns the resource with the given key from the shared cache if it has been updated by another node, otherwise
+   * loads it with the given loader and stores it in the shared cache.
+   */
+  Resource get(String key, Loader loader) throws IOException {
+    long usedVersion = usedVersions.getOrDefault(key, 0L);
+    Path directory;
+    Path snapshot;
+    String fileName;
+    Resource resource;
+    try {
+      directory = Files.createDirectories(Paths.get(config.sharedCacheDirectory(), config.providerKey()));
+      fileName = hash(key);
+      snapshot = directory.resolve(fileName + ".snapshot");
+      resource = readIfUpdated(key, snapshot, usedVersion);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Shared cache directory '{}' not accessible", config.sharedCacheDirectory(), e);
+      return loader.load();
+    }
+    if (resource != null) {
+      return resource;
+    }
+    Path lockFile = directory.resolve(fileName + ".lock").toAbsolutePath().normalize();
+    synchronized (LOCAL_LOCKS.computeIfAbsent(lockFile, k -> new Object())) {
+      FileChannel channel = null;
+      FileLock lock = null;
+      try {
+        try {
+          channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          lock = lock(channel);
+          if (lock != null) {
+            // Another node (or thread) may have updated the snapshot while this one was waiting for the lock
+            resource = readIfUpdated(key, snapshot, usedVersion);
+            if (resource != null) {
+              return resource;
+            }
+          }
+        } catch (IOException e) {
+          LOGGER.warn("Accessing shared cache directory '{}' failed", config.sharedCacheDirectory(), e);
+          return loader.load();
+        }
+        resource = loader.load();
+        try {
+          write(key, snapshot, resource);
+        } catch (IOException e) {
+          LOGGER.warn("Writing to shared cache directory '{}' failed", config.sharedCacheDirectory(), e);
+        }
+        return resource;
+      } finally {
+        close(lock, channel);
+      }
+    }
+  }
+
+  @CheckForNull
+  private Resource readIfUpdated(String key, Path snapshot, long usedVersion) throws IOException {
+    try (InputStream stream = Files.newInputStream(snapshot); DataInputStream in = new DataInputStream(stream)) {
+      // The version stamp is read first, so an outdated snapshot is detected without reading its content
+      long version = in.readLong();
+      if (version <= usedVersion || System.currentTimeMillis() - version >= config.metadataCacheTtl()) {
+        return null;
+      }
+      String contentType = in.readUTF();
+      byte[] content = new byte[in.readInt()];
+      in.readFully(content);
+      usedVersions.merge(key, version, Math::max);
+      LOGGER.debug("Using shared cache snapshot of {} with version {}", key, version);
+      return new Snapshot(new String(content, StandardCharsets.UTF_8), contentType.isEmpty() ? null : contentType,
+          version);
+    } catch (NoSuchFileException | EOFException e) {
+      // No (or an incomplete) snapshot, which is replaced by the next download
+      return null;
+    }
+  }
+
+  private void write(String key, Path snapshot, Resource resource) throws IOException {
+    long version = Math.max(System.currentTimeMillis(), usedVersions.getOrDefault(key, 0L) + 1);
+    usedVersions.merge(key, version, Math::max);
+    Path temp = Files.createTempFile(snapshot.getParent(), snapshot.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp); DataOutputStream out = new DataOutputStream(stream)) {
+        byte[] content = resource.getContent().getBytes(StandardCharsets.UTF_8);
+        out.writeLong(version);
+        out.writeUTF(resource.getContentType() == null ? "" : resource.getContentType());
+        out.writeInt(content.length);
+        out.write(content);
+      }
+      Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Waits for the file lock at most {@link #LOCK_TIMEOUT} milliseconds. Returns <code>null</code> if the lock isn't
+   * acquired, so a node holding the lock for too long doesn't block the others.
+   */
+  @CheckForNull
+  private static FileLock lock(FileChannel channel) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOCK_TIMEOUT);
+    try {
+      FileLock lock = channel.tryLock();
+      while (lock == null && System.nanoTime() - deadline < 0) {
+        Thread.sleep(LOCK_POLL_INTERVAL);
+        lock = channel.tryLock();
+      }
+      return lock;
+    } catch (OverlappingFileLockException e) {
+      // The lock is held by this JVM via a channel the local locks don't know about
+      LOGGER.debug("Shared cache lock already held by this JVM", e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private static void close(@Nullable FileLock lock, @Nullable FileChannel channel) {
+    try {
+      if (lock != null) {
+        lock.release();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Releasing shared cache lock failed", e);
+    }
+  }
+
+  private static String hash(String key) {
+    try {
+      StringBuilder hash = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8))) {
+        hash.append(String.format("%02x", b));
+      }
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the age (in milliseconds) of the given resource, i.e. the time since it has been downloaded by another
+   * node. A resource downloaded by this node has no age.
+   */
+  static long getAge(Resource resource) {
+    if (resource instanceof Snapshot) {
+      return Math.max(0, System.currentTimeMillis() - ((Snapshot) resource).version);
+    }
+    return 0;
+  }
+
+  /**
+   * Resource read from a snapshot, with the version stamp of the snapshot.
+   */
+  private static class Snapshot extends Resource {
+
+    private final long version;
+
+    private Snapshot(String content, @Nullable String contentType, long version) {
+      super(content, contentType);
+      this.version = version;
+    }
+  }
+
+  @FunctionalInterface
+  interface Loader {
+    Resource load() throws IOException;
+  }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * SSL context for the connections to the identity provider with the configured TLS client keystore (mutual TLS) and
+ * truststore.
+ * <p>
+ * Loading the keystores and building the context is expensive, and TLS sessions can only be resumed (instead of
+ * doing a full handshake) with the same context. So the context is built once and only rebuilt if the configuration
+ * or one of the keystore files has changed (detected via the file's modification time and size, which are checked at
+ * most every {@link #FILE_CHECK_INTERVAL} nanoseconds). Reusing the same socket factory also allows the JDK to keep the
+ * connections alive between requests.
+ */
+class TlsContext {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TlsContext.class);
+
+  static final int SESSION_CACHE_SIZE = 100;
+  static final int SESSION_TIMEOUT = 3600;
+  static final long FILE_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private final OidcConfiguration config;
+  private final LongSupplier clock;
+  private volatile Snapshot snapshot;
+  private volatile FileStamps fileStamps;
+
+  TlsContext(OidcConfiguration config) {
+    this(config, System::nanoTime);
+  }
+
+  TlsContext(OidcConfiguration config, LongSupplier clock) {
+    this.config = config;
+    this.clock = clock;
+  }
+
+  boolean isEnabled() {
+    return config.tlsKeyStore() != null || config.tlsTrustStore() != null;
+  }
+
+  boolean hasClientCertificate() {
+    return config.tlsKeyStore() != null;
+  }
+
+  /**
+   * Returns the socket factory of the current context, or <code>null</code> if neither a keystore nor a truststore
+   * is configured.
+   */
+  @CheckForNull
+  SSLSocketFactory getSocketFactory() {
+    SSLContext context = getContext();
+    return context == null ? null : context.getSocketFactory();
+  }
+
+  @CheckForNull
+  SSLContext getContext() {
+    if (!isEnabled()) {
+      return null;
+    }
+    String key = getKey();
+    Snapshot current = snapshot;
+    if (current != null && current.key.equals(key)) {
+      return current.context;
+    }
+    synchronized (this) {
+      current = snapshot;
+      if (current == null || !current.key.equals(key)) {
+        current = new Snapshot(key, createContext());
+        snapshot = current;
+        LOGGER.debug("Created SSL context with TLS client keystore '{}' and truststore '{}'", config.tlsKeyStore(),
+            config.tlsTrustStore());
+      }
+      return current.context;
+    }
+  }
+
+  private String getKey() {
+    return config.tlsKeyStore() + " " + Objects.hashCode(config.tlsKeyStorePassword()) + " " + config.tlsTrustStore()
+        + " " + Objects.hashCode(config.tlsTrustStorePassword()) + " " + getFileStamps();
+  }
+
+  /**
+   * Returns the stamps of the keystore files, which are only read again from the filesystem every
+   * {@link #FILE_CHECK_INTERVAL} nanoseconds (or if the configured files change), so most requests don't need any
+   * filesystem access.
+   */
+  private String getFileStamps() {
+    String paths = config.tlsKeyStore() + " " + config.tlsTrustStore();
+    long now = clock.getAsLong();
+    FileStamps current = fileStamps;
+    if (current == null || !current.paths.equals(paths) || now - current.expiresAt >= 0) {
+      current = new FileStamps(paths, getFileStamp(config.tlsKeyStore()) + " "
+          + getFileStamp(config.tlsTrustStore()), now + FILE_CHECK_INTERVAL);
+      fileStamps = current;
+    }
+    return current.stamps;
+  }
+
+  private static String getFileStamp(@Nullable String path) {
+    if (path == null) {
+      return "";
+    }
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+      return attributes.lastModifiedTime().toMillis() + "/" + attributes.size();
+    } catch (IOException e) {
+      // Reported when loading the keystore
+      return "missing";
+    }
+  }
+
+  private SSLContext createContext() {
+    KeyManager[] keyManagers = null;
+    String keyStorePath = config.tlsKeyStore();
+    if (keyStorePath != null) {
+      char[] password = toChars(config.tlsKeyStorePassword());
+      try {
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(loadKeyStore(keyStorePath, password, "TLS client keystore"), password);
+        keyManagers = factory.getKeyManagers();
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Loading TLS client keystore '" + keyStorePath + "' failed: "
+            + e.getMessage(), e);
+      }
+    }
+    TrustManager[] trustManagers = null;
+    String trustStorePath = config.tlsTrustStore();
+    if (trustStorePath != null) {
+      try {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(loadKeyStore(trustStorePath, toChars(config.tlsTrustStorePassword()), "TLS truststore"));
+        trustManagers = factory.getTrustManagers();
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Loading TLS truststore '" + trustStorePath + "' failed: "
+            + e.getMessage(), e);
+      }
+    }
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keyManagers, trustManagers, null);
+      SSLSessionContext sessionContext = context.getClientSessionContext();
+      sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+      sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+      return context;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Creating SSL context failed: " + e.getMessage(), e);
+    }
+  }
+
+  private static KeyStore loadKeyStore(String path, char[] password, String name) {
+    try {
+      return KeyStore.getInstance(new File(path), password);
+    } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+      throw new IllegalStateException("Loading " + name + " '" + path + "' failed: " + e.getMessage(), e);
+    }
+  }
+
+  private static char[] toChars(@Nullable String password) {
+    return password == null ? new char[0] : password.toCharArray();
+  }
+
+  private static class FileStamps {
+
+    private final String paths;
+    private final String stamps;
+    private final long expiresAt;
+
+    private FileStamps(String paths, String stamps, long expiresAt) {
+      this.paths = paths;
+      this.stamps = stamps;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static class Snapshot {
+
+    private final String key;
+    private final SSLContext context;
+
+    private Snapshot(String key, SSLContext context) {
+      this.key = key;
+      this.context = context;
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket allowing the given number of permits per second with a burst of up to one second's worth of
+ * permits.
+ * <p>
+ * Instead of a token count and a refill timestamp the bucket only keeps the time at which it will be full again
+ * (the "theoretical arrival time" of the generic cell rate algorithm). Taking a permit moves this time forward by
+ * one emission interval, which is a single compare-and-set on an {@link AtomicLong}. A permit is denied if the time
+ * would be more than the burst duration ahead of now.
+ */
+class TokenBucket {
+
+  private static final long BURST = TimeUnit.SECONDS.toNanos(1);
+
+  private final int permitsPerSecond;
+  private final long interval;
+  private final LongSupplier clock;
+  private final AtomicLong fullAt;
+
+  TokenBucket(int permitsPerSecond) {
+    this(permitsPerSecond, System::nanoTime);
+  }
+
+  TokenBucket(int permitsPerSecond, LongSupplier clock) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("Permits per second must be positive");
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.interval = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    this.clock = clock;
+    this.fullAt = new AtomicLong(clock.getAsLong());
+  }
+
+  int getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  /**
+   * Takes a permit if one is available. Never blocks.
+   */
+  boolean tryAcquire() {
+    long now = clock.getAsLong();
+    while (true) {
+      long current = fullAt.get();
+      long next = (current - now < 0 ? now : current) + interval;
+      if (next - now > BURST) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+
+}
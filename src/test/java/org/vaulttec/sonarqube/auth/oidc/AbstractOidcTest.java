@@ -23,7 +23,6 @@ import static org.vaulttec.sonarqube.auth.oidc.OidcConfiguration.LOGIN_STRATEGY_
 
 import com.nimbusds.oauth2.sdk.ParseException;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
-import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
 
 import org.junit.Before;
 import org.sonar.api.config.Configuration;
@@ -40,14 +39,16 @@ public abstract class AbstractOidcTest {
   public static final String STATE = "state";
   public static final String VALID_CODE = "valid_code";
 
-  private Configuration config = mock(Configuration.class);
+  protected Configuration config = mock(Configuration.class);
   protected Map<String, String> settings = new HashMap<>();
   protected OidcConfiguration oidcConfig = new OidcConfiguration(config);
 
   @Before
   public void initConfig() {
-      when(config.get(any())).thenAnswer(invocation -> Optional.of(settings.get(invocation.getArgument(0))));
+      when(config.get(any())).thenAnswer(invocation -> Optional.ofNullable(settings.get(invocation.getArgument(0))));
       when(config.getBoolean(any())).thenAnswer(invocation -> Optional.of(Boolean.parseBoolean(settings.get(invocation.getArgument(0)))));
+      when(config.getInt(any())).thenAnswer(invocation -> Optional.ofNullable(settings.get(invocation.getArgument(0))).map(Integer::parseInt));
+      when(config.getStringArray(any())).thenAnswer(invocation -> Optional.ofNullable(settings.get(invocation.getArgument(0))).map(value -> value.split(",")).orElse(new String[0]));
   }
 
   protected void setSettings(boolean enabled) {
@@ -97,7 +98,8 @@ public abstract class AbstractOidcTest {
   protected OidcClient createSpyOidcClient() {
     OidcClient client = spy(new OidcClient(oidcConfig));
     doReturn(getProviderMetadata(oidcConfig.issuerUri())).when(client).getProviderMetadata();
-    doReturn(mock(IDTokenValidator.class)).when(client).createValidator(any(), any());
+    doReturn(mock(IdTokenVerifier.class)).when(client).createVerifier(any());
+    doNothing().when(client).warmUp();
     return client;
   }
 
@@ -19,9 +19,12 @@ package org.vaulttec.sonarqube.auth.oidc;
 
 import org.junit.Test;
 import org.sonar.api.*;
+import org.sonar.api.config.Configuration;
 import org.sonar.api.utils.Version;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class AuthOidcPluginTest {
 
@@ -33,7 +36,17 @@ public class AuthOidcPluginTest {
   public void test_server_side_extensions() throws Exception {
     Plugin.Context context = setupContext(SonarQubeSide.SERVER);
     underTest.define(context);
-    assertThat(context.getExtensions()).hasSize(20);
+    assertThat(context.getExtensions()).hasSize(69);
+  }
+
+  @Test
+  public void test_server_side_extensions_with_additional_providers() throws Exception {
+    Plugin.Context context = setupContext(SonarQubeSide.SERVER, "keycloak", "entra");
+    underTest.define(context);
+    assertThat(context.getExtensions()).hasSize(69 + 2 * 56);
+    assertThat(context.getExtensions()).filteredOn(DelegatingIdentityProvider.class::isInstance)
+        .extracting(extension -> ((DelegatingIdentityProvider) extension).getKey())
+        .containsExactly("keycloak", "entra");
   }
 
   @Test
@@ -44,7 +57,7 @@ public class AuthOidcPluginTest {
   }
 
 
-  private Plugin.Context setupContext(SonarQubeSide side){
+  private Plugin.Context setupContext(SonarQubeSide side, String... providerKeys){
 
     SonarRuntime runtime = new SonarRuntime() {
       @Override
@@ -68,7 +81,14 @@ public class AuthOidcPluginTest {
       }
     };
 
-    return new Plugin.Context(runtime);
+    Configuration bootConfiguration = mock(Configuration.class);
+    when(bootConfiguration.getStringArray(OidcConfiguration.PROVIDERS)).thenReturn(providerKeys);
+    return new Plugin.Context(runtime) {
+      @Override
+      public Configuration getBootConfiguration() {
+        return bootConfiguration;
+      }
+    };
   }
 
 }
@@ -0,0 +1,128 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Test;
+import org.sonar.api.server.http.HttpRequest;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AutoLoginBypassTest {
+
+  private static final String[] NONE = new String[0];
+
+  @Test
+  public void empty() {
+    AutoLoginBypass underTest = new AutoLoginBypass(NONE, NONE, new String[] { " " }, NONE);
+    assertThat(underTest.isEmpty()).isTrue();
+    assertThat(underTest.match(newRequest("Mozilla/5.0", "10.0.0.1"))).isNull();
+  }
+
+  @Test
+  public void query_flags() {
+    AutoLoginBypass underTest = new AutoLoginBypass(new String[] { "probe", "mode=api" }, NONE, NONE, NONE);
+    assertThat(underTest.isEmpty()).isFalse();
+    assertThat(underTest.match(newRequest("a=b&probe"))).isEqualTo("query flag");
+    assertThat(underTest.match(newRequest("probe=1"))).isEqualTo("query flag");
+    assertThat(underTest.match(newRequest("mode=api&a=b"))).isEqualTo("query flag");
+    assertThat(underTest.match(newRequest("mode=web"))).isNull();
+    assertThat(underTest.match(newRequest("probes=1"))).isNull();
+    assertThat(underTest.match(newRequest((String) null))).isNull();
+  }
+
+  @Test
+  public void accept_types() {
+    AutoLoginBypass underTest = new AutoLoginBypass(NONE, new String[] { "application/json" }, NONE, NONE);
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getHeaders("Accept"))
+        .thenReturn(Collections.enumeration(Arrays.asList("text/plain", "Application/JSON; q=0.9, */*;q=0.1")));
+    assertThat(underTest.match(request)).isEqualTo("Accept header");
+
+    when(request.getHeaders("Accept")).thenReturn(Collections.enumeration(Arrays.asList("text/html,*/*")));
+    assertThat(underTest.match(request)).isNull();
+  }
+
+  @Test
+  public void user_agents() {
+    AutoLoginBypass underTest = new AutoLoginBypass(NONE, NONE, new String[] { "bot|spider", "^curl/", "[invalid" },
+        NONE);
+    assertThat(underTest.match(newRequest("Mozilla/5.0 (compatible; Googlebot/2.1)", null))).isEqualTo("user agent");
+    assertThat(underTest.match(newRequest("CURL/8.5.0", null))).isEqualTo("user agent");
+    assertThat(underTest.match(newRequest("Mozilla/5.0 curl/8.5.0", null))).isNull();
+    assertThat(underTest.match(newRequest(null, null))).isNull();
+  }
+
+  @Test
+  public void user_agent_words_and_patterns() {
+    AutoLoginBypass underTest = new AutoLoginBypass(NONE, NONE,
+        new String[] { "Uptime-Kuma|^python-requests/", "Go-http-client/\\d\\.\\d" }, NONE);
+    assertThat(underTest.match(newRequest("uptime-kuma/1.23", null))).isEqualTo("user agent");
+    assertThat(underTest.match(newRequest("Python-Requests/2.31", null))).isEqualTo("user agent");
+    assertThat(underTest.match(newRequest("Go-http-client/1.1", null))).isEqualTo("user agent");
+    assertThat(underTest.match(newRequest("Go-http-client/x", null))).isNull();
+    assertThat(underTest.match(newRequest("Mozilla/5.0 python-requests/2.31", null))).isNull();
+  }
+
+  @Test
+  public void networks() {
+    AutoLoginBypass underTest = new AutoLoginBypass(NONE, NONE, NONE,
+        new String[] { "10.0.0.0/8", "192.168.1.128/25", "172.16.0.1", "fd00::/8", "invalid", "10.0.0.0/33",
+            "host.acme.com" });
+    assertThat(underTest.isEmpty()).isFalse();
+    assertThat(underTest.match(newRequest(null, "10.255.0.1"))).isEqualTo("source network");
+    assertThat(underTest.match(newRequest(null, "192.168.1.200"))).isEqualTo("source network");
+    assertThat(underTest.match(newRequest(null, "192.168.1.100"))).isNull();
+    assertThat(underTest.match(newRequest(null, "172.16.0.1"))).isEqualTo("source network");
+    assertThat(underTest.match(newRequest(null, "172.16.0.2"))).isNull();
+    assertThat(underTest.match(newRequest(null, "fd12:3456::1"))).isEqualTo("source network");
+    assertThat(underTest.match(newRequest(null, "fe80::1"))).isNull();
+    assertThat(underTest.match(newRequest(null, "11.0.0.1"))).isNull();
+    assertThat(underTest.match(newRequest(null, "unknown"))).isNull();
+    assertThat(underTest.match(newRequest(null, "10.0.0"))).isNull();
+    assertThat(underTest.match(newRequest(null, "10.0.0.256"))).isNull();
+    assertThat(underTest.match(newRequest(null, "10..0.1"))).isNull();
+  }
+
+  @Test
+  public void has_entries() {
+    String[] userAgents = { "bot" };
+    AutoLoginBypass underTest = new AutoLoginBypass(NONE, NONE, userAgents, NONE);
+    assertThat(underTest.hasEntries(NONE, NONE, new String[] { "bot" }, NONE)).isTrue();
+    assertThat(underTest.hasEntries(NONE, NONE, new String[] { "crawler" }, NONE)).isFalse();
+    assertThat(underTest.hasEntries(new String[] { "bot" }, NONE, NONE, NONE)).isFalse();
+  }
+
+  private static HttpRequest newRequest(String queryString) {
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getQueryString()).thenReturn(queryString);
+    return request;
+  }
+
+  private static HttpRequest newRequest(String userAgent, String remoteAddress) {
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getHeader("User-Agent")).thenReturn(userAgent);
+    when(request.getRemoteAddr()).thenReturn(remoteAddress);
+    return request;
+  }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.server.http.Cookie;
+import org.sonar.api.server.http.HttpRequest;
+import org.sonar.api.server.http.HttpResponse;
+import org.sonar.api.web.FilterChain;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time the {@link AutoLoginFilter} adds to a request of the login page: a browser redirected to the
+ * identity provider, a client matching a bypass rule and a request with Auto-Login disabled. The baseline
+ * <code>settingsLookup</code> reads the settings and builds the redirect URL per request, like the filter did before
+ * the settings were precomputed.
+ * <p>
+ * Run with <code>mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath org.openjdk.jmh.Main AutoLoginFilterBenchmark"</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AutoLoginFilterBenchmark {
+
+  private static final String SONAR_URL = "https://sonar.acme.com";
+
+  private OidcConfiguration config;
+  private AutoLoginFilter autoLoginFilter;
+  private AutoLoginFilter disabledFilter;
+  private final Request browser = new Request("Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0");
+  private final Request probe = new Request("curl/8.5.0");
+  private final Response response = new Response();
+  private final Chain chain = new Chain();
+
+  @Setup
+  public void setUp() {
+    config = new OidcConfiguration(newConfiguration(true));
+    // The redirect rate isn't limited, so every browser request is redirected
+    autoLoginFilter = new AutoLoginFilter(config, new OidcClient(config));
+    OidcConfiguration disabledConfig = new OidcConfiguration(newConfiguration(false));
+    disabledFilter = new AutoLoginFilter(disabledConfig, new OidcClient(disabledConfig));
+  }
+
+  private static BenchmarkConfiguration newConfiguration(boolean autoLogin) {
+    return new BenchmarkConfiguration().set(OidcConfiguration.ENABLED, "true")
+        .set(OidcConfiguration.ISSUER_URI, "https://oidc.org").set(OidcConfiguration.CLIENT_ID, "id")
+        .set(OidcConfiguration.AUTO_LOGIN, String.valueOf(autoLogin))
+        .set(OidcConfiguration.AUTO_LOGIN_BYPASS_USER_AGENTS, "bot|crawler|spider,^curl/")
+        .set(OidcConfiguration.AUTO_LOGIN_BYPASS_NETWORKS, "10.0.0.0/8")
+        .set(OidcConfiguration.AUTO_LOGIN_MAX_REDIRECT_RATE, "0")
+        .set(CoreProperties.SERVER_BASE_URL, SONAR_URL);
+  }
+
+  @Benchmark
+  public Object redirect() throws IOException {
+    autoLoginFilter.doFilter(browser, response, chain);
+    return response.redirectedTo;
+  }
+
+  @Benchmark
+  public Object bypassed() throws IOException {
+    autoLoginFilter.doFilter(probe, response, chain);
+    return chain.request;
+  }
+
+  @Benchmark
+  public Object disabled() throws IOException {
+    disabledFilter.doFilter(browser, response, chain);
+    return chain.request;
+  }
+
+  @Benchmark
+  public Object settingsLookup() {
+    if (config.isEnabled() && config.isAutoLogin()) {
+      return config.getBaseUrl() + "/sessions/init/oidc?return_to=" + config.getContextPath() + "/projects";
+    }
+    return null;
+  }
+
+  /**
+   * Request of the login page from the given user agent, without any mocking overhead.
+   */
+  private static class Request implements HttpRequest {
+
+    private final String userAgent;
+
+    Request(String userAgent) {
+      this.userAgent = userAgent;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return "User-Agent".equals(name) ? userAgent : null;
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+      return Collections.emptyEnumeration();
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      return Collections.emptyEnumeration();
+    }
+
+    @Override
+    public String getRemoteAddr() {
+      return "192.168.1.2";
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+      return null;
+    }
+
+    @Override
+    public int getServerPort() {
+      return 443;
+    }
+
+    @Override
+    public boolean isSecure() {
+      return true;
+    }
+
+    @Override
+    public String getScheme() {
+      return "https";
+    }
+
+    @Override
+    public String getServerName() {
+      return "sonar.acme.com";
+    }
+
+    @Override
+    public String getRequestURL() {
+      return SONAR_URL + "/sessions/new";
+    }
+
+    @Override
+    public String getRequestURI() {
+      return "/sessions/new";
+    }
+
+    @Override
+    public String getQueryString() {
+      return null;
+    }
+
+    @Override
+    public String getContextPath() {
+      return "";
+    }
+
+    @Override
+    public String getParameter(String name) {
+      return null;
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+      return null;
+    }
+
+    @Override
+    public String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      // Not needed here
+    }
+
+    @Override
+    public String getServletPath() {
+      return "/sessions/new";
+    }
+
+    @Override
+    public BufferedReader getReader() {
+      return null;
+    }
+  }
+
+  private static class Response implements HttpResponse {
+
+    private String redirectedTo;
+
+    @Override
+    public void sendRedirect(String location) {
+      redirectedTo = location;
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+      // Not needed here
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      // Not needed here
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void setStatus(int status) {
+      // Not needed here
+    }
+
+    @Override
+    public int getStatus() {
+      return 200;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+      // Not needed here
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      return null;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      // Not needed here
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return null;
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+      // Not needed here
+    }
+  }
+
+  private static class Chain implements FilterChain {
+
+    private HttpRequest request;
+
+    @Override
+    public void doFilter(HttpRequest request, HttpResponse response) {
+      this.request = request;
+    }
+  }
+
+}
@@ -20,13 +20,17 @@ package org.vaulttec.sonarqube.auth.oidc;
 import org.junit.Test;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.config.Configuration;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.server.http.Cookie;
 import org.sonar.api.server.http.HttpRequest;
 import org.sonar.api.server.http.HttpResponse;
 import org.sonar.api.web.FilterChain;
 import org.sonar.api.web.HttpFilter;
 
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -36,7 +40,7 @@ public class AutoLoginFilterTest {
 
   @Test
   public void testFilter() throws Exception {
-    Configuration configurationMock = mock(Configuration.class);
+    Configuration configurationMock = newConfiguration();
     when(configurationMock.getBoolean("sonar.auth." + Constants.OIDC_IDENTITY_PROVIDER_KEY + ".enabled"))
         .thenReturn(Optional.of(true));
     when(configurationMock.get("sonar.auth." + Constants.OIDC_IDENTITY_PROVIDER_KEY + ".issuerUri"))
@@ -47,7 +51,7 @@ public class AutoLoginFilterTest {
         .thenReturn(Optional.of(true));
     when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
 
-    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock));
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true));
     filter.init();
     filter.doGetPattern();
 
@@ -66,7 +70,7 @@ public class AutoLoginFilterTest {
 
   @Test
   public void testFilterDisbled() throws Exception {
-    Configuration configurationMock = mock(Configuration.class);
+    Configuration configurationMock = newConfiguration();
     when(configurationMock.getBoolean("sonar.auth." + Constants.OIDC_IDENTITY_PROVIDER_KEY + ".enabled"))
         .thenReturn(Optional.of(true));
     when(configurationMock.get("sonar.auth." + Constants.OIDC_IDENTITY_PROVIDER_KEY + ".issuerUri"))
@@ -77,7 +81,7 @@ public class AutoLoginFilterTest {
         .thenReturn(Optional.of(false));
     when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
 
-    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock));
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true));
     filter.init();
     filter.doGetPattern();
 
@@ -97,14 +101,14 @@ public class AutoLoginFilterTest {
 
   @Test
   public void testFilterTemporarilyDisbled() throws Exception {
-    Configuration configurationMock = mock(Configuration.class);
+    Configuration configurationMock = newConfiguration();
     when(configurationMock.getBoolean(OidcConfiguration.ENABLED)).thenReturn(Optional.of(true));
     when(configurationMock.get(OidcConfiguration.ISSUER_URI)).thenReturn(Optional.of("http://idp.com"));
     when(configurationMock.get(OidcConfiguration.CLIENT_ID)).thenReturn(Optional.of("id"));
     when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(true));
     when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
 
-    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock));
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true));
     filter.init();
     filter.doGetPattern();
 
@@ -123,4 +127,160 @@ public class AutoLoginFilterTest {
     filter.destroy();
   }
 
+  @Test
+  public void testFilterIdentityProviderUnavailable() throws Exception {
+    Configuration configurationMock = newConfiguration();
+    when(configurationMock.getBoolean(OidcConfiguration.ENABLED)).thenReturn(Optional.of(true));
+    when(configurationMock.get(OidcConfiguration.ISSUER_URI)).thenReturn(Optional.of("http://idp.com"));
+    when(configurationMock.get(OidcConfiguration.CLIENT_ID)).thenReturn(Optional.of("id"));
+    when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(true));
+    when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
+
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(false));
+
+    HttpRequest request = mock(HttpRequest.class);
+    HttpResponse response = mock(HttpResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+    filter.doFilter(request, response, chain);
+
+    verify(response, never()).sendRedirect(anyString());
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test
+  public void testFilterBypassed() throws Exception {
+    Configuration configurationMock = newConfiguration();
+    when(configurationMock.getBoolean(OidcConfiguration.ENABLED)).thenReturn(Optional.of(true));
+    when(configurationMock.get(OidcConfiguration.ISSUER_URI)).thenReturn(Optional.of("http://idp.com"));
+    when(configurationMock.get(OidcConfiguration.CLIENT_ID)).thenReturn(Optional.of("id"));
+    when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(true));
+    when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
+    when(configurationMock.getStringArray(OidcConfiguration.AUTO_LOGIN_BYPASS_USER_AGENTS))
+        .thenReturn(new String[] { "bot|crawler", "^curl/" });
+    when(configurationMock.getStringArray(OidcConfiguration.AUTO_LOGIN_BYPASS_NETWORKS))
+        .thenReturn(new String[] { "10.0.0.0/8" });
+
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true));
+    HttpResponse response = mock(HttpResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+
+    HttpRequest probe = mock(HttpRequest.class);
+    when(probe.getHeader("User-Agent")).thenReturn("curl/8.5.0");
+    filter.doFilter(probe, response, chain);
+    verify(chain).doFilter(probe, response);
+
+    HttpRequest internal = mock(HttpRequest.class);
+    when(internal.getHeader("User-Agent")).thenReturn("Mozilla/5.0");
+    when(internal.getRemoteAddr()).thenReturn("10.1.2.3");
+    filter.doFilter(internal, response, chain);
+    verify(chain).doFilter(internal, response);
+    verify(response, never()).sendRedirect(anyString());
+
+    HttpRequest browser = mock(HttpRequest.class);
+    when(browser.getHeader("User-Agent")).thenReturn("Mozilla/5.0");
+    when(browser.getRemoteAddr()).thenReturn("192.168.1.2");
+    filter.doFilter(browser, response, chain);
+    verify(response).sendRedirect(SONAR_URL + "/sessions/init/" + Constants.OIDC_IDENTITY_PROVIDER_KEY + "?return_to=/projects");
+    verify(chain, never()).doFilter(browser, response);
+  }
+
+  @Test
+  public void testFilterRedirectLoop() throws Exception {
+    Configuration configurationMock = newConfiguration();
+    when(configurationMock.getBoolean(OidcConfiguration.ENABLED)).thenReturn(Optional.of(true));
+    when(configurationMock.get(OidcConfiguration.ISSUER_URI)).thenReturn(Optional.of("http://idp.com"));
+    when(configurationMock.get(OidcConfiguration.CLIENT_ID)).thenReturn(Optional.of("id"));
+    when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(true));
+    when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
+    when(configurationMock.getInt(OidcConfiguration.AUTO_LOGIN_LOOP_THRESHOLD)).thenReturn(Optional.of(3));
+
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true));
+    FilterChain chain = mock(FilterChain.class);
+
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getCookies()).thenReturn(new Cookie[] { new HttpOnlyCookie(AutoLoginFilter.LOOP_COOKIE, "2",
+        "/sonar/", false, 60) });
+    HttpResponse response = mock(HttpResponse.class);
+    filter.doFilter(request, response, chain);
+    verify(response).sendRedirect(anyString());
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(response).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName()).isEqualTo(AutoLoginFilter.LOOP_COOKIE);
+    assertThat(cookie.getValue().getValue()).isEqualTo("3");
+    assertThat(cookie.getValue().getMaxAge()).isEqualTo(AutoLoginFilter.LOOP_WINDOW);
+    assertThat(cookie.getValue().isHttpOnly()).isTrue();
+
+    // the browser is caught in a redirect loop
+    when(request.getCookies()).thenReturn(new Cookie[] { cookie.getValue() });
+    HttpResponse loopResponse = mock(HttpResponse.class);
+    filter.doFilter(request, loopResponse, chain);
+    verify(loopResponse, never()).sendRedirect(anyString());
+    verify(chain).doFilter(request, loopResponse);
+  }
+
+  @Test
+  public void testFilterRedirectRateExceeded() throws Exception {
+    Configuration configurationMock = newConfiguration();
+    when(configurationMock.getBoolean(OidcConfiguration.ENABLED)).thenReturn(Optional.of(true));
+    when(configurationMock.get(OidcConfiguration.ISSUER_URI)).thenReturn(Optional.of("http://idp.com"));
+    when(configurationMock.get(OidcConfiguration.CLIENT_ID)).thenReturn(Optional.of("id"));
+    when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(true));
+    when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
+    when(configurationMock.getInt(OidcConfiguration.AUTO_LOGIN_MAX_REDIRECT_RATE)).thenReturn(Optional.of(2));
+
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true));
+    HttpRequest request = mock(HttpRequest.class);
+    HttpResponse response = mock(HttpResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+    for (int i = 0; i < 3; i++) {
+      filter.doFilter(request, response, chain);
+    }
+    verify(response, times(2)).sendRedirect(anyString());
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test
+  public void testFilterSettingsRefreshed() throws Exception {
+    Configuration configurationMock = newConfiguration();
+    when(configurationMock.getBoolean(OidcConfiguration.ENABLED)).thenReturn(Optional.of(true));
+    when(configurationMock.get(OidcConfiguration.ISSUER_URI)).thenReturn(Optional.of("http://idp.com"));
+    when(configurationMock.get(OidcConfiguration.CLIENT_ID)).thenReturn(Optional.of("id"));
+    when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(true));
+    when(configurationMock.get(CoreProperties.SERVER_BASE_URL)).thenReturn(Optional.of(SONAR_URL));
+
+    AtomicLong clock = new AtomicLong();
+    HttpFilter filter = new AutoLoginFilter(new OidcConfiguration(configurationMock), newClient(true), clock::get);
+    HttpRequest request = mock(HttpRequest.class);
+    HttpResponse response = mock(HttpResponse.class);
+    FilterChain chain = mock(FilterChain.class);
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+    verify(response, times(2)).sendRedirect(SONAR_URL + "/sessions/init/" + Constants.OIDC_IDENTITY_PROVIDER_KEY
+        + "?return_to=/projects");
+    // the settings are only read once per refresh interval
+    verify(configurationMock, times(1)).getBoolean(OidcConfiguration.AUTO_LOGIN);
+
+    when(configurationMock.getBoolean(OidcConfiguration.AUTO_LOGIN)).thenReturn(Optional.of(false));
+    clock.addAndGet(AutoLoginFilter.SETTINGS_REFRESH_INTERVAL - 1);
+    filter.doFilter(request, response, chain);
+    verify(response, times(3)).sendRedirect(anyString());
+
+    clock.addAndGet(1);
+    filter.doFilter(request, response, chain);
+    verify(response, times(3)).sendRedirect(anyString());
+    verify(chain).doFilter(request, response);
+  }
+
+  private static Configuration newConfiguration() {
+    Configuration configuration = mock(Configuration.class);
+    when(configuration.getStringArray(anyString())).thenReturn(new String[0]);
+    return configuration;
+  }
+
+  private static OidcClient newClient(boolean identityProviderAvailable) {
+    OidcClient client = mock(OidcClient.class);
+    when(client.isIdentityProviderAvailable()).thenReturn(identityProviderAvailable);
+    return client;
+  }
+
 }
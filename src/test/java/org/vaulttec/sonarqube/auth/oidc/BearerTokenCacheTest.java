@@ -0,0 +1,73 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BearerTokenCacheTest {
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final BearerTokenCache underTest = new BearerTokenCache(2, clock::get);
+
+  @Test
+  public void token_is_cached_until_it_expires() {
+    JWTClaimsSet claims = newClaims(clock.get() + 1000);
+    underTest.put("token1", claims);
+
+    assertThat(underTest.get("token1")).isSameAs(claims);
+    assertThat(underTest.get("token2")).isNull();
+
+    clock.addAndGet(1000);
+    assertThat(underTest.get("token1")).isNull();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void token_without_expiration_is_not_cached() {
+    underTest.put("token1", new JWTClaimsSet.Builder().subject("john").build());
+    underTest.put("token2", newClaims(clock.get()));
+
+    assertThat(underTest.get("token1")).isNull();
+    assertThat(underTest.get("token2")).isNull();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void least_recently_used_token_is_evicted_if_full() {
+    underTest.put("token1", newClaims(clock.get() + 1000));
+    underTest.put("token2", newClaims(clock.get() + 1000));
+    assertThat(underTest.get("token1")).isNotNull();
+
+    underTest.put("token3", newClaims(clock.get() + 1000));
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.get("token1")).isNotNull();
+    assertThat(underTest.get("token2")).isNull();
+    assertThat(underTest.get("token3")).isNotNull();
+  }
+
+  private static JWTClaimsSet newClaims(long expirationTime) {
+    return new JWTClaimsSet.Builder().subject("john").expirationTime(new Date(expirationTime)).build();
+  }
+
+}
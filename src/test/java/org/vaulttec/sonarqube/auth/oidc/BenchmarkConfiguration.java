@@ -0,0 +1,54 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.sonar.api.config.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Configuration backed by a plain map, so the benchmarks don't measure any mocking overhead.
+ */
+class BenchmarkConfiguration implements Configuration {
+
+  private final Map<String, String> settings = new HashMap<>();
+
+  BenchmarkConfiguration set(String key, String value) {
+    settings.put(key, value);
+    return this;
+  }
+
+  @Override
+  public Optional<String> get(String key) {
+    return Optional.ofNullable(settings.get(key));
+  }
+
+  @Override
+  public boolean hasKey(String key) {
+    return settings.containsKey(key);
+  }
+
+  @Override
+  public String[] getStringArray(String key) {
+    String value = settings.get(key);
+    return value == null ? new String[0] : value.split(",");
+  }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest extends AbstractOidcTest {
+
+  private CircuitBreaker underTest;
+
+  @Before
+  public void setUp() {
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_FAILURE_RATE, "50");
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_WINDOW_SIZE, "4");
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "60000");
+    underTest = new CircuitBreaker(oidcConfig);
+  }
+
+  @Test
+  public void stay_closed_below_failure_rate() {
+    underTest.onFailure(underTest.acquire());
+    underTest.onSuccess(underTest.acquire());
+    underTest.onSuccess(underTest.acquire());
+    underTest.onSuccess(underTest.acquire());
+    underTest.onFailure(underTest.acquire());
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(underTest.getFailureRate()).isEqualTo(25);
+    underTest.acquire();
+  }
+
+  @Test
+  public void stay_closed_until_window_is_full() {
+    underTest.onFailure(underTest.acquire());
+    underTest.onFailure(underTest.acquire());
+    underTest.onFailure(underTest.acquire());
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(underTest.isCallPermitted()).isTrue();
+  }
+
+  @Test
+  public void open_at_failure_rate() {
+    underTest.onSuccess(underTest.acquire());
+    underTest.onFailure(underTest.acquire());
+    underTest.onSuccess(underTest.acquire());
+    underTest.onFailure(underTest.acquire());
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(underTest.isCallPermitted()).isFalse();
+    IllegalStateException exception = assertThrows(IllegalStateException.class, () -> underTest.acquire());
+    assertTrue(exception.getMessage().startsWith("Identity provider unavailable"));
+    assertThat(underTest.getRejectedRequests()).isEqualTo(1);
+  }
+
+  @Test
+  public void close_after_successful_probe() {
+    openAndExpire();
+
+    assertThat(underTest.isCallPermitted()).isTrue();
+    long probe = underTest.acquire();
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+    // only a single probe is let through
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "60000");
+    assertThat(underTest.isCallPermitted()).isFalse();
+    assertThrows(IllegalStateException.class, () -> underTest.acquire());
+
+    underTest.onSuccess(probe);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(underTest.getFailureRate()).isZero();
+    underTest.acquire();
+  }
+
+  @Test
+  public void reopen_after_failed_probe() {
+    openAndExpire();
+    long probe = underTest.acquire();
+
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "60000");
+    underTest.onFailure(probe);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThrows(IllegalStateException.class, () -> underTest.acquire());
+  }
+
+  @Test
+  public void ignore_late_outcome_of_request_started_before_opening() {
+    long late = underTest.acquire();
+    openAndExpire();
+    long probe = underTest.acquire();
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "60000");
+
+    // the request started while the circuit was closed doesn't close it
+    underTest.onSuccess(late);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThrows(IllegalStateException.class, () -> underTest.acquire());
+
+    underTest.onFailure(probe);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void ignore_outcome_of_previous_probe() {
+    openAndExpire();
+    long timedOutProbe = underTest.acquire();
+    // the probe never reported back, so another one is let through after the open duration
+    long probe = underTest.acquire();
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "60000");
+
+    underTest.onSuccess(timedOutProbe);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    underTest.onSuccess(probe);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void disabled() {
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_FAILURE_RATE, "0");
+    for (int i = 0; i < 10; i++) {
+      underTest.onFailure(underTest.acquire());
+    }
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    underTest.acquire();
+  }
+
+  private void openAndExpire() {
+    for (int i = 0; i < 4; i++) {
+      underTest.onFailure(underTest.acquire());
+    }
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "0");
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Test;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DelegatingIdentityProviderTest {
+
+  private final OidcProviderRegistry registry = new OidcProviderRegistry(Collections.singletonList("keycloak"));
+  private final DelegatingIdentityProvider underTest = new DelegatingIdentityProvider("keycloak", registry);
+
+  @Test
+  public void unbound() {
+    assertThat(underTest.getKey()).isEqualTo("keycloak");
+    assertThat(underTest.isEnabled()).isFalse();
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> underTest.init(mock(OAuth2IdentityProvider.InitContext.class)));
+    assertThat(exception.getMessage()).isEqualTo("OpenID Connect identity provider 'keycloak' is not initialized");
+  }
+
+  @Test
+  public void delegate() {
+    OidcIdentityProvider delegate = mock(OidcIdentityProvider.class);
+    when(delegate.getKey()).thenReturn("keycloak");
+    when(delegate.getName()).thenReturn("Keycloak");
+    when(delegate.isEnabled()).thenReturn(true);
+    when(delegate.allowsUsersToSignUp()).thenReturn(true);
+    OidcProviderRegistry registry = mock(OidcProviderRegistry.class);
+    when(registry.get("keycloak")).thenReturn(delegate);
+    DelegatingIdentityProvider provider = new DelegatingIdentityProvider("keycloak", registry);
+
+    assertThat(provider.getName()).isEqualTo("Keycloak");
+    assertThat(provider.isEnabled()).isTrue();
+    assertThat(provider.allowsUsersToSignUp()).isTrue();
+    OAuth2IdentityProvider.InitContext initContext = mock(OAuth2IdentityProvider.InitContext.class);
+    provider.init(initContext);
+    verify(delegate).init(initContext);
+    OAuth2IdentityProvider.CallbackContext callbackContext = mock(OAuth2IdentityProvider.CallbackContext.class);
+    provider.callback(callbackContext);
+    verify(delegate).callback(callbackContext);
+    assertThat(provider).hasToString("DelegatingIdentityProvider[keycloak]");
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FailureCacheTest extends AbstractOidcTest {
+
+  @Test
+  public void return_cached_failure() {
+    settings.put(OidcConfiguration.FAILURE_CACHE_TTL, "60000");
+    FailureCache<IOException> underTest = new FailureCache<>(oidcConfig);
+    IOException failure = new IOException("test");
+    underTest.put("key", failure);
+
+    assertThat(underTest.get("key")).isSameAs(failure);
+    assertThat(underTest.get("other")).isNull();
+  }
+
+  @Test
+  public void expire_cached_failure() throws InterruptedException {
+    settings.put(OidcConfiguration.FAILURE_CACHE_TTL, "1");
+    FailureCache<IOException> underTest = new FailureCache<>(oidcConfig);
+    underTest.put("key", new IOException("test"));
+    Thread.sleep(5);
+
+    assertThat(underTest.get("key")).isNull();
+  }
+
+  @Test
+  public void limit_cached_failures() {
+    settings.put(OidcConfiguration.FAILURE_CACHE_TTL, "60000");
+    FailureCache<IOException> underTest = new FailureCache<>(oidcConfig);
+    IOException failure = new IOException("test");
+    for (int i = 0; i <= FailureCache.MAX_SIZE; i++) {
+      underTest.put("key" + i, failure);
+    }
+
+    assertThat(underTest.get("key0")).isNull();
+    assertThat(underTest.get("key1")).isSameAs(failure);
+    assertThat(underTest.get("key" + FailureCache.MAX_SIZE)).isSameAs(failure);
+  }
+
+  @Test
+  public void disabled() {
+    settings.put(OidcConfiguration.FAILURE_CACHE_TTL, "0");
+    FailureCache<IOException> underTest = new FailureCache<>(oidcConfig);
+    underTest.put("key", new IOException("test"));
+
+    assertThat(underTest.get("key")).isNull();
+  }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.Ed25519Signer;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.Issuer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the ID token validation with the different signature algorithms, e.g. to choose the
+ * cheapest algorithm supported by the identity provider.
+ * <p>
+ * Run with <code>mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath org.openjdk.jmh.Main IdTokenVerifierBenchmark"</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdTokenVerifierBenchmark {
+
+  private static final String ISSUER_URI = "https://oidc.org";
+  private static final String CLIENT_ID = "id";
+  private static final String CLIENT_SECRET = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+  @Param({ "HS256", "RS256", "RS512", "PS256", "ES256", "ES384", "ES512", "EdDSA" })
+  public String algorithm;
+
+  private IdTokenVerifier verifier;
+  private SignedJWT idToken;
+
+  @Setup
+  public void setUp() throws Exception {
+    JWSAlgorithm jwsAlgorithm = JWSAlgorithm.parse(algorithm);
+    JWK key;
+    JWSSigner signer;
+    if (JWSAlgorithm.Family.HMAC_SHA.contains(jwsAlgorithm)) {
+      key = null;
+      signer = new MACSigner(CLIENT_SECRET);
+    } else if (JWSAlgorithm.Family.RSA.contains(jwsAlgorithm)) {
+      RSAKey rsaKey = new RSAKeyGenerator(2048).keyID(algorithm).generate();
+      key = rsaKey;
+      signer = new RSASSASigner(rsaKey);
+    } else if (JWSAlgorithm.Family.EC.contains(jwsAlgorithm)) {
+      ECKey ecKey = new ECKeyGenerator(Curve.forJWSAlgorithm(jwsAlgorithm).iterator().next()).keyID(algorithm)
+          .generate();
+      key = ecKey;
+      signer = new ECDSASigner(ecKey);
+    } else {
+      OctetKeyPair edKey = new OctetKeyPairGenerator(Curve.Ed25519).keyID(algorithm).generate();
+      key = edKey;
+      signer = new Ed25519Signer(edKey);
+    }
+    String jwkSet = key == null ? new JWKSet().toString() : new JWKSet(key.toPublicJWK()).toString();
+    OidcConfiguration config = new OidcConfiguration(new BenchmarkConfiguration());
+    JwkSetSource jwkSetSource = new JwkSetSource(new URL(ISSUER_URI + "/certs"),
+        url -> new Resource(jwkSet, "application/json"), config, new JwkSetRefresher(config));
+    verifier = new IdTokenVerifier(new Issuer(ISSUER_URI), new ClientID(CLIENT_ID),
+        Collections.singleton(jwsAlgorithm), jwkSetSource, new Secret(CLIENT_SECRET));
+    idToken = new SignedJWT(new JWSHeader.Builder(jwsAlgorithm).keyID(key == null ? null : algorithm).build(),
+        new JWTClaimsSet.Builder().issuer(ISSUER_URI).audience(CLIENT_ID).subject("john").issueTime(new Date())
+            .expirationTime(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))).build());
+    idToken.sign(signer);
+  }
+
+  @Benchmark
+  public void validate() throws BadJOSEException, JOSEException {
+    verifier.validate(idToken);
+  }
+
+}
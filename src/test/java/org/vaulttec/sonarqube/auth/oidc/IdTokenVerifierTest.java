@@ -0,0 +1,359 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.Ed25519Signer;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.BadJWSException;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jwt.proc.BadJWTException;
+import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.Issuer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+
+public class IdTokenVerifierTest extends AbstractOidcTest {
+
+  private static final String SECRET = "0123456789abcdef0123456789abcdef";
+
+  private RSAKey rsaKey;
+  private ECKey ecKey;
+  private OctetKeyPair edKey;
+  private JwkSetSource jwkSetSource;
+
+  @Before
+  public void setUp() throws Exception {
+    rsaKey = new RSAKeyGenerator(2048).keyID("rsa").generate();
+    ecKey = new ECKeyGenerator(Curve.P_521).keyID("ec").generate();
+    edKey = new OctetKeyPairGenerator(Curve.Ed25519).keyID("ed").generate();
+    String jwkSet = new JWKSet(Arrays.asList(rsaKey.toPublicJWK(), ecKey.toPublicJWK(),
+        edKey.toPublicJWK())).toString();
+    jwkSetSource = new JwkSetSource(new URL(ISSUER_URI + "/certs"),
+        url -> new Resource(jwkSet, "application/json"), oidcConfig, mock(JwkSetRefresher.class));
+  }
+
+  @Test
+  public void rsa() throws Exception {
+    newVerifier(JWSAlgorithm.RS256).validate(newIdToken(JWSAlgorithm.RS256, "rsa", new RSASSASigner(rsaKey)));
+    newVerifier(JWSAlgorithm.RS512).validate(newIdToken(JWSAlgorithm.RS512, "rsa", new RSASSASigner(rsaKey)));
+  }
+
+  @Test
+  public void rsa_pss() throws Exception {
+    newVerifier(JWSAlgorithm.PS384).validate(newIdToken(JWSAlgorithm.PS384, "rsa", new RSASSASigner(rsaKey)));
+  }
+
+  @Test
+  public void ecdsa() throws Exception {
+    newVerifier(JWSAlgorithm.ES512).validate(newIdToken(JWSAlgorithm.ES512, "ec", new ECDSASigner(ecKey)));
+  }
+
+  @Test
+  public void eddsa() throws Exception {
+    newVerifier(JWSAlgorithm.EdDSA).validate(newIdToken(JWSAlgorithm.EdDSA, "ed", new Ed25519Signer(edKey)));
+  }
+
+  @Test
+  public void hmac_with_client_secret() throws Exception {
+    newVerifier(JWSAlgorithm.HS256).validate(newIdToken(JWSAlgorithm.HS256, null, new MACSigner(SECRET)));
+  }
+
+  @Test
+  public void hmac_with_short_client_secret() {
+    assertThrows(JOSEException.class, () -> new IdTokenVerifier(new Issuer(ISSUER_URI), new ClientID("id"),
+        Collections.singleton(JWSAlgorithm.HS256), jwkSetSource, new Secret("secret")));
+  }
+
+  @Test
+  public void multiple_algorithms() throws Exception {
+    Set<JWSAlgorithm> algorithms = new HashSet<>(IdTokenVerifier.ASYMMETRIC_ALGORITHMS);
+    IdTokenVerifier underTest = newVerifier(algorithms);
+    underTest.validate(newIdToken(JWSAlgorithm.RS256, "rsa", new RSASSASigner(rsaKey)));
+    underTest.validate(newIdToken(JWSAlgorithm.ES512, "ec", new ECDSASigner(ecKey)));
+    underTest.validate(newIdToken(JWSAlgorithm.EdDSA, "ed", new Ed25519Signer(edKey)));
+  }
+
+  @Test
+  public void algorithm_not_accepted() throws Exception {
+    SignedJWT idToken = newIdToken(JWSAlgorithm.RS384, "rsa", new RSASSASigner(rsaKey));
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> newVerifier(JWSAlgorithm.RS256).validate(idToken));
+    assertThat(exception).hasMessage("Signed ID token rejected: Algorithm RS384 not accepted");
+  }
+
+  @Test
+  public void hmac_not_accepted_with_asymmetric_algorithm() throws Exception {
+    SignedJWT idToken = newIdToken(JWSAlgorithm.HS256, "rsa", new MACSigner(SECRET));
+    assertThrows(BadJOSEException.class, () -> newVerifier(IdTokenVerifier.ASYMMETRIC_ALGORITHMS).validate(idToken));
+  }
+
+  @Test
+  public void unknown_key() throws Exception {
+    RSAKey otherKey = new RSAKeyGenerator(2048).keyID("other").generate();
+    SignedJWT idToken = newIdToken(JWSAlgorithm.RS256, "other", new RSASSASigner(otherKey));
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> newVerifier(JWSAlgorithm.RS256).validate(idToken));
+    assertThat(exception).hasMessage("Signed ID token rejected: No matching key found");
+  }
+
+  @Test
+  public void invalid_signature() throws Exception {
+    RSAKey otherKey = new RSAKeyGenerator(2048).keyID("rsa").generate();
+    SignedJWT idToken = newIdToken(JWSAlgorithm.RS256, "rsa", new RSASSASigner(otherKey));
+    assertThrows(BadJWSException.class, () -> newVerifier(JWSAlgorithm.RS256).validate(idToken));
+  }
+
+  @Test
+  public void invalid_audience() throws Exception {
+    SignedJWT idToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa").build(),
+        new JWTClaimsSet.Builder().issuer(ISSUER_URI).audience("other").subject("john").issueTime(new Date())
+            .expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+    idToken.sign(new RSASSASigner(rsaKey));
+    assertThrows(BadJWTException.class, () -> newVerifier(JWSAlgorithm.RS256).validate(idToken));
+  }
+
+  @Test
+  public void unsigned_id_token() {
+    PlainJWT idToken = new PlainJWT(new JWTClaimsSet.Builder().issuer(ISSUER_URI).audience("id").build());
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> newVerifier(JWSAlgorithm.RS256).validate(idToken));
+    assertThat(exception).hasMessage("Signed ID token expected");
+  }
+
+  @Test
+  public void user_info() throws Exception {
+    SignedJWT userInfo = newUserInfo(ISSUER_URI, "john");
+    userInfo.sign(new RSASSASigner(rsaKey));
+
+    JWTClaimsSet claims = newVerifier(JWSAlgorithm.RS256).validateUserInfo(userInfo, "john");
+    assertThat(claims.getStringClaim("name")).isEqualTo("John Doo");
+  }
+
+  @Test
+  public void user_info_without_issuer() throws Exception {
+    SignedJWT userInfo = newUserInfo(null, "john");
+    userInfo.sign(new RSASSASigner(rsaKey));
+
+    assertThat(newVerifier(JWSAlgorithm.RS256).validateUserInfo(userInfo, "john").getSubject()).isEqualTo("john");
+  }
+
+  @Test
+  public void user_info_of_other_subject() throws Exception {
+    SignedJWT userInfo = newUserInfo(ISSUER_URI, "jane");
+    userInfo.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier verifier = newVerifier(JWSAlgorithm.RS256);
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> verifier.validateUserInfo(userInfo, "john"));
+    assertThat(exception).hasMessage("Signed UserInfo response rejected: Subject doesn't match the ID token's "
+        + "subject");
+  }
+
+  @Test
+  public void user_info_of_other_issuer() throws Exception {
+    SignedJWT userInfo = newUserInfo("https://other.acme.com", "john");
+    userInfo.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier verifier = newVerifier(JWSAlgorithm.RS256);
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> verifier.validateUserInfo(userInfo, "john"));
+    assertThat(exception).hasMessage("Signed UserInfo response rejected: Unexpected issuer https://other.acme.com");
+  }
+
+  @Test
+  public void user_info_with_invalid_signature() throws Exception {
+    SignedJWT userInfo = newUserInfo(ISSUER_URI, "john");
+    userInfo.sign(new RSASSASigner(new RSAKeyGenerator(2048).keyID("rsa").generate()));
+
+    IdTokenVerifier verifier = newVerifier(JWSAlgorithm.RS256);
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> verifier.validateUserInfo(userInfo, "john"));
+    assertThat(exception).hasMessage("Signed UserInfo response rejected: Invalid signature");
+  }
+
+  @Test
+  public void unsigned_user_info() throws Exception {
+    PlainJWT userInfo = new PlainJWT(new JWTClaimsSet.Builder().subject("john").build());
+
+    IdTokenVerifier verifier = newVerifier(JWSAlgorithm.RS256);
+    BadJOSEException exception = assertThrows(BadJOSEException.class,
+        () -> verifier.validateUserInfo(userInfo, "john"));
+    assertThat(exception).hasMessage("Signed UserInfo response expected");
+  }
+
+  private IdTokenVerifier newVerifier(JWSAlgorithm algorithm) throws JOSEException {
+    return newVerifier(Collections.singleton(algorithm));
+  }
+
+  private IdTokenVerifier newVerifier(Set<JWSAlgorithm> algorithms) throws JOSEException {
+    return new IdTokenVerifier(new Issuer(ISSUER_URI), new ClientID("id"), algorithms, jwkSetSource,
+        new Secret(SECRET));
+  }
+
+  static SignedJWT newIdToken(JWSAlgorithm algorithm, String keyId, JWSSigner signer) throws JOSEException {
+    SignedJWT idToken = new SignedJWT(new JWSHeader.Builder(algorithm).keyID(keyId).build(),
+        new JWTClaimsSet.Builder().issuer(ISSUER_URI).audience("id").subject("john").issueTime(new Date())
+            .expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+    idToken.sign(signer);
+    return idToken;
+  }
+
+  @Test
+  public void access_token() throws Exception {
+    SignedJWT accessToken = newAccessToken(ISSUER_URI, "api", new Date(System.currentTimeMillis() + 60000));
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    JWTClaimsSet claims = newVerifier(JWSAlgorithm.RS256).validateAccessToken(accessToken, "api");
+    assertThat(claims.getSubject()).isEqualTo("john");
+  }
+
+  @Test
+  public void access_token_for_other_audience() throws Exception {
+    SignedJWT accessToken = newAccessToken(ISSUER_URI, "other", new Date(System.currentTimeMillis() + 60000));
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(accessToken, "api"));
+  }
+
+  @Test
+  public void access_token_of_other_issuer() throws Exception {
+    SignedJWT accessToken = newAccessToken("https://other", "api", new Date(System.currentTimeMillis() + 60000));
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(accessToken, "api"));
+  }
+
+  @Test
+  public void access_token_without_expiration() throws Exception {
+    SignedJWT accessToken = newAccessToken(ISSUER_URI, "api", null);
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    SignedJWT parsedAccessToken = SignedJWT.parse(accessToken.serialize());
+    assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(parsedAccessToken, "api"));
+  }
+
+  @Test
+  public void expired_access_token() throws Exception {
+    SignedJWT accessToken = newAccessToken(ISSUER_URI, "api", new Date(System.currentTimeMillis() - 600000));
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(accessToken, "api"));
+  }
+
+  @Test
+  public void access_token_of_type_at_jwt() throws Exception {
+    SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa")
+        .type(new JOSEObjectType("at+jwt")).build(), newAccessToken(ISSUER_URI, "api",
+        new Date(System.currentTimeMillis() + 60000)).getJWTClaimsSet());
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    assertThat(newVerifier(JWSAlgorithm.RS256).validateAccessToken(accessToken, "api").getSubject())
+        .isEqualTo("john");
+  }
+
+  @Test
+  public void access_token_of_other_type() throws Exception {
+    SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa")
+        .type(new JOSEObjectType("logout+jwt")).build(), newAccessToken(ISSUER_URI, "api",
+        new Date(System.currentTimeMillis() + 60000)).getJWTClaimsSet());
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    assertThrows(BadJOSEException.class, () -> underTest.validateAccessToken(accessToken, "api"));
+  }
+
+  @Test
+  public void id_token_as_access_token() throws Exception {
+    SignedJWT idToken = newIdToken(JWSAlgorithm.RS256, "rsa", new RSASSASigner(rsaKey));
+
+    // even if the client ID is (mis)configured as audience
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    assertThat(assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(idToken, "id")))
+        .hasMessage("Signed access token rejected: ID token not accepted");
+  }
+
+  @Test
+  public void access_token_with_id_token_claims() throws Exception {
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    for (String claim : Arrays.asList("nonce", "at_hash", "c_hash")) {
+      SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa").build(),
+          new JWTClaimsSet.Builder(newAccessToken(ISSUER_URI, "api", new Date(System.currentTimeMillis() + 60000))
+              .getJWTClaimsSet()).claim(claim, "x").build());
+      accessToken.sign(new RSASSASigner(rsaKey));
+      assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(accessToken, "api"));
+    }
+  }
+
+  @Test
+  public void access_token_issued_to_client() throws Exception {
+    SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa").build(),
+        new JWTClaimsSet.Builder(newAccessToken(ISSUER_URI, "api", new Date(System.currentTimeMillis() + 60000))
+            .getJWTClaimsSet()).claim("azp", "id").build());
+    accessToken.sign(new RSASSASigner(rsaKey));
+
+    IdTokenVerifier underTest = newVerifier(JWSAlgorithm.RS256);
+    assertThrows(BadJWTException.class, () -> underTest.validateAccessToken(accessToken, "api"));
+  }
+
+  private static SignedJWT newAccessToken(String issuer, String audience, Date expirationTime) {
+    return new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa").build(),
+        new JWTClaimsSet.Builder().issuer(issuer).audience(audience).subject("john").expirationTime(expirationTime)
+            .build());
+  }
+
+  private static SignedJWT newUserInfo(String issuer, String subject) {
+    return new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("rsa").build(),
+        new JWTClaimsSet.Builder().issuer(issuer).audience("id").subject(subject).claim("name", "John Doo").build());
+  }
+
+}
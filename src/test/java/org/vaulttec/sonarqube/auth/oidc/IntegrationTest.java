@@ -18,34 +18,78 @@
 package org.vaulttec.sonarqube.auth.oidc;
 
 import com.nimbusds.common.contenttype.ContentType;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSAEncrypter;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.EncryptedJWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.pkce.CodeChallenge;
+import com.nimbusds.oauth2.sdk.pkce.CodeChallengeMethod;
+import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
+import com.nimbusds.oauth2.sdk.util.URLUtils;
+import com.nimbusds.openid.connect.sdk.AuthenticationRequest;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.server.http.Cookie;
 import org.sonar.api.server.http.HttpRequest;
 import org.sonar.api.server.http.HttpResponse;
 
 import java.io.IOException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.String.format;
 import static java.net.URLEncoder.encode;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class IntegrationTest extends AbstractOidcTest {
 
   @Rule
   public MockWebServer idp = new MockWebServer();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
   private String idpUri = format("http://%s:%d", idp.getHostName(), idp.getPort());
 
   private OidcClient oidcClient;
@@ -73,6 +117,90 @@ public class IntegrationTest extends AbstractOidcTest {
         .contains("scope=" + encode("openid email profile", StandardCharsets.UTF_8.name()));
   }
 
+  @Test
+  public void redirect_browser_with_pushed_authentication_request() throws Exception {
+    settings.put(OidcConfiguration.PUSHED_AUTHORIZATION_REQUESTS, "true");
+    settings.put(OidcConfiguration.PKCE, "true");
+    idp.enqueue(newJsonResponse("{\"request_uri\":\"urn:ietf:params:oauth:request_uri:abc\",\"expires_in\":60}")
+        .setResponseCode(201));
+    DumbInitContext context = new DumbInitContext(STATE);
+    newPushedAuthorizationProvider().init(context);
+
+    assertThat(context.redirectedTo).isEqualTo(idp.url("protocol/openid-connect/auth") + "?client_id=id"
+        + "&request_uri=" + encode("urn:ietf:params:oauth:request_uri:abc", StandardCharsets.UTF_8.name()));
+    RecordedRequest pushedRequest = idp.takeRequest();
+    assertThat(pushedRequest.getPath()).isEqualTo("/protocol/openid-connect/ext/par/request");
+    assertThat(pushedRequest.getHeader("Authorization")).startsWith("Basic ");
+    assertThat(pushedRequest.getBody().readUtf8()).contains("state=" + STATE, "code_challenge=",
+        "code_challenge_method=S256", "scope=openid+email+profile");
+  }
+
+  @Test
+  public void redirect_browser_retries_pushed_authentication_request_with_new_client_assertion() throws Exception {
+    settings.put(OidcConfiguration.PUSHED_AUTHORIZATION_REQUESTS, "true");
+    settings.put(OidcConfiguration.CLIENT_AUTH_METHOD, "private_key_jwt");
+    settings.put(OidcConfiguration.CLIENT_AUTH_KEY, IdTokenDecrypterTest.toPem(new RSAKeyGenerator(2048).generate()));
+    idp.enqueue(new MockResponse().setResponseCode(503));
+    idp.enqueue(newJsonResponse("{\"request_uri\":\"urn:ietf:params:oauth:request_uri:abc\",\"expires_in\":60}")
+        .setResponseCode(201));
+    DumbInitContext context = new DumbInitContext(STATE);
+    newPushedAuthorizationProvider().init(context);
+
+    assertThat(context.redirectedTo).contains("request_uri=");
+    String firstAssertion = getClientAssertion(idp.takeRequest());
+    String secondAssertion = getClientAssertion(idp.takeRequest());
+    assertThat(firstAssertion).isNotNull();
+    assertThat(secondAssertion).isNotNull().isNotEqualTo(firstAssertion);
+  }
+
+  @Test
+  public void redirect_browser_without_pushed_authentication_request_if_not_supported() throws Exception {
+    settings.put(OidcConfiguration.PUSHED_AUTHORIZATION_REQUESTS, "true");
+    DumbInitContext context = new DumbInitContext(STATE);
+    underTest.init(context);
+
+    assertThat(context.redirectedTo).startsWith(idp.url("protocol/openid-connect/auth").toString())
+        .contains("scope=" + encode("openid email profile", StandardCharsets.UTF_8.name()));
+    assertThat(idp.getRequestCount()).isZero();
+  }
+
+  @Test
+  public void redirect_browser_fails_if_pushed_authentication_request_is_rejected() {
+    settings.put(OidcConfiguration.PUSHED_AUTHORIZATION_REQUESTS, "true");
+    idp.enqueue(newJsonResponse("{\"error\":\"invalid_request\"}").setResponseCode(400));
+    DumbInitContext context = new DumbInitContext(STATE);
+    OidcIdentityProvider provider = newPushedAuthorizationProvider();
+
+    IllegalStateException exception = assertThrows(IllegalStateException.class, () -> provider.init(context));
+    assertThat(exception).hasMessage("Pushed authorization request failed: {\"error\":\"invalid_request\"}");
+    assertThat(context.redirectedTo).isNull();
+  }
+
+  @Test
+  public void redirect_browser_warms_up_callback() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setSignedUserInfoDispatcher(key, key);
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    provider.init(new DumbInitContext(STATE));
+    assertThat(idp.takeRequest().getPath()).isEqualTo("/.well-known/openid-configuration");
+    // the JWK set and the connection to the token endpoint are prepared in the background
+    assertThat(idp.takeRequest(10, TimeUnit.SECONDS).getPath()).isEqualTo("/protocol/openid-connect/certs");
+    RecordedRequest connectionRequest = idp.takeRequest(10, TimeUnit.SECONDS);
+    assertThat(connectionRequest.getMethod()).isEqualTo("GET");
+    assertThat(connectionRequest.getPath()).isEqualTo("/protocol/openid-connect/token");
+
+    // another login doesn't warm up again
+    provider.init(new DumbInitContext(STATE));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.takeRequest().getMethod()).isEqualTo("POST");
+    assertThat(idp.takeRequest().getPath()).isEqualTo("/protocol/openid-connect/userinfo");
+    assertThat(idp.getRequestCount()).isEqualTo(5);
+  }
+
   /**
    * Second phase: OpenID connect provider redirects browser to SonarQube at
    * /oauth/callback/oidc?code={the access code}. This SonarQube web service sends
@@ -98,6 +226,33 @@ public class IntegrationTest extends AbstractOidcTest {
     assertThat(accessTokenRequest.getPath()).startsWith("/protocol/openid-connect/token");
   }
 
+  @Test
+  public void callback_resets_auto_login_redirect_counter() {
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+    HttpRequest request = newAuthenticationRequest();
+    when(request.getCookies()).thenReturn(new Cookie[] { new HttpOnlyCookie(AutoLoginFilter.LOOP_COOKIE, "1", "/",
+        false, AutoLoginFilter.LOOP_WINDOW) });
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request);
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(callbackContext.response).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName()).isEqualTo(AutoLoginFilter.LOOP_COOKIE);
+    assertThat(cookie.getValue().getPath()).isEqualTo("/");
+    assertThat(cookie.getValue().getMaxAge()).isZero();
+  }
+
+  @Test
+  public void callback_without_auto_login_redirect_counter() {
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+
+    verify(callbackContext.response, never()).addCookie(any(Cookie.class));
+  }
+
   /**
    * Second phase: OpenID connect provider redirects browser to SonarQube at
    * /oauth/callback/oidc?code={the access code}. This SonarQube web service sends
@@ -154,6 +309,120 @@ public class IntegrationTest extends AbstractOidcTest {
     assertThat(accessTokenRequest.getPath()).startsWith("/protocol/openid-connect/token");
   }
 
+  /**
+   * Second phase with a transient error of the userinfo endpoint which is
+   * retried.
+   */
+  @Test
+  public void callback_retries_user_info_request_on_transient_error() throws InterruptedException {
+    idp.enqueue(newSuccessfulAccessTokenResponseWithoutUserInfo());
+    idp.enqueue(new MockResponse().setResponseCode(503));
+    idp.enqueue(newUserInfoResponse());
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(3);
+    assertThat(idp.takeRequest().getPath()).startsWith("/protocol/openid-connect/token");
+    assertThat(idp.takeRequest().getPath()).startsWith("/protocol/openid-connect/userinfo");
+    assertThat(idp.takeRequest().getPath()).startsWith("/protocol/openid-connect/userinfo");
+  }
+
+  @Test
+  public void callback_does_not_retry_token_request() {
+    idp.enqueue(new MockResponse().setResponseCode(503));
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+
+    assertThrows(IllegalStateException.class, () -> underTest.callback(callbackContext));
+    assertThat(callbackContext.userIdentity).isNull();
+    assertThat(idp.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void provider_metadata_is_cached() {
+    idp.enqueue(new MockResponse().setHeader("Content-Type", ContentType.APPLICATION_JSON)
+        .setBody(getProviderMetadata(idpUri).toJSONObject().toJSONString()));
+    OidcClient client = new OidcClient(oidcConfig);
+
+    assertThat(client.getProviderMetadata().getIssuer().getValue()).isEqualTo(idpUri);
+    assertThat(client.getProviderMetadata().getIssuer().getValue()).isEqualTo(idpUri);
+    assertThat(idp.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void callback_validates_id_token_of_tenant_issuer() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setMultiTenantDispatcher(key, "tenant1");
+    // the same authorization code and ID token are used for both logins
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "0");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(4);
+
+    // provider metadata and tenant validator (incl. JWK set) are cached
+    callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void callback_rejects_id_token_of_unknown_tenant_issuer() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setMultiTenantDispatcher(key, "tenant1");
+    settings.put(OidcConfiguration.TENANT_ISSUERS, idpUri + "/tenant2");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid ID token: Issuer '" + idpUri + "/tenant1' is not accepted "
+        + "(see setting 'Tenant issuers')");
+    assertThat(idp.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void provider_metadata_is_shared_by_cluster_nodes() throws IOException {
+    settings.put(OidcConfiguration.SHARED_CACHE_DIRECTORY, temp.newFolder().getPath());
+    idp.enqueue(new MockResponse().setHeader("Content-Type", ContentType.APPLICATION_JSON)
+        .setBody(getProviderMetadata(idpUri).toJSONObject().toJSONString()));
+    OidcClient node1 = new OidcClient(oidcConfig);
+    OidcClient node2 = new OidcClient(oidcConfig);
+
+    assertThat(node1.getProviderMetadata().getIssuer().getValue()).isEqualTo(idpUri);
+    assertThat(node2.getProviderMetadata().getIssuer().getValue()).isEqualTo(idpUri);
+    assertThat(idp.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void failed_provider_metadata_retrieval_is_cached() {
+    idp.enqueue(new MockResponse().setResponseCode(404));
+    OidcClient client = new OidcClient(oidcConfig);
+
+    IllegalStateException first = assertThrows(IllegalStateException.class, client::getProviderMetadata);
+    IllegalStateException second = assertThrows(IllegalStateException.class, client::getProviderMetadata);
+    assertThat(second).hasMessage(first.getMessage()).hasCause(first.getCause());
+    assertThat(idp.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void failed_provider_metadata_retrieval_is_not_cached_if_disabled() {
+    settings.put(OidcConfiguration.FAILURE_CACHE_TTL, "0");
+    idp.enqueue(new MockResponse().setResponseCode(404));
+    idp.enqueue(new MockResponse().setResponseCode(404));
+    OidcClient client = new OidcClient(oidcConfig);
+
+    assertThrows(IllegalStateException.class, client::getProviderMetadata);
+    assertThrows(IllegalStateException.class, client::getProviderMetadata);
+    assertThat(idp.getRequestCount()).isEqualTo(2);
+  }
+
   @Test
   public void callback_throws_ISE_if_error_when_requesting_id_token() throws InterruptedException {
     idp.enqueue(new MockResponse().addHeader("Content-Type", ContentType.APPLICATION_JSON).setResponseCode(500)
@@ -176,6 +445,648 @@ public class IntegrationTest extends AbstractOidcTest {
     assertThat(accessTokenRequest.getPath()).startsWith("/protocol/openid-connect/token");
   }
 
+  @Test
+  public void callback_authenticates_with_client_assertion() throws Exception {
+    settings.put(OidcConfiguration.CLIENT_AUTH_METHOD, "private_key_jwt");
+    settings.put(OidcConfiguration.CLIENT_AUTH_KEY, IdTokenDecrypterTest.toPem(new RSAKeyGenerator(2048).generate()));
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+
+    RecordedRequest accessTokenRequest = idp.takeRequest();
+    assertThat(accessTokenRequest.getHeader("Authorization")).isNull();
+    assertThat(accessTokenRequest.getBody().readUtf8())
+        .contains("client_assertion_type=urn%3Aietf%3Aparams%3Aoauth%3Aclient-assertion-type%3Ajwt-bearer")
+        .contains("client_assertion=ey");
+  }
+
+  @Test
+  public void callback_authenticates_with_tls_client_certificate() throws Exception {
+    idp.useHttps(TlsContextTest.newServerContext().getSocketFactory(), false);
+    idp.requireClientAuth();
+    setSettings(true, idp.url("/").toString().replaceAll("/$", ""));
+    settings.put(OidcConfiguration.CLIENT_AUTH_METHOD, "tls_client_auth");
+    settings.put(OidcConfiguration.TLS_KEYSTORE, TlsContextTest.getPath(TlsContextTest.CLIENT_KEYSTORE));
+    settings.put(OidcConfiguration.TLS_KEYSTORE_PASSWORD, TlsContextTest.PASSWORD);
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE, TlsContextTest.getPath(TlsContextTest.TRUSTSTORE));
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE_PASSWORD, TlsContextTest.PASSWORD);
+    OidcClient client = createSpyOidcClient();
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, client, userIdentityFactory);
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+
+    RecordedRequest accessTokenRequest = idp.takeRequest();
+    assertThat(accessTokenRequest.getHandshake().peerPrincipal().getName()).isEqualTo("CN=sonarqube");
+    assertThat(accessTokenRequest.getHeader("Authorization")).isNull();
+    assertThat(accessTokenRequest.getBody().readUtf8()).contains("client_id=id");
+  }
+
+  @Test
+  public void callback_validates_nonce() throws Exception {
+    settings.put(OidcConfiguration.NONCE, "true");
+    DumbInitContext initContext = new DumbInitContext(STATE);
+    underTest.init(initContext);
+    String nonce = AuthenticationRequest.parse(new URI(initContext.redirectedTo)).getNonce().getValue();
+    idp.enqueue(newJsonResponse("{\"access_token\":\"at\",\"token_type\":\"Bearer\",\"id_token\":\""
+        + newIdTokenWithNonce(nonce).serialize() + "\"}"));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+
+    // the nonce can't be used for another login
+    DumbCallbackContext replayContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> underTest.callback(replayContext));
+    assertThat(exception).hasMessageStartingWith("Invalid authentication response: Login unknown or expired");
+  }
+
+  @Test
+  public void callback_sends_pkce_code_verifier() throws Exception {
+    settings.put(OidcConfiguration.PKCE, "true");
+    DumbInitContext initContext = new DumbInitContext(STATE);
+    underTest.init(initContext);
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(initContext.response).addCookie(cookie.capture());
+    CodeVerifier codeVerifier = new CodeVerifier(cookie.getValue().getValue());
+    AuthenticationRequest authenticationRequest = AuthenticationRequest.parse(new URI(initContext.redirectedTo));
+    assertThat(authenticationRequest.getCodeChallengeMethod()).isEqualTo(CodeChallengeMethod.S256);
+    assertThat(authenticationRequest.getCodeChallenge())
+        .isEqualTo(CodeChallenge.compute(CodeChallengeMethod.S256, codeVerifier));
+
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+    HttpRequest request = newAuthenticationRequest();
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie.getValue()});
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request);
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.takeRequest().getBody().readUtf8()).contains("code_verifier=" + codeVerifier.getValue());
+
+    // the cookie is removed
+    verify(callbackContext.response).addCookie(argThat(removed -> removed.getName().equals(cookie.getValue().getName())
+        && removed.getMaxAge() == 0));
+  }
+
+  @Test
+  public void callback_rejects_missing_pkce_code_verifier() {
+    settings.put(OidcConfiguration.PKCE, "true");
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> underTest.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid authentication response: Login unknown or expired (no PKCE code "
+        + "verifier found)");
+    assertThat(idp.getRequestCount()).isZero();
+  }
+
+  @Test
+  public void callback_rejects_unexpected_nonce() throws Exception {
+    settings.put(OidcConfiguration.NONCE, "true");
+    underTest.init(new DumbInitContext(STATE));
+    idp.enqueue(newJsonResponse("{\"access_token\":\"at\",\"token_type\":\"Bearer\",\"id_token\":\""
+        + newIdTokenWithNonce("other").serialize() + "\"}"));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> underTest.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid ID token: Unexpected nonce");
+    assertThat(callbackContext.userIdentity).isNull();
+  }
+
+  @Test
+  public void callback_decrypts_encrypted_id_token() throws Exception {
+    RSAKey encryptionKey = new RSAKeyGenerator(2048).generate();
+    settings.put(OidcConfiguration.ID_TOKEN_ENC_ALG, "RSA-OAEP-256");
+    settings.put(OidcConfiguration.ID_TOKEN_DEC_KEY, IdTokenDecrypterTest.toPem(encryptionKey));
+    SignedJWT idToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build(),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("id").subject("john")
+            .issueTime(new Date()).expirationTime(new Date(System.currentTimeMillis() + 60000))
+            .claim("name", "John Doo").claim("preferred_username", "john.doo")
+            .claim("myGroups", Arrays.asList("group1", "group2")).build());
+    idToken.sign(new RSASSASigner(new RSAKeyGenerator(2048).generate()));
+    EncryptedJWT encryptedIdToken = IdTokenDecrypterTest.encrypt(idToken, JWEAlgorithm.RSA_OAEP_256,
+        EncryptionMethod.A128CBC_HS256, new RSAEncrypter(encryptionKey));
+    idp.enqueue(newJsonResponse("{\"access_token\":\"at\",\"token_type\":\"Bearer\",\"id_token\":\""
+        + encryptedIdToken.serialize() + "\"}"));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    underTest.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("group1", "group2");
+  }
+
+  @Test
+  public void callback_rejects_unencrypted_id_token() {
+    settings.put(OidcConfiguration.ID_TOKEN_ENC_ALG, "RSA-OAEP-256");
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> underTest.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid ID token: Encrypted ID token expected "
+        + "(see setting 'ID token encryption algorithm')");
+    assertThat(callbackContext.userIdentity).isNull();
+  }
+
+  @Test
+  public void callback_rejects_replayed_authorization_code() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setMultiTenantDispatcher(key, "tenant1");
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "50");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(4);
+
+    // the replayed authorization code is rejected without sending a token request
+    DumbCallbackContext replayedCallbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(replayedCallbackContext));
+    assertThat(exception).hasMessage("Invalid authentication response: Authorization code has already been used");
+    assertThat(replayedCallbackContext.userIdentity).isNull();
+    assertThat(idp.getRequestCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void callback_can_be_retried_if_token_endpoint_did_not_respond() {
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "50");
+    idp.enqueue(new MockResponse().setResponseCode(503));
+    idp.enqueue(newSuccessfulAccessTokenResponse());
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    assertThrows(IllegalStateException.class, () -> underTest.callback(callbackContext));
+    assertThat(callbackContext.userIdentity).isNull();
+
+    // the authorization code hasn't been redeemed, so the callback can be retried
+    DumbCallbackContext retriedCallbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    underTest.callback(retriedCallbackContext);
+    assertThat(retriedCallbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void callback_rejects_authorization_code_rejected_by_token_endpoint() {
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "50");
+    idp.enqueue(newJsonResponse("{\"error\":\"invalid_grant\"}").setResponseCode(400));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> underTest.callback(callbackContext));
+    assertThat(exception).hasMessage("Token request failed: {\"error\":\"invalid_grant\"}");
+
+    // the replayed authorization code is rejected without sending a token request
+    DumbCallbackContext replayedCallbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    exception = assertThrows(IllegalStateException.class, () -> underTest.callback(replayedCallbackContext));
+    assertThat(exception).hasMessage("Invalid authentication response: Authorization code has already been used");
+    assertThat(idp.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void callback_rejects_replayed_id_token() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setMultiTenantDispatcher(key, "tenant1");
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "50");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+
+    // a new authorization code which is exchanged for the same ID token
+    HttpRequest request = newAuthenticationRequest();
+    when(request.getQueryString()).thenReturn("state=" + STATE + "&code=other-code");
+    DumbCallbackContext replayedCallbackContext = new DumbCallbackContext(request);
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(replayedCallbackContext));
+    assertThat(exception).hasMessage("Invalid ID token: Token has already been used");
+    assertThat(replayedCallbackContext.userIdentity).isNull();
+    assertThat(idp.getRequestCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void callback_validates_signed_user_info_response() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setSignedUserInfoDispatcher(key, key);
+    // the same authorization code and ID token are used for both logins
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "0");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(callbackContext.userIdentity.getName()).isEqualTo("John Doo");
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("group1", "group2");
+    assertThat(idp.getRequestCount()).isEqualTo(4);
+
+    // the JWK set downloaded for the ID token is reused for the UserInfo response
+    callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void callback_rejects_invalid_signed_user_info_response() throws Exception {
+    setSignedUserInfoDispatcher(new RSAKeyGenerator(2048).keyID("k1").generate(),
+        new RSAKeyGenerator(2048).keyID("k1").generate());
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid UserInfo response")
+        .hasRootCauseMessage("Signed UserInfo response rejected: Invalid signature");
+    assertThat(callbackContext.userIdentity).isNull();
+  }
+
+  @Test
+  public void callback_authenticates_with_bearer_token() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setSignedUserInfoDispatcher(key, key);
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "api");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+    SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build(),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("api").subject("john")
+            .expirationTime(new Date(System.currentTimeMillis() + 60000))
+            .claim("name", "John Doo").claim("preferred_username", "john.doo")
+            .claim("myGroups", Arrays.asList("group1", "group2")).build());
+    accessToken.sign(new RSASSASigner(key));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest(accessToken.serialize()));
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(callbackContext.userIdentity.getName()).isEqualTo("John Doo");
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("group1", "group2");
+    assertThat(callbackContext.csrfStateVerified.get()).isFalse();
+    assertThat(idp.takeRequest().getPath()).isEqualTo("/.well-known/openid-configuration");
+    assertThat(idp.takeRequest().getPath()).isEqualTo("/protocol/openid-connect/certs");
+    assertThat(idp.getRequestCount()).isEqualTo(2);
+
+    // the validated bearer token is cached until it expires
+    callbackContext = new DumbCallbackContext(newBearerTokenRequest(accessToken.serialize()));
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(idp.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void callback_rejects_invalid_bearer_token() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setSignedUserInfoDispatcher(key, key);
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "api");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+    SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build(),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("other").subject("john")
+            .expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+    accessToken.sign(new RSASSASigner(key));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest(accessToken.serialize()));
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid bearer token");
+    assertThat(callbackContext.userIdentity).isNull();
+
+    DumbCallbackContext otherCallbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+    exception = assertThrows(IllegalStateException.class, () -> provider.callback(otherCallbackContext));
+    assertThat(exception).hasMessage("Invalid bearer token: Not a JWT");
+  }
+
+  @Test
+  public void callback_rejects_id_token_as_bearer_token() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setSignedUserInfoDispatcher(key, key);
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "id");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+    SignedJWT idToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build(),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("id").subject("john").claim("azp", "id")
+            .claim("nonce", "n").expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+    idToken.sign(new RSASSASigner(key));
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest(idToken.serialize()));
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid bearer token")
+        .hasRootCauseMessage("Signed access token rejected: ID token not accepted");
+    assertThat(callbackContext.userIdentity).isNull();
+  }
+
+  @Test
+  public void callback_rejects_bearer_token_without_audience_setting() {
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(callbackContext));
+    assertThat(exception).hasMessage("Bearer token can't be validated: No audience configured "
+        + "(see setting 'Bearer token audience')");
+    assertThat(idp.getRequestCount()).isZero();
+  }
+
+  @Test
+  public void callback_retries_introspection_with_new_client_assertion() throws Exception {
+    setIntrospectionDispatcher("{\"active\":true,\"sub\":\"john\",\"username\":\"john.doo\",\"name\":\"John Doo\","
+        + "\"aud\":\"api\",\"myGroups\":[\"group1\"]}");
+    settings.put(OidcConfiguration.CLIENT_AUTH_METHOD, "private_key_jwt");
+    settings.put(OidcConfiguration.CLIENT_AUTH_KEY, IdTokenDecrypterTest.toPem(new RSAKeyGenerator(2048).generate()));
+    Dispatcher dispatcher = idp.getDispatcher();
+    List<String> clientAssertions = new CopyOnWriteArrayList<>();
+    idp.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        if (request.getPath().equals("/protocol/openid-connect/token/introspect")) {
+          clientAssertions.add(getClientAssertion(request));
+          if (clientAssertions.size() == 1) {
+            return new MockResponse().setResponseCode(503);
+          }
+        }
+        return dispatcher.dispatch(request);
+      }
+    });
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(clientAssertions).hasSize(2).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void callback_authenticates_with_introspected_bearer_token() throws Exception {
+    long expirationTime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 60;
+    AtomicInteger introspectionRequests = setIntrospectionDispatcher("{\"active\":true,\"sub\":\"john\","
+        + "\"username\":\"john.doo\",\"name\":\"John Doo\",\"aud\":\"api\",\"exp\":" + expirationTime + ","
+        + "\"myGroups\":[\"group1\",\"group2\"]}");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(callbackContext.userIdentity.getName()).isEqualTo("John Doo");
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("group1", "group2");
+    assertThat(idp.takeRequest().getPath()).isEqualTo("/.well-known/openid-configuration");
+    RecordedRequest introspectionRequest = idp.takeRequest();
+    assertThat(introspectionRequest.getPath()).isEqualTo("/protocol/openid-connect/token/introspect");
+    assertThat(introspectionRequest.getHeader("Authorization")).startsWith("Basic ");
+    assertThat(introspectionRequest.getBody().readUtf8()).contains("token=opaque", "token_type_hint=access_token");
+
+    // the introspection response is cached
+    callbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+    provider.callback(callbackContext);
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+    assertThat(introspectionRequests).hasValue(1);
+  }
+
+  @Test
+  public void callback_rejects_inactive_bearer_token() {
+    AtomicInteger introspectionRequests = setIntrospectionDispatcher("{\"active\":false}");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    for (int i = 0; i < 2; i++) {
+      DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+      IllegalStateException exception = assertThrows(IllegalStateException.class,
+          () -> provider.callback(callbackContext));
+      assertThat(exception).hasMessage("Invalid bearer token: Token is not active");
+      assertThat(callbackContext.userIdentity).isNull();
+    }
+    assertThat(introspectionRequests).hasValue(1);
+  }
+
+  @Test
+  public void callback_rejects_bearer_token_for_other_audience() {
+    setIntrospectionDispatcher("{\"active\":true,\"sub\":\"john\",\"username\":\"john.doo\",\"aud\":\"other\"}");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest("opaque"));
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> provider.callback(callbackContext));
+    assertThat(exception).hasMessage("Invalid bearer token: Audience not accepted");
+  }
+
+  /**
+   * Simulates a provider with a token introspection endpoint returning the given response. Returns the number of
+   * introspection requests.
+   */
+  private AtomicInteger setIntrospectionDispatcher(String introspectionResponse) {
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_INTROSPECTION, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "api");
+    OIDCProviderMetadata providerMetadata = getProviderMetadata(idpUri);
+    providerMetadata.setIntrospectionEndpointURI(URI.create(idpUri + "/protocol/openid-connect/token/introspect"));
+    String metadata = providerMetadata.toJSONObject().toJSONString();
+    AtomicInteger introspectionRequests = new AtomicInteger();
+    idp.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath();
+        if (path.equals("/.well-known/openid-configuration")) {
+          return newJsonResponse(metadata);
+        } else if (path.equals("/protocol/openid-connect/token/introspect")) {
+          introspectionRequests.incrementAndGet();
+          return newJsonResponse(introspectionResponse);
+        }
+        return new MockResponse().setResponseCode(404);
+      }
+    });
+    return introspectionRequests;
+  }
+
+  /**
+   * Simulates a provider issuing an ID token without profile claims and a signed UserInfo response (content type
+   * <code>application/jwt</code>).
+   */
+  private void setSignedUserInfoDispatcher(RSAKey key, RSAKey userInfoKey) throws JOSEException {
+    String metadata = getProviderMetadata(idpUri).toJSONObject().toJSONString();
+    SignedJWT idToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("id").subject("john")
+            .issueTime(new Date()).expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+    idToken.sign(new RSASSASigner(key));
+    String tokenResponse = "{\"access_token\":\"at\",\"token_type\":\"Bearer\",\"id_token\":\""
+        + idToken.serialize() + "\"}";
+    SignedJWT userInfo = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("id").subject("john")
+            .claim("name", "John Doo").claim("preferred_username", "john.doo")
+            .claim("myGroups", Arrays.asList("group1", "group2")).build());
+    userInfo.sign(new RSASSASigner(userInfoKey));
+    String jwkSet = new JWKSet(key.toPublicJWK()).toString();
+    idp.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath();
+        if (path.equals("/.well-known/openid-configuration")) {
+          return newJsonResponse(metadata);
+        } else if (path.equals("/protocol/openid-connect/token")) {
+          return newJsonResponse(tokenResponse);
+        } else if (path.equals("/protocol/openid-connect/certs")) {
+          return newJsonResponse(jwkSet);
+        } else if (path.equals("/protocol/openid-connect/userinfo")) {
+          return new MockResponse().setHeader("Content-Type", "application/jwt").setBody(userInfo.serialize());
+        }
+        return new MockResponse().setResponseCode(404);
+      }
+    });
+  }
+
+  @Test
+  public void callback_limits_resolution_of_unknown_tenant_issuers() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setMultiTenantDispatcher(key, "tenant1");
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "api");
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+
+    int rejected = 0;
+    for (int i = 0; i < 20; i++) {
+      SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build(),
+          new JWTClaimsSet.Builder().issuer(idpUri + "/unknown" + i).audience("api").subject("john")
+              .expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+      accessToken.sign(new RSASSASigner(key));
+      DumbCallbackContext callbackContext = new DumbCallbackContext(newBearerTokenRequest(accessToken.serialize()));
+      IllegalStateException exception = assertThrows(IllegalStateException.class,
+          () -> provider.callback(callbackContext));
+      if (exception.getMessage().endsWith("rejected: Too many unknown tenant issuers")) {
+        rejected++;
+      }
+    }
+    // only the common metadata and the metadata of the first unknown tenants are requested
+    assertThat(rejected).isGreaterThanOrEqualTo(10);
+    assertThat(idp.getRequestCount()).isEqualTo(1 + 20 - rejected);
+  }
+
+  @Test
+  public void callback_is_not_blocked_by_slow_tenant_issuer() throws Exception {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("k1").generate();
+    setMultiTenantDispatcher(key, "tenant1");
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "api");
+    Dispatcher dispatcher = idp.getDispatcher();
+    CountDownLatch slowRequestReceived = new CountDownLatch(1);
+    CountDownLatch slowResponseReleased = new CountDownLatch(1);
+    idp.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        if (request.getPath().startsWith("/slow/")) {
+          slowRequestReceived.countDown();
+          slowResponseReleased.await(10, TimeUnit.SECONDS);
+        }
+        return dispatcher.dispatch(request);
+      }
+    });
+    OidcIdentityProvider provider = new OidcIdentityProvider(oidcConfig, new OidcClient(oidcConfig),
+        userIdentityFactory);
+    SignedJWT accessToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build(),
+        new JWTClaimsSet.Builder().issuer(idpUri + "/slow").audience("api").subject("john")
+            .expirationTime(new Date(System.currentTimeMillis() + 60000)).build());
+    accessToken.sign(new RSASSASigner(key));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> slowLogin = executor.submit(() -> assertThrows(IllegalStateException.class,
+          () -> provider.callback(new DumbCallbackContext(newBearerTokenRequest(accessToken.serialize())))));
+      assertThat(slowRequestReceived.await(10, TimeUnit.SECONDS)).isTrue();
+
+      // the login of another tenant isn't blocked by the pending resolution of the slow tenant
+      DumbCallbackContext callbackContext = new DumbCallbackContext(newAuthenticationRequest());
+      provider.callback(callbackContext);
+      assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("john.doo");
+      assertThat(slowLogin.isDone()).isFalse();
+
+      slowResponseReleased.countDown();
+      slowLogin.get(10, TimeUnit.SECONDS);
+    } finally {
+      slowResponseReleased.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Simulates a multi-tenant provider with the issuer URI "/common" whose metadata contains a templated issuer, and
+   * a tenant issuing a signed ID token.
+   */
+  private void setMultiTenantDispatcher(RSAKey key, String tenant) throws JOSEException {
+    setSettings(true, idpUri + "/common");
+    settings.put(OidcConfiguration.TENANT_ISSUERS, idpUri + "/*");
+    String commonMetadata = getProviderMetadata(idpUri + "/common").toJSONObject().toJSONString()
+        .replace("\"issuer\":\"" + idpUri.replace("/", "\\/") + "\\/common\"",
+            "\"issuer\":\"" + idpUri + "/{tenantid}\"");
+    String tenantMetadata = getProviderMetadata(idpUri + "/" + tenant).toJSONObject().toJSONString();
+    SignedJWT idToken = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+        new JWTClaimsSet.Builder().issuer(idpUri + "/" + tenant).audience("id").subject("john")
+            .issueTime(new Date()).expirationTime(new Date(System.currentTimeMillis() + 60000))
+            .claim("name", "John Doo").claim("preferred_username", "john.doo")
+            .claim("myGroups", Arrays.asList("group1", "group2")).build());
+    idToken.sign(new RSASSASigner(key));
+    String tokenResponse = "{\"access_token\":\"at\",\"token_type\":\"Bearer\",\"id_token\":\""
+        + idToken.serialize() + "\"}";
+    String jwkSet = new JWKSet(key.toPublicJWK()).toString();
+    idp.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath();
+        if (path.equals("/common/.well-known/openid-configuration")) {
+          return newJsonResponse(commonMetadata);
+        } else if (path.equals("/common/protocol/openid-connect/token")) {
+          return newJsonResponse(tokenResponse);
+        } else if (path.equals("/" + tenant + "/.well-known/openid-configuration")) {
+          return newJsonResponse(tenantMetadata);
+        } else if (path.equals("/" + tenant + "/protocol/openid-connect/certs")) {
+          return newJsonResponse(jwkSet);
+        }
+        return new MockResponse().setResponseCode(404);
+      }
+    });
+  }
+
+  private OidcIdentityProvider newPushedAuthorizationProvider() {
+    OIDCProviderMetadata metadata = getProviderMetadata(idpUri);
+    metadata.setPushedAuthorizationRequestEndpointURI(URI.create(idpUri + "/protocol/openid-connect/ext/par/request"));
+    OidcClient client = spy(new OidcClient(oidcConfig));
+    doReturn(metadata).when(client).getProviderMetadata();
+    doNothing().when(client).warmUp();
+    return new OidcIdentityProvider(oidcConfig, client, userIdentityFactory);
+  }
+
+  private SignedJWT newIdTokenWithNonce(String nonce) throws JOSEException {
+    SignedJWT idToken = new SignedJWT(new JWSHeader(JWSAlgorithm.RS256),
+        new JWTClaimsSet.Builder().issuer(idpUri).audience("id").subject("john")
+            .issueTime(new Date()).expirationTime(new Date(System.currentTimeMillis() + 60000))
+            .claim("nonce", nonce).claim("name", "John Doo").claim("preferred_username", "john.doo")
+            .claim("myGroups", Arrays.asList("group1", "group2")).build());
+    idToken.sign(new RSASSASigner(new RSAKeyGenerator(2048).generate()));
+    return idToken;
+  }
+
+  private static String getClientAssertion(RecordedRequest request) {
+    return URLUtils.parseParameters(request.getBody().readUtf8()).get("client_assertion").get(0);
+  }
+
+  private static MockResponse newJsonResponse(String body) {
+    return new MockResponse().setHeader("Content-Type", ContentType.APPLICATION_JSON).setBody(body);
+  }
+
   private static HttpRequest newAuthenticationRequest() {
     HttpRequest request = mock(HttpRequest.class);
     when(request.getMethod()).thenReturn("GET");
@@ -185,6 +1096,12 @@ public class IntegrationTest extends AbstractOidcTest {
     return request;
   }
 
+  private static HttpRequest newBearerTokenRequest(String token) {
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getHeader("Authorization")).thenReturn("Bearer " + token);
+    return request;
+  }
+
   private static MockResponse newSuccessfulAccessTokenResponse() {
     return new MockResponse().setHeader("content-type", "application/json").setBody(
         "{\"access_token\":\"eyJhbGciOiJSUzI1NiIsInR5cCIgOiAiSldUIiwia2lkIiA6ICJ3djY4UzUybDZTWVUxNGFfd0N3VElJT01WV1d1RXVXUFNBcERjYXo5Rnd3In0.eyJqdGkiOiIzMWNkOWM3YS05YTM3LTRiOTktOTViMC1jNzJlNGYzNGY4ODEiLCJleHAiOjE1MTQzMDcwNTQsIm5iZiI6MCwiaWF0IjoxNTE0MzA2NzU0LCJpc3MiOiJodHRwOi8vbWFjYm9vay1wcm8uZnJpdHouYm94OjgwODAvYXV0aC9yZWFsbXMvc3NvIiwiYXVkIjoic29uYXJxdWJlIiwic3ViIjoiYWZhYmE1OTItYWM4NS00Y2YxLThlYzYtMDA1OGQxNTdmODgyIiwidHlwIjoiQmVhcmVyIiwiYXpwIjoic29uYXJxdWJlIiwiYXV0aF90aW1lIjoxNTE0MzA2NzU0LCJzZXNzaW9uX3N0YXRlIjoiYWE2N2NjNjktN2EwNi00N2QxLWJhMDAtNjk2NDZlNjBiOGJlIiwiYWNyIjoiMSIsImFsbG93ZWQtb3JpZ2lucyI6WyJodHRwOi8vbWFjYm9vay1wcm8uZnJpdHouYm94OjgwODIvIl0sInJlYWxtX2FjY2VzcyI6eyJyb2xlcyI6WyJ1bWFfYXV0aG9yaXphdGlvbiJdfSwicmVzb3VyY2VfYWNjZXNzIjp7ImFjY291bnQiOnsicm9sZXMiOlsibWFuYWdlLWFjY291bnQiLCJtYW5hZ2UtYWNjb3VudC1saW5rcyIsInZpZXctcHJvZmlsZSJdfX0sIm5hbWUiOiJKb2huIERvbyIsInByZWZlcnJlZF91c2VybmFtZSI6ImpvaG4uZG9vIiwiZ2l2ZW5fbmFtZSI6IkpvaG4iLCJmYW1pbHlfbmFtZSI6IkRvbyIsImVtYWlsIjoiam9obi5kb29AYWNtZS5jb20ifQ.YElE-QodhPc8cUGo3jhT-phkmS3k_fHHDXhVm54m4wIZKDFeOnJD0spYkcODrIrOc04ibbinKJERtiBRxBF0P4RQq7NY08rgxFqt1STNrDb9tr4N_qEDXQ_66OUJKQIMd1L5yB5dzj73XAR1LRkhZSfVmDEGyE6A0x5rxgAeWCXUqMWOOq8Vq0ksdXiXeSdyg2n1XWU2j-uf6GB6mMtLXA0NddzQMOxPyhAKCGJRDJTwwb0fXzPeOVOvXO918rahsJ4iFn7wDnV2vaFBu37SNID7Iqmx3D_ptS2QrCdItg6nnK589BpcQMamTHINIQbkF-7LQH-U_yVJyEkOVrPzoQ\","
@@ -222,6 +1139,7 @@ public class IntegrationTest extends AbstractOidcTest {
     final HttpRequest request;
     final AtomicBoolean csrfStateVerified = new AtomicBoolean(false);
     final AtomicBoolean redirectedToRequestedPage = new AtomicBoolean(false);
+    final HttpResponse response = mock(HttpResponse.class);
     UserIdentity userIdentity = null;
 
     public DumbCallbackContext(HttpRequest request) {
@@ -255,7 +1173,7 @@ public class IntegrationTest extends AbstractOidcTest {
 
     @Override
     public HttpResponse getHttpResponse() {
-      throw new UnsupportedOperationException("not used");
+      return response;
     }
 
     @Override
@@ -265,6 +1183,7 @@ public class IntegrationTest extends AbstractOidcTest {
 
   private static class DumbInitContext implements OAuth2IdentityProvider.InitContext {
     String redirectedTo = null;
+    final HttpResponse response = mock(HttpResponse.class);
     private final String generatedCsrfState;
 
     public DumbInitContext(String generatedCsrfState) {
@@ -293,7 +1212,7 @@ public class IntegrationTest extends AbstractOidcTest {
 
     @Override
     public HttpResponse getHttpResponse() {
-      return null;
+      return response;
     }
   }
 
@@ -0,0 +1,173 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.TokenIntrospectionSuccessResponse;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class IntrospectionCacheTest {
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final AtomicInteger loads = new AtomicInteger();
+  private final IntrospectionCache underTest = new IntrospectionCache(2, 10_000, clock::get);
+
+  @Test
+  public void response_is_cached_for_cache_duration() {
+    TokenIntrospectionSuccessResponse response = newResponse(null);
+    assertThat(underTest.get("token1", () -> load(response))).isSameAs(response);
+    assertThat(underTest.get("token1", () -> load(newResponse(null)))).isSameAs(response);
+    assertThat(loads).hasValue(1);
+
+    clock.addAndGet(10_000);
+    assertThat(underTest.get("token1", () -> load(newResponse(null)))).isNotSameAs(response);
+    assertThat(loads).hasValue(2);
+  }
+
+  @Test
+  public void response_is_cached_until_token_expires() {
+    TokenIntrospectionSuccessResponse response = newResponse(clock.get() + 1000);
+    underTest.get("token1", () -> load(response));
+    clock.addAndGet(999);
+    assertThat(underTest.get("token1", () -> load(newResponse(null)))).isSameAs(response);
+
+    clock.addAndGet(1);
+    assertThat(underTest.get("token1", () -> load(newResponse(null)))).isNotSameAs(response);
+    assertThat(loads).hasValue(2);
+  }
+
+  @Test
+  public void response_of_inactive_token_is_cached() {
+    TokenIntrospectionSuccessResponse response = new TokenIntrospectionSuccessResponse.Builder(false).build();
+    underTest.get("token1", () -> load(response));
+    assertThat(underTest.get("token1", () -> load(newResponse(null)))).isSameAs(response);
+    assertThat(loads).hasValue(1);
+  }
+
+  @Test
+  public void least_recently_used_response_is_evicted_if_full() {
+    underTest.get("token1", () -> load(newResponse(null)));
+    underTest.get("token2", () -> load(newResponse(null)));
+    underTest.get("token1", () -> load(newResponse(null)));
+    underTest.get("token3", () -> load(newResponse(null)));
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(loads).hasValue(3);
+
+    // token1 is still cached, token2 has been evicted
+    underTest.get("token1", () -> load(newResponse(null)));
+    assertThat(loads).hasValue(3);
+    underTest.get("token2", () -> load(newResponse(null)));
+    assertThat(loads).hasValue(4);
+  }
+
+  @Test
+  public void failure_is_not_cached() {
+    IllegalStateException exception = new IllegalStateException("failed");
+    assertThrows(IllegalStateException.class, () -> underTest.get("token1", () -> {
+      throw exception;
+    }));
+    underTest.get("token1", () -> load(newResponse(null)));
+    assertThat(loads).hasValue(1);
+  }
+
+  @Test
+  public void concurrent_lookups_are_coalesced() throws Exception {
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    TokenIntrospectionSuccessResponse response = newResponse(null);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<TokenIntrospectionSuccessResponse> first = executor.submit(() -> underTest.get("token1", () -> {
+        loading.countDown();
+        await(release);
+        return load(response);
+      }));
+      assertThat(loading.await(10, TimeUnit.SECONDS)).isTrue();
+      Future<TokenIntrospectionSuccessResponse> second = executor.submit(() -> underTest.get("token1",
+          () -> load(newResponse(null))));
+      Thread.sleep(100);
+      release.countDown();
+
+      assertThat(first.get(10, TimeUnit.SECONDS)).isSameAs(response);
+      assertThat(second.get(10, TimeUnit.SECONDS)).isSameAs(response);
+      assertThat(loads).hasValue(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void concurrent_lookups_share_failure() throws Exception {
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<TokenIntrospectionSuccessResponse> first = executor.submit(() -> underTest.get("token1", () -> {
+        loading.countDown();
+        await(release);
+        throw new IllegalStateException("failed");
+      }));
+      assertThat(loading.await(10, TimeUnit.SECONDS)).isTrue();
+      Future<TokenIntrospectionSuccessResponse> second = executor.submit(() -> underTest.get("token1",
+          () -> load(newResponse(null))));
+      Thread.sleep(100);
+      release.countDown();
+
+      assertThat(assertThrows(Exception.class, () -> first.get(10, TimeUnit.SECONDS)))
+          .hasRootCauseMessage("failed");
+      assertThat(assertThrows(Exception.class, () -> second.get(10, TimeUnit.SECONDS)))
+          .hasRootCauseMessage("failed");
+      assertThat(loads).hasValue(0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private TokenIntrospectionSuccessResponse load(TokenIntrospectionSuccessResponse response) {
+    loads.incrementAndGet();
+    return response;
+  }
+
+  private static TokenIntrospectionSuccessResponse newResponse(Long expirationTime) {
+    TokenIntrospectionSuccessResponse.Builder builder = new TokenIntrospectionSuccessResponse.Builder(true);
+    if (expirationTime != null) {
+      builder.expirationTime(new Date(expirationTime));
+    }
+    return builder.build();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IssuerAllowlistTest {
+
+  @Test
+  public void empty() {
+    IssuerAllowlist underTest = new IssuerAllowlist(new String[0]);
+    assertThat(underTest.isEmpty()).isTrue();
+    assertThat(underTest.matches("https://auth.acme.com")).isFalse();
+  }
+
+  @Test
+  public void exact_issuers() {
+    IssuerAllowlist underTest = new IssuerAllowlist(new String[] {"https://auth.acme.com", " https://sso.acme.com "});
+    assertThat(underTest.isEmpty()).isFalse();
+    assertThat(underTest.matches("https://auth.acme.com")).isTrue();
+    assertThat(underTest.matches("https://sso.acme.com")).isTrue();
+    assertThat(underTest.matches("https://auth.acme.com/")).isFalse();
+  }
+
+  @Test
+  public void templated_issuers() {
+    IssuerAllowlist underTest = new IssuerAllowlist(new String[] {"https://login.microsoftonline.com/*/v2.0",
+        "https://*.acme.com"});
+    assertThat(underTest.matches("https://login.microsoftonline.com/9188040d-6c67-4c5b-b112-36a304b66dad/v2.0"))
+        .isTrue();
+    assertThat(underTest.matches("https://tenant1.acme.com")).isTrue();
+    assertThat(underTest.matches("https://login.microsoftonline.com/a/b/v2.0")).isFalse();
+    assertThat(underTest.matches("https://login.microsoftonline.com//v2.0")).isFalse();
+    assertThat(underTest.matches("https://loginXmicrosoftonline.com/tenant/v2.0")).isFalse();
+    assertThat(underTest.matches("https://evil.com?.acme.com")).isFalse();
+    assertThat(underTest.matches("https://evil.com#.acme.com")).isFalse();
+  }
+
+  @Test
+  public void has_entries() {
+    String[] entries = {"https://auth.acme.com"};
+    IssuerAllowlist underTest = new IssuerAllowlist(entries);
+    assertThat(underTest.hasEntries(new String[] {"https://auth.acme.com"})).isTrue();
+    assertThat(underTest.hasEntries(new String[0])).isFalse();
+  }
+
+}
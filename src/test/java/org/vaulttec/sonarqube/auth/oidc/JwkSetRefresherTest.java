@@ -0,0 +1,97 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.util.ResourceRetriever;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JwkSetRefresherTest extends AbstractOidcTest {
+
+  @Test
+  public void share_source_per_url() throws Exception {
+    JwkSetRefresher underTest = new JwkSetRefresher(oidcConfig);
+    ResourceRetriever retriever = mock(ResourceRetriever.class);
+
+    JwkSetSource source = underTest.getSource(new URL(ISSUER_URI + "/certs"), retriever);
+    assertThat(underTest.getSource(new URL(ISSUER_URI + "/certs"), retriever)).isSameAs(source);
+    assertThat(underTest.getSource(new URL(ISSUER_URI + "/other"), retriever)).isNotSameAs(source);
+  }
+
+  @Test
+  public void reschedule_after_refresh() throws KeySourceException {
+    settings.put(OidcConfiguration.JWKS_REFRESH_INTERVAL, "60000");
+    JwkSetRefresher underTest = spy(new JwkSetRefresher(oidcConfig));
+    JwkSetSource source = mock(JwkSetSource.class);
+    when(source.refreshIfUsed()).thenReturn(true);
+
+    underTest.refresh(source);
+    verify(underTest).schedule(source);
+  }
+
+  @Test
+  public void reschedule_after_failed_refresh() throws KeySourceException {
+    settings.put(OidcConfiguration.JWKS_REFRESH_INTERVAL, "60000");
+    JwkSetRefresher underTest = spy(new JwkSetRefresher(oidcConfig));
+    JwkSetSource source = mock(JwkSetSource.class);
+    doThrow(new KeySourceException("test")).when(source).refreshIfUsed();
+
+    underTest.refresh(source);
+    verify(underTest).schedule(source);
+  }
+
+  @Test
+  public void suspend_unused() throws KeySourceException {
+    JwkSetRefresher underTest = spy(new JwkSetRefresher(oidcConfig));
+    JwkSetSource source = mock(JwkSetSource.class);
+    when(source.refreshIfUsed()).thenReturn(false);
+
+    underTest.refresh(source);
+    verify(underTest, never()).schedule(source);
+  }
+
+  @Test
+  public void stop() throws Exception {
+    settings.put(OidcConfiguration.JWKS_REFRESH_INTERVAL, "1");
+    JwkSetRefresher underTest = new JwkSetRefresher(oidcConfig);
+    JwkSetSource source = mock(JwkSetSource.class);
+    underTest.stop();
+
+    underTest.schedule(source);
+    Thread.sleep(50);
+    verify(source, never()).refreshIfUsed();
+  }
+
+  @Test
+  public void jitter() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(JwkSetRefresher.jitter(1000)).isBetween(1000L, 1200L);
+    }
+  }
+
+}
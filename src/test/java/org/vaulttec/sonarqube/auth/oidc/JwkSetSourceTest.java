@@ -0,0 +1,175 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.RemoteKeySourceException;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.util.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class JwkSetSourceTest extends AbstractOidcTest {
+
+  private final AtomicReference<JWKSet> jwkSet = new AtomicReference<>();
+  private final AtomicInteger retrievals = new AtomicInteger();
+  private final JwkSetRefresher refresher = mock(JwkSetRefresher.class);
+  private RSAKey key1;
+  private RSAKey key2;
+  private JwkSetSource underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    key1 = new RSAKeyGenerator(2048).keyID("k1").generate();
+    key2 = new RSAKeyGenerator(2048).keyID("k2").generate();
+    jwkSet.set(new JWKSet(key1.toPublicJWK()));
+    underTest = new JwkSetSource(new URL(ISSUER_URI + "/certs"), url -> {
+      retrievals.incrementAndGet();
+      return new Resource(jwkSet.get().toString(), "application/json");
+    }, oidcConfig, refresher);
+  }
+
+  @Test
+  public void retrieve_once() throws KeySourceException {
+    assertThat(underTest.get(selector("k1"), null)).hasSize(1);
+    assertThat(underTest.get(selector("k1"), null)).hasSize(1);
+    assertThat(retrievals.get()).isEqualTo(1);
+    verify(refresher, times(1)).schedule(underTest);
+  }
+
+  @Test
+  public void unknown_key_refresh_is_rate_limited() throws KeySourceException {
+    underTest.get(selector("k1"), null);
+    jwkSet.set(new JWKSet(key2.toPublicJWK()));
+
+    assertThat(underTest.get(selector("k2"), null)).isEmpty();
+    assertThat(retrievals.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void background_refresh() throws KeySourceException {
+    underTest.get(selector("k1"), null);
+    jwkSet.set(new JWKSet(key2.toPublicJWK()));
+
+    assertThat(underTest.refreshIfUsed()).isTrue();
+    assertThat(underTest.get(selector("k2"), null)).hasSize(1);
+    assertThat(retrievals.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void background_refresh_suspended_if_unused() throws KeySourceException {
+    underTest.get(selector("k1"), null);
+    assertThat(underTest.refreshIfUsed()).isTrue();
+    assertThat(underTest.refreshIfUsed()).isFalse();
+    assertThat(retrievals.get()).isEqualTo(2);
+
+    // Using the JWK set again resumes the background refresh
+    underTest.get(selector("k1"), null);
+    verify(refresher, times(2)).schedule(underTest);
+  }
+
+  @Test
+  public void refresh_expired() throws KeySourceException {
+    settings.put(OidcConfiguration.METADATA_CACHE_TTL, "0");
+    underTest.get(selector("k1"), null);
+    underTest.get(selector("k1"), null);
+    assertThat(retrievals.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void verifiers_are_reused() throws Exception {
+    JWSHeader header = new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build();
+    List<JWSVerifier> verifiers = underTest.getVerifiers(header);
+    assertThat(verifiers).hasSize(1);
+    assertThat(underTest.getVerifiers(header)).isSameAs(verifiers);
+    assertThat(retrievals.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void verifiers_of_unknown_key() throws Exception {
+    assertThat(underTest.getVerifiers(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k2").build())).isEmpty();
+    assertThat(underTest.getVerifiers(new JWSHeader.Builder(JWSAlgorithm.ES256).keyID("k1").build())).isEmpty();
+  }
+
+  @Test
+  public void verifiers_are_kept_after_refresh() throws Exception {
+    JWSHeader header = new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build();
+    List<JWSVerifier> verifiers = underTest.getVerifiers(header);
+    jwkSet.set(new JWKSet(Arrays.asList(key1.toPublicJWK(), key2.toPublicJWK())));
+    underTest.refreshIfUsed();
+
+    assertThat(underTest.getVerifiers(header)).containsExactlyElementsOf(verifiers);
+    assertThat(underTest.getVerifiers(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k2").build())).hasSize(1);
+  }
+
+  @Test
+  public void verifiers_are_shared_by_algorithms() throws Exception {
+    List<JWSVerifier> verifiers = underTest.getVerifiers(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build());
+    assertThat(underTest.getVerifiers(new JWSHeader.Builder(JWSAlgorithm.PS512).keyID("k1").build()))
+        .containsExactlyElementsOf(verifiers);
+  }
+
+  @Test
+  public void verifiers_are_evicted_if_key_disappears() throws Exception {
+    JWSHeader header = new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("k1").build();
+    List<JWSVerifier> verifiers = underTest.getVerifiers(header);
+    jwkSet.set(new JWKSet(key2.toPublicJWK()));
+    underTest.refreshIfUsed();
+    assertThat(underTest.getVerifiers(header)).isEmpty();
+
+    jwkSet.set(new JWKSet(key1.toPublicJWK()));
+    underTest.refreshIfUsed();
+    assertThat(underTest.getVerifiers(header)).hasSize(1).doesNotContainAnyElementsOf(verifiers);
+  }
+
+  @Test
+  public void retrieval_failure() throws Exception {
+    JwkSetSource source = new JwkSetSource(new URL(ISSUER_URI + "/certs"), url -> {
+      throw new IOException("test");
+    }, oidcConfig, refresher);
+
+    RemoteKeySourceException exception = assertThrows(RemoteKeySourceException.class,
+        () -> source.get(selector("k1"), null));
+    assertThat(exception).hasMessage("Couldn't retrieve JWK set from " + ISSUER_URI + "/certs: test");
+  }
+
+  private static JWKSelector selector(String keyId) {
+    return new JWKSelector(new JWKMatcher.Builder().keyID(keyId).build());
+  }
+
+}
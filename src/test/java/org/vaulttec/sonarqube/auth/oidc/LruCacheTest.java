@@ -0,0 +1,43 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LruCacheTest {
+
+  @Test
+  public void evict_least_recently_used() {
+    LruCache<String, String> underTest = new LruCache<>(() -> 2);
+    underTest.put("a", "1");
+    underTest.put("b", "2");
+    assertThat(underTest.get("a")).isEqualTo("1");
+    underTest.put("c", "3");
+
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.get("a")).isEqualTo("1");
+    assertThat(underTest.get("b")).isNull();
+    assertThat(underTest.get("c")).isEqualTo("3");
+
+    underTest.remove("a");
+    assertThat(underTest.get("a")).isNull();
+  }
+
+}
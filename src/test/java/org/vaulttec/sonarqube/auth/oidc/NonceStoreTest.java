@@ -0,0 +1,167 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.openid.connect.sdk.Nonce;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NonceStoreTest {
+
+  private static final long TTL = 10;
+  private static final long TICK = 1;
+
+  private final AtomicLong clock = new AtomicLong(1000);
+  private final NonceStore underTest = new NonceStore(TTL, TICK, 100, clock::get);
+
+  @Test
+  public void nonce_is_taken_once() {
+    Nonce nonce = underTest.create("state1");
+
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(underTest.take("state1")).isEqualTo(nonce);
+    assertThat(underTest.take("state1")).isNull();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void nonces_are_unique() {
+    Set<Nonce> nonces = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      nonces.add(underTest.create("state" + i));
+    }
+    assertThat(nonces).hasSize(100);
+  }
+
+  @Test
+  public void unknown_state() {
+    assertThat(underTest.take("unknown")).isNull();
+  }
+
+  @Test
+  public void nonce_is_replaced_for_same_state() {
+    underTest.create("state1");
+    Nonce nonce = underTest.create("state1");
+
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(underTest.take("state1")).isEqualTo(nonce);
+
+    // the wheel entry of the replaced nonce doesn't remove the new one
+    Nonce newNonce = underTest.create("state1");
+    clock.addAndGet(TTL);
+    assertThat(underTest.take("state1")).isEqualTo(newNonce);
+  }
+
+  @Test
+  public void expired_nonce_is_rejected() {
+    underTest.create("state1");
+    clock.addAndGet(TTL);
+    underTest.create("state2");
+    clock.addAndGet(1);
+
+    assertThat(underTest.take("state1")).isNull();
+    assertThat(underTest.take("state2")).isNotNull();
+  }
+
+  @Test
+  public void expired_nonces_are_removed_when_the_wheel_advances() {
+    for (int i = 0; i < 50; i++) {
+      underTest.create("state" + i);
+      clock.addAndGet(i % 10 == 0 ? 1 : 0);
+    }
+    assertThat(underTest.size()).isEqualTo(50);
+
+    clock.addAndGet(TTL + 1);
+    underTest.take("unknown");
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void expired_nonces_are_removed_after_long_idle_time() {
+    underTest.create("state1");
+    underTest.create("state2");
+
+    clock.addAndGet(100 * TTL);
+    underTest.take("unknown");
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void store_is_bounded() {
+    for (int i = 0; i < 50; i++) {
+      underTest.create("state" + i);
+    }
+    clock.incrementAndGet();
+    for (int i = 50; i < 100; i++) {
+      underTest.create("state" + i);
+    }
+
+    // a new login still succeeds, the oldest pending one is evicted
+    Nonce nonce = underTest.create("state");
+    assertThat(underTest.size()).isEqualTo(100);
+    assertThat(underTest.take("state")).isEqualTo(nonce);
+    assertThat(underTest.take("state0")).isNull();
+    assertThat(underTest.take("state1")).isNotNull();
+    assertThat(underTest.take("state99")).isNotNull();
+  }
+
+  @Test
+  public void concurrent_logins() throws Exception {
+    NonceStore store = new NonceStore(TimeUnit.MINUTES.toNanos(10), TimeUnit.MILLISECONDS.toNanos(1), 100_000,
+        System::nanoTime);
+    int threads = 8;
+    int logins = 5_000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        String prefix = "thread" + t + "-";
+        Callable<Integer> task = () -> {
+          int taken = 0;
+          for (int i = 0; i < logins; i++) {
+            Nonce nonce = store.create(prefix + i);
+            if (nonce.equals(store.take(prefix + i))) {
+              taken++;
+            }
+          }
+          return taken;
+        };
+        results.add(executor.submit(task));
+      }
+      for (Future<Integer> result : results) {
+        assertThat(result.get()).isEqualTo(logins);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(store.size()).isZero();
+  }
+
+}
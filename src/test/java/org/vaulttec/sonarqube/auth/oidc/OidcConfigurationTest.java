@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -48,6 +49,8 @@ public class OidcConfigurationTest {
     PropertyDefinitions definitions = new PropertyDefinitions(System2.INSTANCE, OidcConfiguration.definitions());
     when(config.get(any())).thenAnswer(invocation -> Optional.ofNullable(settings.get(invocation.getArgument(0))).or(() -> Optional.ofNullable(definitions.getDefaultValue(invocation.getArgument(0)))));
     when(config.getBoolean(any())).thenAnswer(invocation -> config.get(invocation.getArgument(0)).map(Boolean::parseBoolean));
+    when(config.getInt(any())).thenAnswer(invocation -> config.get(invocation.getArgument(0)).map(Integer::parseInt));
+    when(config.getStringArray(any())).thenAnswer(invocation -> config.get(invocation.getArgument(0)).map(value -> value.split(",")).orElse(new String[0]));
   }
 
   @Test
@@ -105,6 +108,114 @@ public class OidcConfigurationTest {
     assertThat(underTest.clientSecret()).isEqualTo("secret");
   }
 
+  @Test
+  public void return_client_authentication() {
+    settings.put(OidcConfiguration.CLIENT_AUTH_METHOD, "private_key_jwt");
+    settings.put(OidcConfiguration.CLIENT_AUTH_KEY, "key");
+    settings.put(OidcConfiguration.CLIENT_AUTH_KEY_ID, "kid");
+    settings.put(OidcConfiguration.CLIENT_AUTH_SIG_ALG, "PS256");
+    assertThat(underTest.clientAuthMethod()).isEqualTo("private_key_jwt");
+    assertThat(underTest.clientAuthKey()).isEqualTo("key");
+    assertThat(underTest.clientAuthKeyId()).isEqualTo("kid");
+    assertThat(underTest.clientAuthSignAlgorithm()).isEqualTo("PS256");
+  }
+
+  @Test
+  public void default_client_authentication() {
+    assertThat(underTest.clientAuthMethod()).isEqualTo("client_secret_basic");
+    assertThat(underTest.clientAuthKey()).isNull();
+    assertThat(underTest.clientAuthKeyId()).isNull();
+    assertThat(underTest.clientAuthSignAlgorithm()).isNull();
+  }
+
+  @Test
+  public void return_tls_key_material() {
+    settings.put(OidcConfiguration.TLS_KEYSTORE, "/keystore.p12");
+    settings.put(OidcConfiguration.TLS_KEYSTORE_PASSWORD, "password");
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE, "/truststore.p12");
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE_PASSWORD, "trust");
+    assertThat(underTest.tlsKeyStore()).isEqualTo("/keystore.p12");
+    assertThat(underTest.tlsKeyStorePassword()).isEqualTo("password");
+    assertThat(underTest.tlsTrustStore()).isEqualTo("/truststore.p12");
+    assertThat(underTest.tlsTrustStorePassword()).isEqualTo("trust");
+  }
+
+  @Test
+  public void return_nonce() {
+    assertThat(underTest.isNonceEnabled()).isFalse();
+    settings.put(OidcConfiguration.NONCE, "true");
+    assertThat(underTest.isNonceEnabled()).isTrue();
+  }
+
+  @Test
+  public void return_pkce() {
+    assertThat(underTest.isPkceEnabled()).isFalse();
+    settings.put(OidcConfiguration.PKCE, "true");
+    assertThat(underTest.isPkceEnabled()).isTrue();
+  }
+
+  @Test
+  public void return_pushed_authorization_requests() {
+    assertThat(underTest.isPushedAuthorizationRequests()).isFalse();
+    settings.put(OidcConfiguration.PUSHED_AUTHORIZATION_REQUESTS, "true");
+    assertThat(underTest.isPushedAuthorizationRequests()).isTrue();
+  }
+
+  @Test
+  public void return_auto_login_bypass_rules() {
+    assertThat(underTest.autoLoginBypassQueryFlags()).isEmpty();
+    assertThat(underTest.autoLoginBypassAcceptTypes()).isEmpty();
+    assertThat(underTest.autoLoginBypassUserAgents()).isEmpty();
+    assertThat(underTest.autoLoginBypassNetworks()).isEmpty();
+    settings.put(OidcConfiguration.AUTO_LOGIN_BYPASS_QUERY_FLAGS, "probe");
+    settings.put(OidcConfiguration.AUTO_LOGIN_BYPASS_ACCEPT_TYPES, "application/json");
+    settings.put(OidcConfiguration.AUTO_LOGIN_BYPASS_USER_AGENTS, "bot,^curl/");
+    settings.put(OidcConfiguration.AUTO_LOGIN_BYPASS_NETWORKS, "10.0.0.0/8");
+    assertThat(underTest.autoLoginBypassQueryFlags()).containsExactly("probe");
+    assertThat(underTest.autoLoginBypassAcceptTypes()).containsExactly("application/json");
+    assertThat(underTest.autoLoginBypassUserAgents()).containsExactly("bot", "^curl/");
+    assertThat(underTest.autoLoginBypassNetworks()).containsExactly("10.0.0.0/8");
+  }
+
+  @Test
+  public void return_auto_login_limits() {
+    assertThat(underTest.autoLoginLoopThreshold()).isEqualTo(5);
+    assertThat(underTest.autoLoginMaxRedirectRate()).isEqualTo(100);
+    settings.put(OidcConfiguration.AUTO_LOGIN_LOOP_THRESHOLD, "0");
+    settings.put(OidcConfiguration.AUTO_LOGIN_MAX_REDIRECT_RATE, "10");
+    assertThat(underTest.autoLoginLoopThreshold()).isZero();
+    assertThat(underTest.autoLoginMaxRedirectRate()).isEqualTo(10);
+  }
+
+  @Test
+  public void return_bearer_token_login() {
+    assertThat(underTest.isBearerTokenLogin()).isFalse();
+    settings.put(OidcConfiguration.BEARER_TOKEN_LOGIN, "true");
+    assertThat(underTest.isBearerTokenLogin()).isTrue();
+  }
+
+  @Test
+  public void return_bearer_token_audience() {
+    settings.put(OidcConfiguration.CLIENT_ID, "id");
+    assertThat(underTest.bearerTokenAudience()).isNull();
+    settings.put(OidcConfiguration.BEARER_TOKEN_AUDIENCE, "api");
+    assertThat(underTest.bearerTokenAudience()).isEqualTo("api");
+  }
+
+  @Test
+  public void return_bearer_token_introspection() {
+    assertThat(underTest.isBearerTokenIntrospection()).isFalse();
+    settings.put(OidcConfiguration.BEARER_TOKEN_INTROSPECTION, "true");
+    assertThat(underTest.isBearerTokenIntrospection()).isTrue();
+  }
+
+  @Test
+  public void return_introspection_cache_ttl() {
+    assertThat(underTest.introspectionCacheTtl()).isEqualTo(60000);
+    settings.put(OidcConfiguration.INTROSPECTION_CACHE_TTL, "5000");
+    assertThat(underTest.introspectionCacheTtl()).isEqualTo(5000);
+  }
+
   @Test
   public void return_id_token_sign_algorithm() {
     settings.put(OidcConfiguration.ID_TOKEN_SIG_ALG, ID_TOKEN_SIG_ALG_RSA);
@@ -116,6 +227,30 @@ public class OidcConfigurationTest {
     assertThat(underTest.idTokenSignAlgorithm()).isNull();
   }
 
+  @Test
+  public void return_id_token_encryption() {
+    settings.put(OidcConfiguration.ID_TOKEN_ENC_ALG, "RSA-OAEP-256");
+    settings.put(OidcConfiguration.ID_TOKEN_ENC_METHOD, "A256GCM");
+    settings.put(OidcConfiguration.ID_TOKEN_DEC_KEY, "key");
+    settings.put(OidcConfiguration.ID_TOKEN_DEC_KEYSTORE, "/keystore.p12");
+    settings.put(OidcConfiguration.ID_TOKEN_DEC_KEYSTORE_PASSWORD, "password");
+    settings.put(OidcConfiguration.ID_TOKEN_DEC_KEY_ALIAS, "alias");
+    assertThat(underTest.idTokenEncryptionAlgorithm()).isEqualTo("RSA-OAEP-256");
+    assertThat(underTest.idTokenEncryptionMethod()).isEqualTo("A256GCM");
+    assertThat(underTest.idTokenDecryptionKey()).isEqualTo("key");
+    assertThat(underTest.idTokenDecryptionKeyStore()).isEqualTo("/keystore.p12");
+    assertThat(underTest.idTokenDecryptionKeyStorePassword()).isEqualTo("password");
+    assertThat(underTest.idTokenDecryptionKeyAlias()).isEqualTo("alias");
+  }
+
+  @Test
+  public void default_id_token_encryption() {
+    assertThat(underTest.idTokenEncryptionAlgorithm()).isNull();
+    assertThat(underTest.idTokenEncryptionMethod()).isEqualTo("A128CBC-HS256");
+    assertThat(underTest.idTokenDecryptionKey()).isNull();
+    assertThat(underTest.idTokenDecryptionKeyStore()).isNull();
+  }
+
   @Test
   public void return_login_strategy() {
     settings.put(OidcConfiguration.LOGIN_STRATEGY, LOGIN_STRATEGY_PROVIDER_ID);
@@ -176,9 +311,161 @@ public class OidcConfigurationTest {
     assertThat(underTest.loginButtonText()).isEqualTo("My Company Single-Sign-On");
   }
 
+  @Test
+  public void request_limits() {
+    assertThat(underTest.maxConcurrentRequests()).isEqualTo(20);
+    assertThat(underTest.requestQueueSize()).isEqualTo(10);
+    assertThat(underTest.requestQueueTimeout()).isEqualTo(1000);
+
+    settings.put(OidcConfiguration.MAX_CONCURRENT_REQUESTS, "5");
+    settings.put(OidcConfiguration.REQUEST_QUEUE_SIZE, "2");
+    settings.put(OidcConfiguration.REQUEST_QUEUE_TIMEOUT, "500");
+    assertThat(underTest.maxConcurrentRequests()).isEqualTo(5);
+    assertThat(underTest.requestQueueSize()).isEqualTo(2);
+    assertThat(underTest.requestQueueTimeout()).isEqualTo(500);
+  }
+
+  @Test
+  public void adaptive_concurrency_limit() {
+    assertThat(underTest.isAdaptiveConcurrencyLimit()).isFalse();
+    assertThat(underTest.latencyThreshold()).isEqualTo(2000);
+
+    settings.put(OidcConfiguration.ADAPTIVE_CONCURRENCY_LIMIT, "true");
+    settings.put(OidcConfiguration.LATENCY_THRESHOLD, "500");
+    assertThat(underTest.isAdaptiveConcurrencyLimit()).isTrue();
+    assertThat(underTest.latencyThreshold()).isEqualTo(500);
+  }
+
+  @Test
+  public void retry_policy() {
+    assertThat(underTest.retryMaxAttempts()).isEqualTo(3);
+    assertThat(underTest.retryInitialBackoff()).isEqualTo(100);
+    assertThat(underTest.retryMaxBackoff()).isEqualTo(1000);
+    assertThat(underTest.retryBudget()).isEqualTo(20);
+    assertThat(underTest.retryDeadline()).isEqualTo(5000);
+
+    settings.put(OidcConfiguration.RETRY_MAX_ATTEMPTS, "5");
+    settings.put(OidcConfiguration.RETRY_INITIAL_BACKOFF, "50");
+    settings.put(OidcConfiguration.RETRY_MAX_BACKOFF, "500");
+    settings.put(OidcConfiguration.RETRY_BUDGET, "10");
+    settings.put(OidcConfiguration.RETRY_DEADLINE, "2000");
+    assertThat(underTest.retryMaxAttempts()).isEqualTo(5);
+    assertThat(underTest.retryInitialBackoff()).isEqualTo(50);
+    assertThat(underTest.retryMaxBackoff()).isEqualTo(500);
+    assertThat(underTest.retryBudget()).isEqualTo(10);
+    assertThat(underTest.retryDeadline()).isEqualTo(2000);
+  }
+
+  @Test
+  public void circuit_breaker() {
+    assertThat(underTest.circuitBreakerFailureRate()).isEqualTo(50);
+    assertThat(underTest.circuitBreakerWindowSize()).isEqualTo(10);
+    assertThat(underTest.circuitBreakerOpenDuration()).isEqualTo(30000);
+
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_FAILURE_RATE, "80");
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_WINDOW_SIZE, "20");
+    settings.put(OidcConfiguration.CIRCUIT_BREAKER_OPEN_DURATION, "10000");
+    assertThat(underTest.circuitBreakerFailureRate()).isEqualTo(80);
+    assertThat(underTest.circuitBreakerWindowSize()).isEqualTo(20);
+    assertThat(underTest.circuitBreakerOpenDuration()).isEqualTo(10000);
+  }
+
+  @Test
+  public void failure_cache_ttl() {
+    assertThat(underTest.failureCacheTtl()).isEqualTo(10000);
+
+    settings.put(OidcConfiguration.FAILURE_CACHE_TTL, "0");
+    assertThat(underTest.failureCacheTtl()).isZero();
+  }
+
+  @Test
+  public void metadata_cache_ttl() {
+    assertThat(underTest.metadataCacheTtl()).isEqualTo(3600000);
+
+    settings.put(OidcConfiguration.METADATA_CACHE_TTL, "60000");
+    assertThat(underTest.metadataCacheTtl()).isEqualTo(60000);
+  }
+
+  @Test
+  public void tenant_issuers() {
+    assertThat(underTest.tenantIssuers()).isEmpty();
+    assertThat(underTest.tenantCacheSize()).isEqualTo(100);
+
+    settings.put(OidcConfiguration.TENANT_ISSUERS, "https://login.microsoftonline.com/*/v2.0,https://auth.acme.com");
+    settings.put(OidcConfiguration.TENANT_CACHE_SIZE, "10");
+    assertThat(underTest.tenantIssuers()).containsExactly("https://login.microsoftonline.com/*/v2.0",
+        "https://auth.acme.com");
+    assertThat(underTest.tenantCacheSize()).isEqualTo(10);
+  }
+
+  @Test
+  public void shared_cache_directory() {
+    assertThat(underTest.sharedCacheDirectory()).isNull();
+
+    settings.put(OidcConfiguration.SHARED_CACHE_DIRECTORY, "/mnt/shared/oidc");
+    assertThat(underTest.sharedCacheDirectory()).isEqualTo("/mnt/shared/oidc");
+  }
+
+  @Test
+  public void jwks_refresh_interval() {
+    assertThat(underTest.jwksRefreshInterval()).isEqualTo(300000);
+
+    settings.put(OidcConfiguration.JWKS_REFRESH_INTERVAL, "0");
+    assertThat(underTest.jwksRefreshInterval()).isZero();
+  }
+
+  @Test
+  public void replay_guard_peak_rate() {
+    assertThat(underTest.replayGuardPeakRate()).isZero();
+
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "50");
+    assertThat(underTest.replayGuardPeakRate()).isEqualTo(50);
+  }
+
   @Test
   public void definitions() {
-    assertThat(OidcConfiguration.definitions()).hasSize(15);
+    assertThat(OidcConfiguration.definitions()).hasSize(62);
+  }
+
+  @Test
+  public void additional_provider() {
+    OidcConfiguration additional = new OidcConfiguration(config, "keycloak");
+    settings.put("sonar.auth.oidc.keycloak.issuerUri", AUTH_URL);
+    settings.put(OidcConfiguration.ISSUER_URI, "https://other.acme.com");
+
+    assertThat(underTest.providerKey()).isEqualTo("oidc");
+    assertThat(additional.providerKey()).isEqualTo("keycloak");
+    assertThat(additional.issuerUri()).isEqualTo(AUTH_URL);
+    assertThat(OidcConfiguration.key("keycloak", OidcConfiguration.CLIENT_ID))
+        .isEqualTo("sonar.auth.oidc.keycloak.clientId.secured");
+    assertThat(OidcConfiguration.key("oidc", OidcConfiguration.CLIENT_ID)).isEqualTo(OidcConfiguration.CLIENT_ID);
+  }
+
+  @Test
+  public void additional_provider_definitions() {
+    assertThat(OidcConfiguration.definitions("keycloak")).hasSize(55)
+        .allSatisfy(definition -> {
+          assertThat(definition.key()).startsWith("sonar.auth.oidc.keycloak.");
+          assertThat(definition.subCategory()).isEqualTo("keycloak");
+        });
+  }
+
+  @Test
+  public void provider_keys() {
+    assertThat(OidcConfiguration.providerKeys(config)).isEmpty();
+
+    settings.put(PROVIDERS, "keycloak, entra-id ,keycloak");
+    assertThat(OidcConfiguration.providerKeys(config)).containsExactly("keycloak", "entra-id");
+  }
+
+  @Test
+  public void provider_keys_invalid() {
+    for (String invalidKey : new String[] {"oidc", "retry", "enabled", "providers", "Key", "a.b", " "}) {
+      settings.put(PROVIDERS, invalidKey);
+      IllegalStateException exception = assertThrows(IllegalStateException.class,
+          () -> OidcConfiguration.providerKeys(config));
+      assertThat(exception.getMessage()).startsWith("Invalid identity provider key '" + invalidKey.trim() + "'");
+    }
   }
 
   @Test
@@ -114,7 +114,7 @@ public class OidcIdentityProviderTest extends AbstractOidcTest {
     } catch (URISyntaxException e) {
       // ignore
     }
-    when(mockClient.createAuthenticationRequest(CALLBACK_URL, STATE)).thenReturn(request);
+    when(mockClient.createAuthenticationRequest(CALLBACK_URL, STATE, null)).thenReturn(request);
     return mockClient;
   }
 
@@ -0,0 +1,99 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class OidcProviderRegistryTest extends AbstractOidcTest {
+
+  private OidcIdentityProvider defaultProvider;
+  private OidcProviderRegistry underTest;
+
+  @Before
+  public void setUp() {
+    defaultProvider = new OidcIdentityProvider(oidcConfig, mock(OidcClient.class), mock(UserIdentityFactory.class));
+    underTest = new OidcProviderRegistry(Arrays.asList("keycloak", "entra"));
+  }
+
+  @Test
+  public void unbound() {
+    assertThat(underTest.get("oidc")).isNull();
+    assertThat(underTest.get("keycloak")).isNull();
+  }
+
+  @Test
+  public void lookup_by_key() {
+    underTest.bind(config, defaultProvider);
+
+    assertThat(underTest.get("oidc")).isSameAs(defaultProvider);
+    assertThat(underTest.get("keycloak").getKey()).isEqualTo("keycloak");
+    assertThat(underTest.get("entra").getKey()).isEqualTo("entra");
+    assertThat(underTest.get("unknown")).isNull();
+  }
+
+  @Test
+  public void providers_are_configured_independently() {
+    setSettings(false);
+    settings.put("sonar.auth.oidc.keycloak.enabled", "true");
+    settings.put("sonar.auth.oidc.keycloak.issuerUri", ISSUER_URI);
+    settings.put("sonar.auth.oidc.keycloak.clientId.secured", "id");
+    settings.put("sonar.auth.oidc.keycloak.loginButtonText", "Keycloak");
+    underTest.bind(config, defaultProvider);
+
+    assertThat(underTest.get("oidc").isEnabled()).isFalse();
+    assertThat(underTest.get("keycloak").isEnabled()).isTrue();
+    assertThat(underTest.get("keycloak").getName()).isEqualTo("Keycloak");
+    assertThat(underTest.get("entra").isEnabled()).isFalse();
+  }
+
+  @Test
+  public void initializer_binds_registry() {
+    OidcProviderRegistry registry = new OidcProviderRegistry(Collections.singletonList("keycloak"));
+    OidcProviderRegistryInitializer initializer = new OidcProviderRegistryInitializer(config, registry,
+        defaultProvider);
+    initializer.start();
+
+    assertThat(registry.get("oidc")).isSameAs(defaultProvider);
+    assertThat(registry.get("keycloak")).isNotNull();
+    initializer.stop();
+  }
+
+  @Test
+  public void initializer_stops_additional_clients() throws Exception {
+    OidcProviderRegistry registry = new OidcProviderRegistry(Collections.singletonList("keycloak"));
+    OidcProviderRegistryInitializer initializer = new OidcProviderRegistryInitializer(config, registry,
+        defaultProvider);
+    initializer.start();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertThat(server.isRegistered(Jmx.name("CircuitBreaker", "keycloak"))).isTrue();
+
+    initializer.stop();
+    assertThat(registry.get("keycloak")).isNull();
+    assertThat(server.isRegistered(Jmx.name("CircuitBreaker", "keycloak"))).isFalse();
+  }
+
+}
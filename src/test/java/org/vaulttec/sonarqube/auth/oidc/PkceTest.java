@@ -0,0 +1,127 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.pkce.CodeChallenge;
+import com.nimbusds.oauth2.sdk.pkce.CodeChallengeMethod;
+import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
+import org.junit.Test;
+import org.sonar.api.server.http.Cookie;
+import org.sonar.api.server.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PkceTest {
+
+  @Test
+  public void code_verifier() {
+    CodeVerifier codeVerifier = Pkce.newCodeVerifier();
+
+    assertThat(codeVerifier.getValue()).hasSize(43).matches("[A-Za-z0-9_-]+");
+    assertThat(Pkce.newCodeVerifier()).isNotEqualTo(codeVerifier);
+  }
+
+  @Test
+  public void code_challenge() {
+    // example from RFC 7636, appendix B
+    CodeVerifier codeVerifier = new CodeVerifier("dBjftJeZ4CVP-mB92K27uhbUJU1p1r_wW1gFWFOEjXk");
+
+    assertThat(Pkce.getCodeChallenge(codeVerifier).getValue()).isEqualTo("E9Melhoa2OwvFrEMTJguCHaoeK1t8URWbuGJSstw-cM");
+    assertThat(Pkce.getCodeChallenge(codeVerifier)).isEqualTo(CodeChallenge.compute(CodeChallengeMethod.S256,
+        codeVerifier));
+  }
+
+  @Test
+  public void concurrent_code_verifiers_are_unique() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      Set<String> values = ConcurrentHashMap.newKeySet();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 1_000; i++) {
+            CodeVerifier codeVerifier = Pkce.newCodeVerifier();
+            assertThat(Pkce.getCodeChallenge(codeVerifier))
+                .isEqualTo(CodeChallenge.compute(CodeChallengeMethod.S256, codeVerifier));
+            values.add(codeVerifier.getValue());
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+      assertThat(values).hasSize(8_000);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void cookie() {
+    CodeVerifier codeVerifier = Pkce.newCodeVerifier();
+    Cookie cookie = Pkce.newCookie("oidc", "https://sonar.acme.com/oauth2/callback/oidc", codeVerifier);
+
+    assertThat(cookie.getName()).isEqualTo("OIDC_PKCE_oidc");
+    assertThat(cookie.getValue()).isEqualTo(codeVerifier.getValue());
+    assertThat(cookie.getPath()).isEqualTo("/oauth2/callback/oidc");
+    assertThat(cookie.isSecure()).isTrue();
+    assertThat(cookie.isHttpOnly()).isTrue();
+    assertThat(cookie.getMaxAge()).isEqualTo(Pkce.COOKIE_MAX_AGE);
+
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    assertThat(Pkce.getCodeVerifier("oidc", request)).isEqualTo(codeVerifier);
+    assertThat(Pkce.getCodeVerifier("other", request)).isNull();
+  }
+
+  @Test
+  public void removal_cookie() {
+    Cookie cookie = Pkce.newCookie("oidc", "http://localhost", null);
+
+    assertThat(cookie.getValue()).isEmpty();
+    assertThat(cookie.getPath()).isEqualTo("/");
+    assertThat(cookie.isSecure()).isFalse();
+    assertThat(cookie.getMaxAge()).isZero();
+
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    assertThat(Pkce.getCodeVerifier("oidc", request)).isNull();
+  }
+
+  @Test
+  public void invalid_cookie() {
+    HttpRequest request = mock(HttpRequest.class);
+    assertThat(Pkce.getCodeVerifier("oidc", request)).isNull();
+
+    Cookie cookie = new HttpOnlyCookie("OIDC_PKCE_oidc", "too short", "/", false, 0);
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    assertThat(Pkce.getCodeVerifier("oidc", request)).isNull();
+  }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReplayGuardTest extends AbstractOidcTest {
+
+  private static final int THREADS = 8;
+
+  private final AtomicLong clock = new AtomicLong(1_000_000_000);
+  private ReplayGuard underTest;
+
+  @Before
+  public void setUp() {
+    setSettings(true);
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "10");
+    underTest = new ReplayGuard(oidcConfig, clock::get);
+  }
+
+  @Test
+  public void replay_is_detected() {
+    assertThat(underTest.isEnabled()).isTrue();
+    assertThat(underTest.register("code1")).isTrue();
+    assertThat(underTest.register("code2")).isTrue();
+    assertThat(underTest.register("code1")).isFalse();
+    assertThat(underTest.register("code2")).isFalse();
+  }
+
+  @Test
+  public void replay_is_detected_in_previous_bucket() {
+    assertThat(underTest.register("code1")).isTrue();
+
+    clock.addAndGet(ReplayGuard.BUCKET);
+    assertThat(underTest.register("code1")).isFalse();
+    assertThat(underTest.register("code2")).isTrue();
+  }
+
+  @Test
+  public void replay_is_detected_in_bloom_filter_of_old_bucket() {
+    assertThat(underTest.register("code1")).isTrue();
+
+    clock.addAndGet(ReplayGuard.WINDOW - ReplayGuard.BUCKET);
+    assertThat(underTest.register("code2")).isTrue();
+    assertThat(underTest.register("code1")).isFalse();
+  }
+
+  @Test
+  public void lookup_does_not_register() {
+    assertThat(underTest.contains("code1")).isFalse();
+    assertThat(underTest.register("code1")).isTrue();
+    assertThat(underTest.contains("code1")).isTrue();
+    assertThat(underTest.contains("code2")).isFalse();
+    assertThat(underTest.register("code2")).isTrue();
+
+    clock.addAndGet(ReplayGuard.WINDOW - ReplayGuard.BUCKET);
+    assertThat(underTest.contains("code1")).isTrue();
+    clock.addAndGet(2 * ReplayGuard.BUCKET);
+    assertThat(underTest.contains("code1")).isFalse();
+  }
+
+  @Test
+  public void value_expires_after_window() {
+    assertThat(underTest.register("code1")).isTrue();
+
+    clock.addAndGet(ReplayGuard.WINDOW + ReplayGuard.BUCKET);
+    assertThat(underTest.register("code1")).isTrue();
+    assertThat(underTest.register("code1")).isFalse();
+  }
+
+  @Test
+  public void values_at_peak_rate_are_not_rejected() {
+    // the peak rate of 10 logins per second for the whole window, each value registered twice
+    int perBucket = (int) (10 * ReplayGuard.BUCKET / 1000);
+    for (int bucket = 0; bucket <= ReplayGuard.WINDOW / ReplayGuard.BUCKET; bucket++) {
+      for (int i = 0; i < perBucket; i++) {
+        String value = "code-" + bucket + "-" + i;
+        assertThat(underTest.register(value)).as(value).isTrue();
+        assertThat(underTest.register(value)).as(value).isFalse();
+      }
+      clock.addAndGet(ReplayGuard.BUCKET);
+    }
+  }
+
+  @Test
+  public void replay_is_detected_above_peak_rate() {
+    // the exact tier decides within the same bucket
+    int values = (int) (10 * ReplayGuard.BUCKET / 1000) * 5;
+    for (int i = 0; i < values; i++) {
+      assertThat(underTest.register("code" + i)).isTrue();
+    }
+    for (int i = 0; i < values; i++) {
+      assertThat(underTest.register("code" + i)).isFalse();
+    }
+  }
+
+  @Test
+  public void registration_with_outdated_clock() {
+    // the time read by the next registration, if set
+    AtomicLong outdatedTime = new AtomicLong();
+    ReplayGuard guard = new ReplayGuard(oidcConfig, () -> {
+      long time = outdatedTime.getAndSet(0);
+      return time != 0 ? time : clock.get();
+    });
+    long start = clock.get();
+    assertThat(guard.register("code1")).isTrue();
+    clock.addAndGet(ReplayGuard.WINDOW + ReplayGuard.BUCKET);
+    assertThat(guard.register("code2")).isTrue();
+
+    // the ring has moved on since the clock was read, so the value is registered in the current bucket
+    outdatedTime.set(start);
+    assertThat(guard.register("code3")).isTrue();
+    assertThat(guard.register("code3")).isFalse();
+  }
+
+  @Test
+  public void disabled() {
+    settings.put(OidcConfiguration.REPLAY_GUARD_PEAK_RATE, "0");
+    assertThat(underTest.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void concurrent_registration_of_distinct_values() throws Exception {
+    List<Boolean> results = run(thread -> {
+      List<Boolean> threadResults = new ArrayList<>();
+      for (int i = 0; i < 5_000; i++) {
+        threadResults.add(underTest.register("code-" + thread + "-" + i));
+      }
+      return threadResults;
+    });
+    assertThat(results).hasSize(THREADS * 5_000).containsOnly(true);
+  }
+
+  @Test
+  public void concurrent_registration_of_same_values() throws Exception {
+    int values = 2_000;
+    AtomicIntegerArray winners = new AtomicIntegerArray(values);
+    run(thread -> {
+      for (int i = 0; i < values; i++) {
+        if (underTest.register("code" + i)) {
+          winners.incrementAndGet(i);
+        }
+      }
+      return new ArrayList<>();
+    });
+    for (int i = 0; i < values; i++) {
+      assertThat(winners.get(i)).as("code" + i).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void concurrent_registration_across_buckets() throws Exception {
+    int values = 2_000;
+    AtomicIntegerArray winners = new AtomicIntegerArray(values);
+    run(thread -> {
+      for (int i = 0; i < values; i++) {
+        if (i % 100 == 0) {
+          // the threads move the clock, so registrations of the same value hit different buckets
+          clock.addAndGet(ReplayGuard.BUCKET / 100);
+        }
+        if (underTest.register("code" + i)) {
+          winners.incrementAndGet(i);
+        }
+      }
+      return new ArrayList<>();
+    });
+    for (int i = 0; i < values; i++) {
+      // concurrent registrations of the same value (i.e. a replay) at a bucket boundary are never both accepted
+      assertThat(winners.get(i)).as("code" + i).isLessThanOrEqualTo(1);
+    }
+  }
+
+  private List<Boolean> run(Task task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<List<Boolean>>> futures = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        int id = thread;
+        futures.add(executor.submit((Callable<List<Boolean>>) () -> {
+          start.await();
+          return task.run(id);
+        }));
+      }
+      start.countDown();
+      List<Boolean> results = new ArrayList<>();
+      for (Future<List<Boolean>> future : futures) {
+        results.addAll(future.get(30, TimeUnit.SECONDS));
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @FunctionalInterface
+  private interface Task {
+    List<Boolean> run(int thread) throws Exception;
+  }
+
+}
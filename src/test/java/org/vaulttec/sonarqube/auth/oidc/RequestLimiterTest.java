@@ -0,0 +1,163 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class RequestLimiterTest extends AbstractOidcTest {
+
+  private RequestLimiter underTest;
+
+  @Before
+  public void setUp() {
+    settings.put(OidcConfiguration.MAX_CONCURRENT_REQUESTS, "2");
+    settings.put(OidcConfiguration.REQUEST_QUEUE_SIZE, "1");
+    settings.put(OidcConfiguration.REQUEST_QUEUE_TIMEOUT, "50");
+    underTest = new RequestLimiter(oidcConfig);
+  }
+
+  @Test
+  public void acquire_and_release() {
+    try (RequestLimiter.Permit first = underTest.acquire(); RequestLimiter.Permit second = underTest.acquire()) {
+      assertThat(underTest.getInFlightRequests()).isEqualTo(2);
+    }
+    assertThat(underTest.getInFlightRequests()).isZero();
+  }
+
+  @Test
+  public void permit_is_released_only_once() {
+    RequestLimiter.Permit permit = underTest.acquire();
+    underTest.acquire();
+    permit.close();
+    permit.close();
+    assertThat(underTest.getInFlightRequests()).isEqualTo(1);
+  }
+
+  @Test
+  public void reject_after_queue_timeout() {
+    underTest.acquire();
+    underTest.acquire();
+
+    IllegalStateException exception = assertThrows(IllegalStateException.class, () -> underTest.acquire());
+    assertTrue(exception.getMessage().startsWith("Too many concurrent requests to identity provider"));
+    assertThat(underTest.getInFlightRequests()).isEqualTo(2);
+    assertThat(underTest.getRejectedRequests()).isEqualTo(1);
+  }
+
+  @Test
+  public void reject_immediately_if_queue_is_full() throws Exception {
+    settings.put(OidcConfiguration.REQUEST_QUEUE_TIMEOUT, "10000");
+    underTest.acquire();
+    RequestLimiter.Permit permit = underTest.acquire();
+
+    CountDownLatch queued = new CountDownLatch(1);
+    CompletableFuture<RequestLimiter.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+      queued.countDown();
+      return underTest.acquire();
+    });
+    queued.await();
+    Thread.sleep(100);
+
+    long start = System.nanoTime();
+    assertThrows(IllegalStateException.class, () -> underTest.acquire());
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5000);
+
+    permit.close();
+    assertThat(waiting.get(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(underTest.getInFlightRequests()).isEqualTo(2);
+  }
+
+  @Test
+  public void fixed_limit_ignores_latency() {
+    long start = System.nanoTime();
+    underTest.onSample(start, TimeUnit.SECONDS.toNanos(10), true);
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void adaptive_limit_decreases_on_slow_requests() {
+    settings.put(OidcConfiguration.MAX_CONCURRENT_REQUESTS, "20");
+    settings.put(OidcConfiguration.ADAPTIVE_CONCURRENCY_LIMIT, "true");
+    settings.put(OidcConfiguration.LATENCY_THRESHOLD, "100");
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(20);
+
+    long start = System.nanoTime();
+    underTest.onSample(start, TimeUnit.MILLISECONDS.toNanos(500), false);
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(15);
+
+    // requests started before the last decrease don't shrink the limit again
+    underTest.onSample(start, TimeUnit.MILLISECONDS.toNanos(500), true);
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(15);
+
+    underTest.onSample(System.nanoTime(), 0, true);
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(11);
+  }
+
+  @Test
+  public void adaptive_limit_never_drops_below_minimum() {
+    settings.put(OidcConfiguration.ADAPTIVE_CONCURRENCY_LIMIT, "true");
+    for (int i = 0; i < 10; i++) {
+      underTest.onSample(System.nanoTime(), 0, true);
+    }
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(RequestLimiter.MIN_LIMIT);
+    try (RequestLimiter.Permit permit = underTest.acquire()) {
+      assertThrows(IllegalStateException.class, () -> underTest.acquire());
+    }
+  }
+
+  @Test
+  public void adaptive_limit_recovers_on_fast_requests() {
+    settings.put(OidcConfiguration.MAX_CONCURRENT_REQUESTS, "4");
+    settings.put(OidcConfiguration.ADAPTIVE_CONCURRENCY_LIMIT, "true");
+    underTest.onSample(System.nanoTime(), 0, true);
+    underTest.onSample(System.nanoTime(), 0, true);
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(2);
+
+    try (RequestLimiter.Permit first = underTest.acquire(); RequestLimiter.Permit second = underTest.acquire()) {
+      for (int i = 0; i < 10; i++) {
+        first.completed();
+      }
+    }
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(4);
+  }
+
+  @Test
+  public void adaptive_limit_does_not_grow_while_underutilized() {
+    settings.put(OidcConfiguration.MAX_CONCURRENT_REQUESTS, "20");
+    settings.put(OidcConfiguration.ADAPTIVE_CONCURRENCY_LIMIT, "true");
+    underTest.onSample(System.nanoTime(), 0, true);
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(15);
+
+    try (RequestLimiter.Permit permit = underTest.acquire()) {
+      for (int i = 0; i < 100; i++) {
+        permit.completed();
+      }
+    }
+    assertThat(underTest.getConcurrencyLimit()).isEqualTo(15);
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class RetryPolicyTest extends AbstractOidcTest {
+
+  private final AtomicInteger attempts = new AtomicInteger();
+  private RetryPolicy underTest;
+
+  @Before
+  public void setUp() {
+    settings.put(OidcConfiguration.RETRY_MAX_ATTEMPTS, "3");
+    settings.put(OidcConfiguration.RETRY_INITIAL_BACKOFF, "1");
+    settings.put(OidcConfiguration.RETRY_MAX_BACKOFF, "5");
+    underTest = new RetryPolicy(oidcConfig);
+  }
+
+  @Test
+  public void retry_transient_status() throws IOException {
+    HTTPResponse response = underTest.execute(RequestType.USER_INFO, respondWith(503, 502, 200));
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(attempts).hasValue(3);
+  }
+
+  @Test
+  public void retry_io_error() throws IOException {
+    HTTPResponse response = underTest.execute(RequestType.PROVIDER_METADATA, () -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw new SocketException("Connection reset");
+      }
+      return new HTTPResponse(200);
+    });
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(attempts).hasValue(2);
+  }
+
+  @Test
+  public void return_last_response_after_max_attempts() throws IOException {
+    HTTPResponse response = underTest.execute(RequestType.JWK_SET, respondWith(503, 503, 503, 200));
+    assertThat(response.getStatusCode()).isEqualTo(503);
+    assertThat(attempts).hasValue(3);
+  }
+
+  @Test
+  public void throw_last_error_after_max_attempts() {
+    assertThrows(SocketException.class, () -> underTest.execute(RequestType.JWK_SET, () -> {
+      attempts.incrementAndGet();
+      throw new SocketException("Connection reset");
+    }));
+    assertThat(attempts).hasValue(3);
+  }
+
+  @Test
+  public void do_not_retry_token_request() throws IOException {
+    HTTPResponse response = underTest.execute(RequestType.TOKEN, respondWith(503, 200));
+    assertThat(response.getStatusCode()).isEqualTo(503);
+    assertThat(attempts).hasValue(1);
+  }
+
+  @Test
+  public void do_not_retry_permanent_errors() throws IOException {
+    HTTPResponse response = underTest.execute(RequestType.USER_INFO, respondWith(401, 200));
+    assertThat(response.getStatusCode()).isEqualTo(401);
+    assertThat(attempts).hasValue(1);
+  }
+
+  @Test
+  public void do_not_retry_if_disabled() throws IOException {
+    settings.put(OidcConfiguration.RETRY_MAX_ATTEMPTS, "1");
+    HTTPResponse response = underTest.execute(RequestType.USER_INFO, respondWith(503, 200));
+    assertThat(response.getStatusCode()).isEqualTo(503);
+    assertThat(attempts).hasValue(1);
+  }
+
+  @Test
+  public void do_not_retry_beyond_deadline() throws IOException {
+    settings.put(OidcConfiguration.RETRY_INITIAL_BACKOFF, "10000");
+    settings.put(OidcConfiguration.RETRY_MAX_BACKOFF, "10000");
+    settings.put(OidcConfiguration.RETRY_DEADLINE, "0");
+    HTTPResponse response = underTest.execute(RequestType.USER_INFO, respondWith(503, 200));
+    assertThat(response.getStatusCode()).isEqualTo(503);
+    assertThat(attempts).hasValue(1);
+  }
+
+  @Test
+  public void do_not_retry_beyond_shared_deadline() throws IOException {
+    settings.put(OidcConfiguration.RETRY_DEADLINE, "60000");
+    // the deadline of a login has been used up by its previous requests
+    long deadline = System.nanoTime();
+    HTTPResponse response = underTest.execute(RequestType.USER_INFO, respondWith(503, 200), deadline);
+    assertThat(response.getStatusCode()).isEqualTo(503);
+    assertThat(attempts).hasValue(1);
+
+    attempts.set(0);
+    response = underTest.execute(RequestType.USER_INFO, respondWith(503, 200), underTest.newDeadline());
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(attempts).hasValue(2);
+  }
+
+  @Test
+  public void do_not_retry_if_budget_is_exhausted() throws IOException {
+    settings.put(OidcConfiguration.RETRY_BUDGET, "0");
+    settings.put(OidcConfiguration.RETRY_MAX_ATTEMPTS, "100");
+    HTTPResponse response = underTest.execute(RequestType.USER_INFO, respondWith(new int[100]));
+    assertThat(response.getStatusCode()).isEqualTo(503);
+    assertThat(attempts).hasValue((int) RetryPolicy.BUDGET_RESERVE + 1);
+    assertThat(underTest.remainingBudget()).isZero();
+
+    // every request refills the budget by the configured percentage
+    settings.put(OidcConfiguration.RETRY_BUDGET, "50");
+    attempts.set(0);
+    underTest.execute(RequestType.USER_INFO, respondWith(503, 503, 200));
+    assertThat(attempts).hasValue(1);
+    attempts.set(0);
+    underTest.execute(RequestType.USER_INFO, respondWith(503, 503, 200));
+    assertThat(attempts).hasValue(2);
+  }
+
+  private RetryPolicy.Request respondWith(int... statusCodes) {
+    return () -> {
+      int statusCode = statusCodes[Math.min(attempts.getAndIncrement(), statusCodes.length - 1)];
+      return new HTTPResponse(statusCode == 0 ? 503 : statusCode);
+    };
+  }
+
+}
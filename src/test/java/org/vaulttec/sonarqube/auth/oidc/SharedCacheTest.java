@@ -0,0 +1,180 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.util.Resource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class SharedCacheTest extends AbstractOidcTest {
+
+  private static final String KEY = "https://oidc.org/protocol/openid-connect/certs";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicInteger loads = new AtomicInteger();
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = temp.newFolder();
+    settings.put(OidcConfiguration.SHARED_CACHE_DIRECTORY, directory.getPath());
+  }
+
+  @Test
+  public void disabled() {
+    settings.remove(OidcConfiguration.SHARED_CACHE_DIRECTORY);
+    assertThat(new SharedCache(oidcConfig).isEnabled()).isFalse();
+  }
+
+  @Test
+  public void reuse_snapshot_of_other_node() throws IOException {
+    SharedCache node1 = new SharedCache(oidcConfig);
+    SharedCache node2 = new SharedCache(oidcConfig);
+
+    Resource resource = node1.get(KEY, this::load);
+    assertThat(resource.getContent()).isEqualTo("{\"keys\":[1]}");
+    assertThat(resource.getContentType()).isEqualTo("application/json");
+    assertThat(node2.get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[1]}");
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(directory.toPath().resolve("oidc")).isDirectory();
+  }
+
+  @Test
+  public void reload_snapshot_already_used() throws IOException {
+    SharedCache node1 = new SharedCache(oidcConfig);
+    SharedCache node2 = new SharedCache(oidcConfig);
+
+    node1.get(KEY, this::load);
+    node2.get(KEY, this::load);
+    // The node asks again, e.g. because of an unknown key ID, so the snapshot it has used is outdated
+    assertThat(node2.get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[2]}");
+    // The other node picks up the updated snapshot
+    assertThat(node1.get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[2]}");
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void ignore_expired_snapshot() throws IOException {
+    settings.put(OidcConfiguration.METADATA_CACHE_TTL, "0");
+    SharedCache node1 = new SharedCache(oidcConfig);
+    SharedCache node2 = new SharedCache(oidcConfig);
+
+    node1.get(KEY, this::load);
+    assertThat(node2.get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[2]}");
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void snapshot_of_other_node_has_age() throws IOException {
+    SharedCache node1 = new SharedCache(oidcConfig);
+    SharedCache node2 = new SharedCache(oidcConfig);
+
+    Resource resource = node1.get(KEY, this::load);
+    assertThat(SharedCache.getAge(resource)).isZero();
+    // Backdate the version stamp of the snapshot by a minute
+    try (Stream<Path> files = Files.list(directory.toPath().resolve("oidc"))) {
+      files.filter(file -> file.toString().endsWith(".snapshot")).forEach(file -> {
+        try {
+          byte[] snapshot = Files.readAllBytes(file);
+          ByteBuffer.wrap(snapshot).putLong(System.currentTimeMillis() - 60000);
+          Files.write(file, snapshot);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+
+    Resource snapshot = node2.get(KEY, this::load);
+    assertThat(snapshot.getContent()).isEqualTo("{\"keys\":[1]}");
+    assertThat(SharedCache.getAge(snapshot)).isBetween(60000L, 70000L);
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void replace_corrupt_snapshot() throws IOException {
+    SharedCache node1 = new SharedCache(oidcConfig);
+    node1.get(KEY, this::load);
+    try (Stream<Path> files = Files.list(directory.toPath().resolve("oidc"))) {
+      files.filter(file -> file.toString().endsWith(".snapshot")).forEach(file -> {
+        try {
+          Files.write(file, new byte[] {1, 2});
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+
+    assertThat(new SharedCache(oidcConfig).get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[2]}");
+    assertThat(new SharedCache(oidcConfig).get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[2]}");
+  }
+
+  @Test
+  public void fall_back_to_loader_if_directory_not_accessible() throws IOException {
+    settings.put(OidcConfiguration.SHARED_CACHE_DIRECTORY, temp.newFile().getPath());
+
+    assertThat(new SharedCache(oidcConfig).get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[1]}");
+  }
+
+  @Test
+  public void fall_back_to_loader_if_lock_held_in_same_jvm() throws IOException {
+    settings.put(OidcConfiguration.METADATA_CACHE_TTL, "0");
+    new SharedCache(oidcConfig).get(KEY, this::load);
+    Path lockFile;
+    try (Stream<Path> files = Files.list(directory.toPath().resolve("oidc"))) {
+      lockFile = files.filter(file -> file.toString().endsWith(".lock")).findFirst().orElseThrow(AssertionError::new);
+    }
+
+    try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+      assertThat(lock.isValid()).isTrue();
+      assertThat(new SharedCache(oidcConfig).get(KEY, this::load).getContent()).isEqualTo("{\"keys\":[2]}");
+    }
+  }
+
+  @Test
+  public void propagate_loader_failure() {
+    SharedCache underTest = new SharedCache(oidcConfig);
+
+    IOException exception = assertThrows(IOException.class, () -> underTest.get(KEY, () -> {
+      throw new IOException("test");
+    }));
+    assertThat(exception).hasMessage("test");
+  }
+
+  private Resource load() {
+    return new Resource("{\"keys\":[" + loads.incrementAndGet() + "]}", "application/json");
+  }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class TlsContextTest extends AbstractOidcTest {
+
+  static final String CLIENT_KEYSTORE = "/tls-client.p12";
+  static final String SERVER_KEYSTORE = "/tls-server.p12";
+  static final String TRUSTSTORE = "/tls-truststore.p12";
+  static final String PASSWORD = "changeit";
+
+  @Rule
+  public MockWebServer idp = new MockWebServer();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private TlsContext underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    settings.put(OidcConfiguration.TLS_KEYSTORE, getPath(CLIENT_KEYSTORE));
+    settings.put(OidcConfiguration.TLS_KEYSTORE_PASSWORD, PASSWORD);
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE, getPath(TRUSTSTORE));
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE_PASSWORD, PASSWORD);
+    underTest = new TlsContext(oidcConfig);
+  }
+
+  @Test
+  public void disabled_without_keystores() {
+    settings.clear();
+
+    assertThat(underTest.isEnabled()).isFalse();
+    assertThat(underTest.getSocketFactory()).isNull();
+  }
+
+  @Test
+  public void truststore_only() {
+    settings.remove(OidcConfiguration.TLS_KEYSTORE);
+
+    assertThat(underTest.isEnabled()).isTrue();
+    assertThat(underTest.hasClientCertificate()).isFalse();
+    assertThat(underTest.getSocketFactory()).isNotNull();
+  }
+
+  @Test
+  public void context_is_reused() {
+    SSLContext context = underTest.getContext();
+
+    assertThat(underTest.getContext()).isSameAs(context);
+    assertThat(context.getClientSessionContext().getSessionCacheSize()).isEqualTo(TlsContext.SESSION_CACHE_SIZE);
+    assertThat(context.getClientSessionContext().getSessionTimeout()).isEqualTo(TlsContext.SESSION_TIMEOUT);
+  }
+
+  @Test
+  public void context_is_rebuilt_if_keystore_file_changes() throws Exception {
+    File keyStore = temp.newFile();
+    Files.copy(new File(getPath(CLIENT_KEYSTORE)).toPath(), keyStore.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    settings.put(OidcConfiguration.TLS_KEYSTORE, keyStore.getPath());
+    AtomicLong clock = new AtomicLong();
+    underTest = new TlsContext(oidcConfig, clock::get);
+    SSLContext context = underTest.getContext();
+
+    assertThat(keyStore.setLastModified(keyStore.lastModified() + 10_000)).isTrue();
+    // The file isn't checked again within the check interval
+    clock.addAndGet(TlsContext.FILE_CHECK_INTERVAL - 1);
+    assertThat(underTest.getContext()).isSameAs(context);
+    clock.addAndGet(1);
+    assertThat(underTest.getContext()).isNotSameAs(context);
+  }
+
+  @Test
+  public void context_is_rebuilt_if_configuration_changes() {
+    SSLContext context = underTest.getContext();
+
+    settings.remove(OidcConfiguration.TLS_KEYSTORE);
+    assertThat(underTest.getContext()).isNotSameAs(context);
+  }
+
+  @Test
+  public void mutual_tls_connection() throws Exception {
+    idp.useHttps(newServerContext().getSocketFactory(), false);
+    idp.requireClientAuth();
+    idp.enqueue(new MockResponse().setBody("first"));
+    idp.enqueue(new MockResponse().setBody("second"));
+    SSLSocketFactory socketFactory = underTest.getSocketFactory();
+
+    for (String expected : new String[] { "first", "second" }) {
+      HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, idp.url("/").url());
+      request.setSSLSocketFactory(socketFactory);
+      HTTPResponse response = request.send();
+      assertThat(response.getBody()).isEqualToIgnoringWhitespace(expected);
+    }
+    // the second request reuses the connection (and its TLS session) of the first one
+    idp.takeRequest();
+    assertThat(idp.takeRequest().getSequenceNumber()).isEqualTo(1);
+  }
+
+  @Test
+  public void wrong_keystore_password() throws Exception {
+    settings.put(OidcConfiguration.TLS_KEYSTORE_PASSWORD, "wrong");
+    String path = getPath(CLIENT_KEYSTORE);
+
+    IllegalStateException exception = assertThrows(IllegalStateException.class, underTest::getContext);
+    assertThat(exception).hasMessageStartingWith("Loading TLS client keystore '" + path + "' failed");
+  }
+
+  @Test
+  public void missing_truststore() {
+    settings.put(OidcConfiguration.TLS_TRUSTSTORE, "/unknown.p12");
+
+    IllegalStateException exception = assertThrows(IllegalStateException.class, underTest::getContext);
+    assertThat(exception).hasMessageStartingWith("Loading TLS truststore '/unknown.p12' failed");
+  }
+
+  /**
+   * Returns the context of an identity provider requiring a client certificate issued by the test truststore.
+   */
+  static SSLContext newServerContext() throws Exception {
+    char[] password = PASSWORD.toCharArray();
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(KeyStore.getInstance(new File(getPath(SERVER_KEYSTORE)), password), password);
+    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(KeyStore.getInstance(new File(getPath(TRUSTSTORE)), password));
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+    return context;
+  }
+
+  static String getPath(String resource) throws Exception {
+    return new File(TlsContextTest.class.getResource(resource).toURI()).getAbsolutePath();
+  }
+
+}
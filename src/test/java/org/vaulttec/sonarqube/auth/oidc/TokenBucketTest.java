@@ -0,0 +1,102 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class TokenBucketTest {
+
+  private final AtomicLong clock = new AtomicLong(1_000_000_000L);
+
+  @Test
+  public void burst_of_one_second() {
+    TokenBucket underTest = new TokenBucket(10, clock::get);
+    for (int i = 0; i < 10; i++) {
+      assertThat(underTest.tryAcquire()).isTrue();
+    }
+    assertThat(underTest.tryAcquire()).isFalse();
+  }
+
+  @Test
+  public void permits_are_refilled() {
+    TokenBucket underTest = new TokenBucket(10, clock::get);
+    while (underTest.tryAcquire()) {
+      // drain the bucket
+    }
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(underTest.tryAcquire()).isTrue();
+    assertThat(underTest.tryAcquire()).isFalse();
+
+    // an idle bucket doesn't hold more than the burst
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    int acquired = 0;
+    while (underTest.tryAcquire()) {
+      acquired++;
+    }
+    assertThat(acquired).isEqualTo(10);
+  }
+
+  @Test
+  public void invalid_rate() {
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0));
+  }
+
+  @Test
+  public void concurrent_acquisition() throws Exception {
+    TokenBucket underTest = new TokenBucket(1000, clock::get);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          int acquired = 0;
+          for (int j = 0; j < 1000; j++) {
+            if (underTest.tryAcquire()) {
+              acquired++;
+            }
+          }
+          return acquired;
+        }));
+      }
+      start.countDown();
+      int acquired = 0;
+      for (Future<Integer> result : results) {
+        acquired += result.get(10, TimeUnit.SECONDS);
+      }
+      assertThat(acquired).isEqualTo(1000);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
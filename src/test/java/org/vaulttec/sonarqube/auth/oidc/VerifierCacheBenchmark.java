@@ -0,0 +1,123 @@
+/*
+ * OpenID Connect Authentication for SonarQube
+ * Copyright (c) 2017 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.sonarqube.auth.oidc;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.Issuer;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time per ID token validation saved by reusing the signature verifiers (cached per JWK thumbprint)
+ * compared to Nimbus' {@link IDTokenValidator}, which creates new verifiers for every ID token. Both use the same
+ * (already retrieved) JWK set.
+ * <p>
+ * Run with <code>mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath org.openjdk.jmh.Main VerifierCacheBenchmark"</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerifierCacheBenchmark {
+
+  private static final String ISSUER_URI = "https://oidc.org";
+  private static final String CLIENT_ID = "id";
+
+  @Param({ "RS256", "PS256", "ES256" })
+  public String algorithm;
+
+  private IdTokenVerifier cachedVerifiers;
+  private IDTokenValidator uncachedVerifiers;
+  private SignedJWT idToken;
+
+  @Setup
+  public void setUp() throws Exception {
+    JWSAlgorithm jwsAlgorithm = JWSAlgorithm.parse(algorithm);
+    JWK key;
+    JWSSigner signer;
+    if (JWSAlgorithm.Family.RSA.contains(jwsAlgorithm)) {
+      RSAKey rsaKey = new RSAKeyGenerator(2048).keyID(algorithm).generate();
+      key = rsaKey;
+      signer = new RSASSASigner(rsaKey);
+    } else {
+      ECKey ecKey = new ECKeyGenerator(Curve.P_256).keyID(algorithm).generate();
+      key = ecKey;
+      signer = new ECDSASigner(ecKey);
+    }
+    String jwkSet = new JWKSet(key.toPublicJWK()).toString();
+    OidcConfiguration config = new OidcConfiguration(new BenchmarkConfiguration());
+    JwkSetSource jwkSetSource = new JwkSetSource(new URL(ISSUER_URI + "/certs"),
+        url -> new Resource(jwkSet, "application/json"), config, new JwkSetRefresher(config));
+    Issuer issuer = new Issuer(ISSUER_URI);
+    ClientID clientId = new ClientID(CLIENT_ID);
+    cachedVerifiers = new IdTokenVerifier(issuer, clientId, Collections.singleton(jwsAlgorithm), jwkSetSource, null);
+    uncachedVerifiers = new IDTokenValidator(issuer, clientId,
+        new JWSVerificationKeySelector<>(jwsAlgorithm, jwkSetSource), null);
+    idToken = new SignedJWT(new JWSHeader.Builder(jwsAlgorithm).keyID(algorithm).build(),
+        new JWTClaimsSet.Builder().issuer(ISSUER_URI).audience(CLIENT_ID).subject("john").issueTime(new Date())
+            .expirationTime(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))).build());
+    idToken.sign(signer);
+  }
+
+  @Benchmark
+  public void cachedVerifiers() throws BadJOSEException, JOSEException {
+    cachedVerifiers.validate(idToken);
+  }
+
+  @Benchmark
+  public Object uncachedVerifiers() throws BadJOSEException, JOSEException {
+    return uncachedVerifiers.validate(idToken, null);
+  }
+
+}